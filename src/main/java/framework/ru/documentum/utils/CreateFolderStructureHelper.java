@@ -1,8 +1,5 @@
 package framework.ru.documentum.utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import framework.ru.documentum.services.DsHelper;
 
 import com.documentum.fc.client.IDfFolder;
@@ -34,41 +31,18 @@ public class CreateFolderStructureHelper extends DsHelper {
     public IDfFolder queryFolder(String folderPath) throws DfException {
 	debug("Obtain folder {0}, {1}, {2}, {3}", folderPath, cabinetType, folderType, lastFolderType);
 
-	folder = (IDfFolder) session.getFolderByPath(folderPath);
-	if (folder != null) {
-	    debug("Folder already exists, {0}", folder.getObjectId());
-	    return folder;
-	}
-
-	String pathArray[] = folderPath.split("/");
-	folderId = "";
-	List<String> paths = new ArrayList<String>();
-	for (int i = 0; i < pathArray.length; i++) {
-	    String pathPart = pathArray[i];
-	    if (pathPart.length() == 0) {
-		continue;
-	    }
-	    paths.add(pathPart);
-	}
-	pathArray = paths.toArray(new String[] {});
-
-	for (int i = 0; i < pathArray.length; i++) {
-	    String pathPart = pathArray[i];
-	    if (pathPart.length() == 0) {
-		continue;
-	    }
-
-	    String currentFolderType = folderType;
-	    if ((i == (pathArray.length - 1)) && (lastFolderType.length() > 0)) {
-		currentFolderType = lastFolderType;
-	    }
-
-	    queryItem(pathPart, currentFolderType);
-	}
+	FolderPathResolver resolver = new FolderPathResolver(this);
+	resolver.setCabinetType(cabinetType);
+	resolver.setFolderType(folderType);
+	resolver.setLastFolderType(lastFolderType);
+	resolver.setAclName(aclName);
+	resolver.setOwnerName(ownerName == null ? "" : ownerName);
+	folder = resolver.resolve(folderPath);
 
 	if (folder == null) {
 	    throw new DfException("Invalid path: " + folderPath);
 	}
+	folderId = folder.getObjectId().toString();
 	debug("Folder obtained {0}", folder.getObjectId());
 	return folder;
     }
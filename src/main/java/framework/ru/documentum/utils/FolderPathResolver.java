@@ -0,0 +1,379 @@
+package framework.ru.documentum.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import framework.ru.documentum.services.DsHelper;
+
+import com.documentum.fc.client.IDfFolder;
+import com.documentum.fc.client.IDfPersistentObject;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfId;
+import com.documentum.fc.common.IDfId;
+
+/**
+ * Получение папки по пути с созданием недостающих папок. <br>
+ *
+ * Все существующие папки пути находятся одним запросом по r_folder_path,
+ * создаются только недостающие папки в конце пути. Найденные идентификаторы
+ * хранятся в общем для всех экземпляров кэше ограниченного размера. Запись
+ * кэша проверяется при каждом обращении: если папка удалена или ее путь
+ * изменился (переименование, перенос), запись и все вложенные пути удаляются
+ * из кэша.
+ */
+public class FolderPathResolver extends DsHelper {
+
+	private static int maxCacheSize = 1000;
+
+	private static final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > maxCacheSize;
+		}
+	};
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong stale = new AtomicLong();
+	private static final AtomicLong created = new AtomicLong();
+	private static final AtomicLong races = new AtomicLong();
+
+	private String cabinetType = "dm_cabinet";
+	private String folderType = "dm_folder";
+	private String lastFolderType = "";
+	private String aclName = "";
+	private String ownerName = "";
+
+	public FolderPathResolver(DsHelper helper) {
+		super(helper);
+	}
+
+	public FolderPathResolver(IDfSession session) {
+		super(session);
+	}
+
+	/**
+	 * Возвращает папку по пути относительно папки с указанным
+	 * идентификатором, при необходимости создает недостающие папки.
+	 *
+	 * @param rootId
+	 *            Идентификатор корневой папки.
+	 * @param appendPath
+	 *            Относительный путь (может быть пустым).
+	 * @param lastFolderType
+	 *            Тип последней папки пути, если ее придется создать.
+	 * @return Папка или null, если корневая папка или тип не найдены.
+	 */
+	public IDfFolder resolve(IDfId rootId, String appendPath, String lastFolderType) throws DfException {
+		if (rootId == null || rootId.isNull() || !rootId.isObjectId()) {
+			debug("The object id {0} is invalid", rootId);
+			return null;
+		}
+		IDfPersistentObject root = session.getObject(rootId);
+		if (!(root instanceof IDfFolder)) {
+			debug("The object id {0} is not a dm_folder or subtype", rootId);
+			return null;
+		}
+		if (appendPath == null || appendPath.length() == 0) {
+			return (IDfFolder) root;
+		}
+		this.lastFolderType = lastFolderType == null ? "" : lastFolderType;
+		return resolve(((IDfFolder) root).getFolderPath(0) + "/" + appendPath);
+	}
+
+	/**
+	 * Возвращает папку по полному пути, при необходимости создает недостающие
+	 * папки (начиная с кабинета).
+	 *
+	 * @param folderPath
+	 *            Путь.
+	 * @return Папка или null, если тип последней папки не найден.
+	 */
+	public IDfFolder resolve(String folderPath) throws DfException {
+		List<String> paths = split(folderPath);
+		if (paths.isEmpty()) {
+			throw new DfException("Invalid path: " + folderPath);
+		}
+		String fullPath = paths.get(paths.size() - 1);
+
+		IDfFolder folder = getCached(fullPath);
+		if (folder != null) {
+			hits.incrementAndGet();
+			return folder;
+		}
+		misses.incrementAndGet();
+
+		Map<String, String> existing = queryExisting(paths);
+		int i = paths.size() - 1;
+		while (i >= 0 && !existing.containsKey(paths.get(i))) {
+			i--;
+		}
+		if (i == paths.size() - 1) {
+			folder = (IDfFolder) session.getObject(new DfId(existing.get(fullPath)));
+			debug("Folder already exists {0}, {1}", fullPath, folder.getObjectId());
+			return folder;
+		}
+
+		String parentId = i >= 0 ? existing.get(paths.get(i)) : null;
+		for (int j = i + 1; j < paths.size(); j++) {
+			String type = folderType;
+			if (j == 0) {
+				type = cabinetType;
+			} else if (j == paths.size() - 1 && lastFolderType.length() > 0) {
+				type = lastFolderType;
+			}
+			if (session.getType(type) == null) {
+				debug("Tried to create an object of type {0} which does not exist in the repository", type);
+				return null;
+			}
+			folder = create(paths.get(j), type, parentId);
+			parentId = folder.getObjectId().getId();
+			put(paths.get(j), parentId);
+		}
+		debug("Folder obtained {0}, {1}", fullPath, parentId);
+		return folder;
+	}
+
+	/**
+	 * Удаляет из кэша путь и все вложенные пути. Вызывается после удаления,
+	 * переименования или переноса папки.
+	 *
+	 * @param folderPath
+	 *            Путь.
+	 */
+	public void invalidate(String folderPath) {
+		String prefix = key(folderPath);
+		synchronized (cache) {
+			Iterator<String> keys = cache.keySet().iterator();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				if (key.equals(prefix) || key.startsWith(prefix + "/")) {
+					keys.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Находит одним запросом все существующие папки из списка путей.
+	 */
+	private Map<String, String> queryExisting(final List<String> paths) throws DfException {
+		final Map<String, String> result = new HashMap<String, String>();
+		StringBuilder query = new StringBuilder("select r_object_id, r_folder_path from dm_folder where any r_folder_path in (");
+		for (int i = 0; i < paths.size(); i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append("'").append(QueryUtils.makeStringLiteral(paths.get(i))).append("'");
+		}
+		query.append(")");
+		debug("Query {0}", query);
+
+		new QueryHelper(this).perform(query.toString(), new IQueryProcessor() {
+			public boolean process(IDfTypedObject obj) throws DfException {
+				String id = obj.getString("r_object_id");
+				int count = obj.getValueCount("r_folder_path");
+				for (int i = 0; i < count; i++) {
+					String path = obj.getRepeatingString("r_folder_path", i);
+					if (paths.contains(path)) {
+						result.put(path, id);
+						put(path, id);
+					}
+				}
+				return true;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Создает папку. Если папку одновременно создала другая сессия, возвращает
+	 * ее.
+	 */
+	private IDfFolder create(String name, String type, String parentId) throws DfException {
+		debug("Create new folder {0}, {1}, parent {2}", name, type, parentId);
+		IDfFolder folder = (IDfFolder) session.newObject(type);
+		folder.setObjectName(name);
+		if (ownerName.length() > 0) {
+			folder.setOwnerName(ownerName);
+		}
+		if (parentId != null) {
+			folder.link(parentId);
+		}
+		if (aclName.length() > 0) {
+			debug("Set acl name {0}", aclName);
+			folder.setACLName(aclName);
+			folder.setACLDomain(session.getDocbaseOwnerName());
+		}
+		try {
+			folder.save();
+			created.incrementAndGet();
+			return folder;
+		} catch (DfException ex) {
+			String path = parentId == null ? "/" + name
+					: ((IDfFolder) session.getObject(new DfId(parentId))).getFolderPath(0) + "/" + name;
+			IDfFolder other = session.getFolderByPath(path);
+			if (other == null) {
+				throw ex;
+			}
+			races.incrementAndGet();
+			debug("Folder {0} was created concurrently, {1}", path, other.getObjectId());
+			return other;
+		}
+	}
+
+	/**
+	 * Возвращает папку из кэша, если запись еще действительна.
+	 */
+	private IDfFolder getCached(String folderPath) throws DfException {
+		String id;
+		synchronized (cache) {
+			id = cache.get(key(folderPath));
+		}
+		if (id == null) {
+			return null;
+		}
+		try {
+			IDfPersistentObject object = session.getObject(new DfId(id));
+			if (object instanceof IDfFolder) {
+				IDfFolder folder = (IDfFolder) object;
+				for (int i = 0; i < folder.getFolderPathCount(); i++) {
+					if (folderPath.equals(folder.getFolderPath(i))) {
+						return folder;
+					}
+				}
+			}
+		} catch (DfException ex) {
+			debug("Cached folder {0} is not available: {1}", id, ex.getMessage());
+		}
+		stale.incrementAndGet();
+		invalidate(folderPath);
+		return null;
+	}
+
+	private void put(String folderPath, String id) {
+		synchronized (cache) {
+			cache.put(key(folderPath), id);
+		}
+	}
+
+	private String key(String folderPath) {
+		try {
+			return session.getDocbaseName() + ":" + folderPath;
+		} catch (DfException ex) {
+			return folderPath;
+		}
+	}
+
+	/**
+	 * Разбивает путь на список путей всех папок: /A/B -> /A, /A/B.
+	 */
+	private static List<String> split(String folderPath) {
+		List<String> paths = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		for (String part : folderPath.split("/")) {
+			if (part.length() == 0) {
+				continue;
+			}
+			current.append("/").append(part);
+			paths.add(current.toString());
+		}
+		return paths;
+	}
+
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	public static long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Число записей кэша, оказавшихся недействительными.
+	 */
+	public static long getStaleCount() {
+		return stale.get();
+	}
+
+	public static long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * Число случаев, когда папку одновременно создала другая сессия.
+	 */
+	public static long getRaceCount() {
+		return races.get();
+	}
+
+	public static double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public static void setMaxCacheSize(int size) {
+		maxCacheSize = size;
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public String getCabinetType() {
+		return cabinetType;
+	}
+
+	public void setCabinetType(String cabinetType) {
+		this.cabinetType = cabinetType;
+	}
+
+	public String getFolderType() {
+		return folderType;
+	}
+
+	public void setFolderType(String folderType) {
+		this.folderType = folderType;
+	}
+
+	public String getLastFolderType() {
+		return lastFolderType;
+	}
+
+	public void setLastFolderType(String lastFolderType) {
+		this.lastFolderType = lastFolderType;
+	}
+
+	public String getAclName() {
+		return aclName;
+	}
+
+	public void setAclName(String aclName) {
+		this.aclName = aclName;
+	}
+
+	public String getOwnerName() {
+		return ownerName;
+	}
+
+	public void setOwnerName(String ownerName) {
+		this.ownerName = ownerName;
+	}
+}
@@ -0,0 +1,190 @@
+package framework.ru.documentum.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import framework.ru.documentum.services.DsHelper;
+
+import com.documentum.fc.client.IDfFormat;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+
+/**
+ * Кэш описаний форматов (dm_format) для всех модулей. <br>
+ *
+ * Все форматы репозитория загружаются одним запросом и обновляются не чаще
+ * одного раза в refreshInterval или по вызову refresh. Формат, которого нет
+ * в кэше (например, созданный после загрузки), запрашивается через
+ * session.getFormat и добавляется в кэш.
+ */
+public class FormatRegistry extends DsHelper {
+
+    private static final String QUERY = "select name, dos_extension, mime_type from dm_format";
+
+    private static long refreshInterval = 60 * 60 * 1000;
+
+    private static final Map<String, Snapshot> docbases = new HashMap<String, Snapshot>();
+
+    /**
+     * Описание формата.
+     */
+    public static class FormatInfo {
+	private final String name;
+	private final String dosExtension;
+	private final String mimeType;
+
+	public FormatInfo(String name, String dosExtension, String mimeType) {
+	    this.name = name;
+	    this.dosExtension = dosExtension == null ? "" : dosExtension;
+	    this.mimeType = mimeType == null ? "" : mimeType;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public String getDosExtension() {
+	    return dosExtension;
+	}
+
+	public String getMimeType() {
+	    return mimeType;
+	}
+    }
+
+    /**
+     * Форматы одного репозитория.
+     */
+    private static class Snapshot {
+	private final Map<String, FormatInfo> formats;
+	private final long loadedAt = System.currentTimeMillis();
+
+	private Snapshot(Map<String, FormatInfo> formats) {
+	    this.formats = formats;
+	}
+    }
+
+    public FormatRegistry(IDfSession session) {
+	super(session);
+    }
+
+    public FormatRegistry(DsHelper helper) {
+	super(helper);
+    }
+
+    /**
+     * Возвращает описание формата.
+     *
+     * @param name
+     *            Имя формата.
+     * @return Описание или null, если формат не найден.
+     */
+    public FormatInfo getFormat(String name) throws DfException {
+	if (name == null || name.length() == 0) {
+	    return null;
+	}
+	Snapshot snapshot = getSnapshot();
+	FormatInfo info;
+	synchronized (snapshot.formats) {
+	    info = snapshot.formats.get(name);
+	}
+	if (info != null) {
+	    return info;
+	}
+
+	IDfFormat format = session.getFormat(name);
+	if (format == null) {
+	    return null;
+	}
+	info = new FormatInfo(format.getName(), format.getDOSExtension(), format.getMIMEType());
+	synchronized (snapshot.formats) {
+	    snapshot.formats.put(name, info);
+	}
+	debug("Format {0} added to registry", name);
+	return info;
+    }
+
+    /**
+     * Возвращает расширение файла для формата.
+     *
+     * @param name
+     *            Имя формата.
+     * @return Расширение или null, если формат не найден.
+     */
+    public String getDosExtension(String name) throws DfException {
+	FormatInfo info = getFormat(name);
+	return info == null ? null : info.getDosExtension();
+    }
+
+    /**
+     * Возвращает MIME-тип формата.
+     *
+     * @param name
+     *            Имя формата.
+     * @return MIME-тип или null, если формат не найден.
+     */
+    public String getMimeType(String name) throws DfException {
+	FormatInfo info = getFormat(name);
+	return info == null ? null : info.getMimeType();
+    }
+
+    /**
+     * Перечитывает форматы репозитория текущей сессии.
+     */
+    public void refresh() throws DfException {
+	Snapshot snapshot = load();
+	synchronized (docbases) {
+	    docbases.put(session.getDocbaseName(), snapshot);
+	}
+    }
+
+    private Snapshot getSnapshot() throws DfException {
+	String docbase = session.getDocbaseName();
+	Snapshot snapshot;
+	synchronized (docbases) {
+	    snapshot = docbases.get(docbase);
+	}
+	if (snapshot != null && System.currentTimeMillis() - snapshot.loadedAt < refreshInterval) {
+	    return snapshot;
+	}
+	snapshot = load();
+	synchronized (docbases) {
+	    docbases.put(docbase, snapshot);
+	}
+	return snapshot;
+    }
+
+    private Snapshot load() throws DfException {
+	final Map<String, FormatInfo> formats = new HashMap<String, FormatInfo>();
+	new QueryHelper(this).perform(QUERY, new IQueryProcessor() {
+	    public boolean process(IDfTypedObject obj) throws DfException {
+		String name = obj.getString("name");
+		formats.put(name, new FormatInfo(name, obj.getString("dos_extension"), obj.getString("mime_type")));
+		return true;
+	    }
+	});
+	debug("Format registry loaded, {0} formats", formats.size());
+	return new Snapshot(formats);
+    }
+
+    public static long getRefreshInterval() {
+	return refreshInterval;
+    }
+
+    /**
+     * Интервал обновления, мс.
+     */
+    public static void setRefreshInterval(long refreshInterval) {
+	FormatRegistry.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Очищает кэш всех репозиториев.
+     */
+    public static void clear() {
+	synchronized (docbases) {
+	    docbases.clear();
+	}
+    }
+}
@@ -1,8 +1,11 @@
 package framework.ru.documentum.utils;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.documentum.fc.client.IDfPersistentObject;
@@ -13,22 +16,100 @@ import com.documentum.fc.common.IDfTime;
 
 /**
  * Заменяет в строке конструкции вида {attr1} на значения атрибутов объектов.
+ * <br>
+ * Строка формата разбирается один раз в шаблон (литералы и подстановки
+ * атрибутов), шаблоны хранятся в общем кэше ограниченного размера.
  */
 public class FormatStringHelper {
 
+    private static int maxTemplates = 1000;
+
+    private static final Map<String, Template> templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+	    return size() > maxTemplates;
+	}
+    };
+
+    /**
+     * Форматы дат по шаблону даты; SimpleDateFormat не потокобезопасен,
+     * поэтому у каждого потока свой экземпляр.
+     */
+    private static final Map<String, ThreadLocal<SimpleDateFormat>> dateFormats = new HashMap<String, ThreadLocal<SimpleDateFormat>>();
+
+    /**
+     * Подстановка {key.attr,modifier}.
+     */
+    private static class Slot {
+	private final String keyName;
+	private final String attribute;
+	private final String modifier;
+
+	private Slot(String text) {
+	    String attribute = text;
+	    String modifier = "";
+	    int modifierPosition = attribute.indexOf(',');
+	    if (modifierPosition > -1) {
+		modifier = attribute.substring(modifierPosition + 1);
+		attribute = attribute.substring(0, modifierPosition);
+	    }
+	    String keyName = "";
+	    int i = attribute.indexOf(".");
+	    if (i > 0) {
+		keyName = attribute.substring(0, i);
+		attribute = attribute.substring(i + 1);
+	    }
+	    this.keyName = keyName;
+	    this.attribute = attribute;
+	    this.modifier = modifier;
+	}
+    }
+
+    /**
+     * Разобранная строка формата: элементы - строки (литералы) и Slot.
+     */
+    private static class Template {
+	private final Object[] segments;
+	private final int literalLength;
+
+	private Template(String format) {
+	    List<Object> segments = new ArrayList<Object>();
+	    int literalLength = 0;
+	    int position = 0;
+	    while (true) {
+		int i = format.indexOf("{", position);
+		if (i == -1) {
+		    break;
+		}
+		int k = format.indexOf("}", i);
+		if (k == -1) {
+		    break;
+		}
+		if (i > position) {
+		    segments.add(format.substring(position, i));
+		    literalLength += i - position;
+		}
+		segments.add(new Slot(format.substring(i + 1, k)));
+		position = k + 1;
+	    }
+	    if (position < format.length()) {
+		segments.add(format.substring(position));
+		literalLength += format.length() - position;
+	    }
+	    this.segments = segments.toArray();
+	    this.literalLength = literalLength;
+	}
+    }
+
     private Map<String, IDfTypedObject> objects = new HashMap<String, IDfTypedObject>();
     private Map<String, String> table = new HashMap<String, String>();
     private boolean forQuery = false;
     private IFormatStringHelperProvider provider;
     private String dateFormat;
 
-    private String formatAttribute(String attribute) throws DfException {
-	int i = attribute.indexOf(".");
-	String keyName = "";
-	if (i > 0) {
-	    keyName = attribute.substring(0, i);
-	    attribute = attribute.substring(i + 1);
-	}
+    private String formatAttribute(String keyName, String attribute) throws DfException {
 	String value;
 	IDfTypedObject object = objects.get(keyName);
 
@@ -37,11 +118,10 @@ public class FormatStringHelper {
 	    if ((dataType == IDfAttr.DM_TIME) && (dateFormat != null)) {
 		IDfTime time = object.getTime(attribute);
 		Date date = time.getDate();
-		SimpleDateFormat format = new SimpleDateFormat(dateFormat);
 		if (date == null) {
 		    value = "";
 		} else {
-		    value = format.format(date);
+		    value = getDateFormat(dateFormat).format(date);
 		}
 	    } else {
 		value = object.getString(attribute);
@@ -58,45 +138,67 @@ public class FormatStringHelper {
 
     }
 
-    public String format(String format) throws DfException {
-	String s = format;
-	int currentPosition = 0;
-	while (true) {
-	    int i = s.indexOf("{", currentPosition);
-	    if (i == -1) {
-		break;
+    private static Template getTemplate(String format) {
+	Template template;
+	synchronized (templates) {
+	    template = templates.get(format);
+	}
+	if (template == null) {
+	    template = new Template(format);
+	    synchronized (templates) {
+		templates.put(format, template);
 	    }
+	}
+	return template;
+    }
 
-	    int k = s.indexOf("}", i);
-	    if (k == -1) {
-		break;
+    private static SimpleDateFormat getDateFormat(final String pattern) {
+	ThreadLocal<SimpleDateFormat> format;
+	synchronized (dateFormats) {
+	    format = dateFormats.get(pattern);
+	    if (format == null) {
+		format = new ThreadLocal<SimpleDateFormat>() {
+		    @Override
+		    protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(pattern);
+		    }
+		};
+		dateFormats.put(pattern, format);
 	    }
+	}
+	return format.get();
+    }
 
-	    String attribute = s.substring(i + 1, k);
-	    String modifier = "";
-
-	    int modifierPosition = attribute.indexOf(',');
-	    if (modifierPosition > -1) {
-		modifier = attribute.substring(modifierPosition + 1);
-		attribute = attribute.substring(0, modifierPosition);
+    public String format(String format) throws DfException {
+	Template template = getTemplate(format);
+	StringBuilder result = new StringBuilder(template.literalLength + 16 * template.segments.length);
+	for (Object segment : template.segments) {
+	    if (segment instanceof String) {
+		result.append((String) segment);
+		continue;
 	    }
+	    Slot slot = (Slot) segment;
+	    String value = formatAttribute(slot.keyName, slot.attribute);
 
-	    String value = formatAttribute(attribute);
-
-	    if (modifier.length() > 0) {
-		if ("String".equalsIgnoreCase(modifier)) {
+	    if (slot.modifier.length() > 0) {
+		if ("String".equalsIgnoreCase(slot.modifier)) {
 		    value = QueryUtils.makeStringLiteral(value);
-		} else if ("Like".equalsIgnoreCase(modifier)) {
+		} else if ("Like".equalsIgnoreCase(slot.modifier)) {
 		    value = QueryUtils.makeLikeLiteral(value);
 		}
 	    } else if (forQuery) {
 		value = QueryUtils.makeStringLiteral(value);
 	    }
-
-	    currentPosition = i + value.length();
-	    s = s.substring(0, i) + value + s.substring(k + 1);
+	    result.append(value);
 	}
-	return s;
+	return result.toString();
+    }
+
+    /**
+     * Максимальное число разобранных строк формата в кэше.
+     */
+    public static void setMaxTemplates(int size) {
+	maxTemplates = size;
     }
 
     public boolean isForQuery() {
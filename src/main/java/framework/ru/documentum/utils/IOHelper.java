@@ -4,16 +4,35 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * IO Helper.
+ * IO Helper. <br>
+ *
+ * Если одна из сторон копирования - файл, данные передаются через
+ * FileChannel.transferTo/transferFrom (без копирования в память Java, где
+ * это поддерживает ОС), иначе через буфер.
  */
 public class IOHelper {
 
+    private static final int BUFFER_SIZE = 4096 * 64;
+
     public ByteArrayOutputStream toByteArray(InputStream input) throws Exception {
-	ByteArrayOutputStream output = new ByteArrayOutputStream();
+	int size = 32;
+	if (input instanceof FileInputStream) {
+	    FileChannel channel = ((FileInputStream) input).getChannel();
+	    size = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(size, channel.size() - channel.position()));
+	}
+	ByteArrayOutputStream output = new ByteArrayOutputStream(size);
 	copy(input, output);
 	return output;
     }
@@ -25,7 +44,14 @@ public class IOHelper {
 	// str.read(bytes);
 	// out.write(bytes);
 
-	byte[] buffer = new byte[4096 * 64];
+	if (input instanceof FileInputStream) {
+	    return (int) copy(((FileInputStream) input).getChannel(), Channels.newChannel(output));
+	}
+	if (output instanceof FileOutputStream) {
+	    return (int) copy(Channels.newChannel(input), ((FileOutputStream) output).getChannel());
+	}
+
+	byte[] buffer = new byte[BUFFER_SIZE];
 	int readed;
 	int size = 0;
 	while ((readed = input.read(buffer)) != -1) {
@@ -43,7 +69,7 @@ public class IOHelper {
 	try {
 	    FileOutputStream out = new FileOutputStream(dest);
 	    try {
-		return copy(in, out);
+		return (int) copy(in.getChannel(), out.getChannel());
 	    } finally {
 		out.close();
 	    }
@@ -52,4 +78,170 @@ public class IOHelper {
 	}
 
     }
+
+    /**
+     * Копирует данные из канала в канал до конца входного канала. Каналы не
+     * закрываются.
+     *
+     * @return Число скопированных байт.
+     */
+    public long copy(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+	if (input instanceof FileChannel) {
+	    FileChannel in = (FileChannel) input;
+	    long start = in.position();
+	    long size = in.size();
+	    long position = start;
+	    while (position < size) {
+		long transferred = in.transferTo(position, size - position, output);
+		if (transferred <= 0) {
+		    break;
+		}
+		position += transferred;
+	    }
+	    in.position(position);
+	    return position - start;
+	}
+
+	if (output instanceof FileChannel) {
+	    FileChannel out = (FileChannel) output;
+	    long start = out.position();
+	    long position = start;
+	    while (true) {
+		long transferred = out.transferFrom(input, position, BUFFER_SIZE);
+		if (transferred <= 0) {
+		    break;
+		}
+		position += transferred;
+	    }
+	    out.position(position);
+	    return position - start;
+	}
+
+	ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	long size = 0;
+	while (input.read(buffer) != -1) {
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		size += output.write(buffer);
+	    }
+	    buffer.clear();
+	}
+	return size;
+    }
+
+    /**
+     * Отображает файл в память только для чтения. Данные не копируются в
+     * память Java и остаются доступны после закрытия файла.
+     *
+     * @param file
+     *            Файл (не больше 2 Гб).
+     * @return Буфер только для чтения.
+     */
+    public ByteBuffer map(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("File is too large to map: " + file + ", " + size);
+	    }
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    return buffer.asReadOnlyBuffer();
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Читает файл целиком в память Java. Файл после чтения не используется.
+     *
+     * @param file
+     *            Файл (не больше 2 Гб).
+     * @return Буфер только для чтения.
+     */
+    public ByteBuffer read(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("File is too large to read: " + file + ", " + size);
+	    }
+	    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+	    while (buffer.hasRemaining()) {
+		if (channel.read(buffer) == -1) {
+		    throw new IOException("Unexpected end of file: " + file);
+		}
+	    }
+	    buffer.flip();
+	    return buffer.asReadOnlyBuffer();
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Поток чтения буфера с его текущей позиции. Позиция самого буфера не
+     * меняется.
+     */
+    public InputStream toInputStream(ByteBuffer buffer) {
+	return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	private int mark;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	    this.mark = buffer.position();
+	}
+
+	@Override
+	public int read() {
+	    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+	    if (length == 0) {
+		return 0;
+	    }
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+	    int count = Math.min(length, buffer.remaining());
+	    buffer.get(bytes, offset, count);
+	    return count;
+	}
+
+	@Override
+	public long skip(long n) {
+	    int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+	    buffer.position(buffer.position() + count);
+	    return count;
+	}
+
+	@Override
+	public int available() {
+	    return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+	    return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	    mark = buffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+	    buffer.position(mark);
+	}
+    }
 }
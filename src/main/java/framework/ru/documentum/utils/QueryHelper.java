@@ -1,6 +1,8 @@
 package framework.ru.documentum.utils;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 import framework.ru.documentum.services.DsHelper;
 
@@ -8,6 +10,7 @@ import com.documentum.fc.client.DfQuery;
 import com.documentum.fc.client.IDfCollection;
 import com.documentum.fc.client.IDfQuery;
 import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfTypedObject;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 
@@ -116,4 +119,47 @@ public class QueryHelper extends DsHelper {
 	    }
 	}
     }
+
+    /**
+     * Метод выполняет запрос и преобразует строки результата маппером.
+     * Индексы колонок определяются один раз, по первой строке.
+     * 
+     * @param query
+     *            Запрос.
+     * @param mapper
+     *            Маппер строк.
+     * @return Объекты, по одному на строку.
+     */
+    public <T> List<T> perform(String query, final RowMapper<T> mapper) throws DfException {
+	final List<T> result = new ArrayList<T>();
+	perform(query, new IQueryProcessor() {
+
+	    private RowMapper.Row row;
+
+	    public boolean process(IDfTypedObject obj) throws DfException {
+		if (row == null) {
+		    row = mapper.bind(obj);
+		}
+		result.add(mapper.map(row));
+		return true;
+	    }
+	});
+	return result;
+    }
+
+    /**
+     * Метод выполняет запрос и преобразует строки результата маппером.
+     * Строка запроса обрабатывается MessageFormat.format.
+     * 
+     * @param query
+     *            Запрос.
+     * @param mapper
+     *            Маппер строк.
+     * @param args
+     *            Аргументы для формирования запроса.
+     * @return Объекты, по одному на строку.
+     */
+    public <T> List<T> performArgs(String query, RowMapper<T> mapper, Object... args) throws DfException {
+	return perform(MessageFormat.format(query, args), mapper);
+    }
 }
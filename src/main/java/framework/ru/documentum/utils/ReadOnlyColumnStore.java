@@ -0,0 +1,521 @@
+package framework.ru.documentum.utils;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import com.documentum.fc.client.IDfPersistentObject;
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.IDfAttr;
+
+import framework.ru.documentum.utils.ReadOnlyTypedObjectFactory.Attr;
+
+/**
+ * Колоночное хранилище результата запроса для больших кэшей.
+ * <p>
+ * Вместо объекта со своим массивом значений на каждую строку хранится по
+ * одному типизированному массиву на атрибут: int[], double[], long[] для
+ * дат, BitSet для boolean. Строки кодируются словарем (статусы, имена
+ * пользователей, типы повторяются тысячи раз и хранятся один раз); если
+ * словарь колонки вырастает больше maxDictionarySize, колонка переходит на
+ * хранение строк в UTF-8, как в ReadOnlyTypedObject. Значения повторяющихся
+ * атрибутов всех строк лежат в одной колонке, строка ссылается на них через
+ * смещения.
+ * <p>
+ * Строки читаются через get(row) / asList(): это легкие объекты
+ * ReadOnlyPersistentObject (хранилище и номер строки), создаваемые при
+ * обращении. Заполнение не потокобезопасно; после заполнения хранилище
+ * можно читать из нескольких потоков.
+ */
+public class ReadOnlyColumnStore {
+
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 4096;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ReadOnlyTypedObjectFactory factory;
+
+    private final List<Column> columns = new ArrayList<Column>();
+
+    private int size;
+
+    private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+
+    /**
+     * Конструктор.
+     * 
+     * @param factory
+     *            Описание атрибутов строк. Атрибуты, добавленные в factory
+     *            после первых строк, у этих строк пустые.
+     */
+    public ReadOnlyColumnStore(ReadOnlyTypedObjectFactory factory) {
+	this.factory = factory;
+    }
+
+    /**
+     * Конструктор. Атрибуты определяются по первой строке, фабрика берется
+     * общая для такого набора атрибутов (ReadOnlyTypedObjectFactory.getShared);
+     * атрибуты из map первой строки, которых нет в ней самой, добавляются
+     * строковыми.
+     */
+    public ReadOnlyColumnStore() {
+    }
+
+    public ReadOnlyTypedObjectFactory getFactory() {
+	return factory;
+    }
+
+    /**
+     * Максимальный размер словаря строковой колонки. 0 - без словарей.
+     */
+    public void setMaxDictionarySize(int maxDictionarySize) {
+	this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * Добавляет текущую строку коллекции.
+     */
+    public void add(IDfTypedObject src) throws DfException {
+	add(src, null);
+    }
+
+    /**
+     * Добавляет строку. Атрибуты, которых нет в src, берутся из map, как в
+     * ReadOnlyTypedObject.
+     */
+    public void add(IDfTypedObject src, Map<String, Object> map) throws DfException {
+	if (factory == null) {
+	    List<String> extraAttrs = new ArrayList<String>();
+	    if (map != null) {
+		for (String name : map.keySet()) {
+		    if (!src.hasAttr(name)) {
+			extraAttrs.add(name);
+		    }
+		}
+		Collections.sort(extraAttrs);
+	    }
+	    factory = ReadOnlyTypedObjectFactory.getShared(src, extraAttrs.toArray(new String[extraAttrs.size()]));
+	}
+	ensureColumns();
+	for (int i = 0; i < columns.size(); i++) {
+	    Attr attr = factory.getAttr(i);
+	    String name = attr.getName();
+	    Column column = columns.get(i);
+	    if (map == null || src.hasAttr(name)) {
+		if (attr.isRepeating()) {
+		    int count = src.getValueCount(name);
+		    for (int j = 0; j < count; j++) {
+			column.add(readRepeating(attr, src, j));
+		    }
+		    ((RepeatingColumn) column).endRow();
+		} else {
+		    column.add(read(attr, src));
+		}
+	    } else {
+		Object value = map.get(name);
+		if (attr.isRepeating()) {
+		    if (value != null) {
+			for (Object item : (Object[]) value) {
+			    column.add(item);
+			}
+		    }
+		    ((RepeatingColumn) column).endRow();
+		} else {
+		    column.add(value);
+		}
+	    }
+	}
+	size++;
+    }
+
+    private Object read(Attr attr, IDfTypedObject src) throws DfException {
+	String name = attr.getName();
+	switch (attr.getDataType()) {
+	case IDfAttr.DM_STRING:
+	case IDfAttr.DM_ID:
+	    return src.getString(name);
+	case IDfAttr.DM_TIME:
+	    return src.getTime(name).getDate();
+	case IDfAttr.DM_INTEGER:
+	    return src.getInt(name);
+	case IDfAttr.DM_DOUBLE:
+	    return src.getDouble(name);
+	case IDfAttr.DM_BOOLEAN:
+	    return src.getBoolean(name);
+	default:
+	    throw new DfException("Invalid attr type " + name + ", " + attr.getDataType());
+	}
+    }
+
+    private Object readRepeating(Attr attr, IDfTypedObject src, int index) throws DfException {
+	String name = attr.getName();
+	switch (attr.getDataType()) {
+	case IDfAttr.DM_STRING:
+	case IDfAttr.DM_ID:
+	    return src.getRepeatingString(name, index);
+	case IDfAttr.DM_TIME:
+	    return src.getRepeatingTime(name, index).getDate();
+	case IDfAttr.DM_INTEGER:
+	    return src.getRepeatingInt(name, index);
+	case IDfAttr.DM_DOUBLE:
+	    return src.getRepeatingDouble(name, index);
+	case IDfAttr.DM_BOOLEAN:
+	    return src.getRepeatingBoolean(name, index);
+	default:
+	    throw new DfException("Invalid attr type " + name + ", " + attr.getDataType());
+	}
+    }
+
+    private void ensureColumns() throws DfException {
+	for (int i = columns.size(); i < factory.getAttrCount(); i++) {
+	    Attr attr = factory.getAttr(i);
+	    Column column = createColumn(attr.getDataType());
+	    if (attr.isRepeating()) {
+		column = new RepeatingColumn(column);
+	    }
+	    for (int row = 0; row < size; row++) {
+		if (attr.isRepeating()) {
+		    ((RepeatingColumn) column).endRow();
+		} else {
+		    column.add(null);
+		}
+	    }
+	    columns.add(column);
+	}
+    }
+
+    private Column createColumn(int dataType) throws DfException {
+	switch (dataType) {
+	case IDfAttr.DM_STRING:
+	case IDfAttr.DM_ID:
+	    return new StringColumn(maxDictionarySize);
+	case IDfAttr.DM_TIME:
+	    return new TimeColumn();
+	case IDfAttr.DM_INTEGER:
+	    return new IntColumn();
+	case IDfAttr.DM_DOUBLE:
+	    return new DoubleColumn();
+	case IDfAttr.DM_BOOLEAN:
+	    return new BooleanColumn();
+	default:
+	    throw new DfException("Invalid attr type " + dataType);
+	}
+    }
+
+    /**
+     * Обрезает массивы колонок до числа строк. Вызывается после заполнения.
+     */
+    public void trim() {
+	for (Column column : columns) {
+	    column.trim();
+	}
+    }
+
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Строка хранилища.
+     */
+    public ReadOnlyPersistentObject get(int row) {
+	if (row < 0 || row >= size) {
+	    throw new IndexOutOfBoundsException("Row " + row + ", size " + size);
+	}
+	return new ReadOnlyPersistentObject(this, row);
+    }
+
+    /**
+     * Неизменяемый список строк хранилища.
+     */
+    public List<IDfPersistentObject> asList() {
+	return new RowList();
+    }
+
+    /**
+     * Значение атрибута строки: String, Date, Integer, Double, Boolean или
+     * null.
+     */
+    Object getValue(int row, int column) {
+	if (column >= columns.size()) {
+	    return null;
+	}
+	return columns.get(column).get(row);
+    }
+
+    int getValueCount(int row, int column) {
+	if (column >= columns.size()) {
+	    return 0;
+	}
+	return ((RepeatingColumn) columns.get(column)).getCount(row);
+    }
+
+    Object getRepeatingValue(int row, int column, int index) {
+	RepeatingColumn repeating = (RepeatingColumn) columns.get(column);
+	if (index < 0 || index >= repeating.getCount(row)) {
+	    throw new IndexOutOfBoundsException("Index " + index + ", count " + repeating.getCount(row));
+	}
+	return repeating.getRepeating(row, index);
+    }
+
+    private class RowList extends AbstractList<IDfPersistentObject> implements RandomAccess {
+
+	@Override
+	public IDfPersistentObject get(int index) {
+	    return ReadOnlyColumnStore.this.get(index);
+	}
+
+	@Override
+	public int size() {
+	    return size;
+	}
+    }
+
+    /**
+     * Колонка однотипных значений; для обычных атрибутов номер значения
+     * совпадает с номером строки.
+     */
+    private abstract static class Column {
+
+	protected int count;
+
+	abstract void add(Object value);
+
+	abstract Object get(int index);
+
+	abstract void trim();
+
+	protected int grow(int length) {
+	    return length == 0 ? INITIAL_CAPACITY : length * 2;
+	}
+    }
+
+    private static class StringColumn extends Column {
+
+	private final int maxDictionarySize;
+
+	private ArrayList<String> dictionary = new ArrayList<String>();
+
+	private Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	private int[] indexes = new int[0];
+
+	private byte[][] plain;
+
+	StringColumn(int maxDictionarySize) {
+	    this.maxDictionarySize = maxDictionarySize;
+	}
+
+	@Override
+	void add(Object value) {
+	    String str = (String) value;
+	    if (plain != null) {
+		if (count == plain.length) {
+		    plain = Arrays.copyOf(plain, grow(count));
+		}
+		plain[count++] = str == null ? null : str.getBytes(CHARSET);
+		return;
+	    }
+	    int code = -1;
+	    if (str != null) {
+		Integer existing = codes.get(str);
+		if (existing == null) {
+		    if (dictionary.size() >= maxDictionarySize) {
+			toPlain();
+			add(value);
+			return;
+		    }
+		    existing = dictionary.size();
+		    dictionary.add(str);
+		    codes.put(str, existing);
+		}
+		code = existing;
+	    }
+	    if (count == indexes.length) {
+		indexes = Arrays.copyOf(indexes, grow(count));
+	    }
+	    indexes[count++] = code;
+	}
+
+	private void toPlain() {
+	    plain = new byte[Math.max(indexes.length, INITIAL_CAPACITY)][];
+	    for (int i = 0; i < count; i++) {
+		plain[i] = indexes[i] < 0 ? null : dictionary.get(indexes[i]).getBytes(CHARSET);
+	    }
+	    dictionary = null;
+	    codes = null;
+	    indexes = null;
+	}
+
+	@Override
+	Object get(int index) {
+	    if (plain != null) {
+		return plain[index] == null ? "" : new String(plain[index], CHARSET);
+	    }
+	    int code = indexes[index];
+	    return code < 0 ? "" : dictionary.get(code);
+	}
+
+	@Override
+	void trim() {
+	    if (plain != null) {
+		plain = Arrays.copyOf(plain, count);
+	    } else {
+		indexes = Arrays.copyOf(indexes, count);
+		// словарь нужен только для чтения
+		codes = new HashMap<String, Integer>();
+		((ArrayList<String>) dictionary).trimToSize();
+	    }
+	}
+    }
+
+    private static class TimeColumn extends Column {
+
+	private static final long NULL = Long.MIN_VALUE;
+
+	private long[] values = new long[0];
+
+	@Override
+	void add(Object value) {
+	    if (count == values.length) {
+		values = Arrays.copyOf(values, grow(count));
+	    }
+	    values[count++] = value == null ? NULL : ((Date) value).getTime();
+	}
+
+	@Override
+	Object get(int index) {
+	    return values[index] == NULL ? null : new Date(values[index]);
+	}
+
+	@Override
+	void trim() {
+	    values = Arrays.copyOf(values, count);
+	}
+    }
+
+    private static class IntColumn extends Column {
+
+	private int[] values = new int[0];
+
+	@Override
+	void add(Object value) {
+	    if (count == values.length) {
+		values = Arrays.copyOf(values, grow(count));
+	    }
+	    values[count++] = value == null ? 0 : (Integer) value;
+	}
+
+	@Override
+	Object get(int index) {
+	    return values[index];
+	}
+
+	@Override
+	void trim() {
+	    values = Arrays.copyOf(values, count);
+	}
+    }
+
+    private static class DoubleColumn extends Column {
+
+	private double[] values = new double[0];
+
+	@Override
+	void add(Object value) {
+	    if (count == values.length) {
+		values = Arrays.copyOf(values, grow(count));
+	    }
+	    values[count++] = value == null ? 0 : (Double) value;
+	}
+
+	@Override
+	Object get(int index) {
+	    return values[index];
+	}
+
+	@Override
+	void trim() {
+	    values = Arrays.copyOf(values, count);
+	}
+    }
+
+    private static class BooleanColumn extends Column {
+
+	private final BitSet values = new BitSet();
+
+	@Override
+	void add(Object value) {
+	    values.set(count++, value != null && (Boolean) value);
+	}
+
+	@Override
+	Object get(int index) {
+	    return values.get(index);
+	}
+
+	@Override
+	void trim() {
+	}
+    }
+
+    /**
+     * Значения повторяющегося атрибута всех строк подряд; offsets[row] -
+     * номер первого значения строки.
+     */
+    private static class RepeatingColumn extends Column {
+
+	private final Column values;
+
+	private int[] offsets = new int[] { 0 };
+
+	RepeatingColumn(Column values) {
+	    this.values = values;
+	}
+
+	@Override
+	void add(Object value) {
+	    values.add(value);
+	}
+
+	/**
+	 * Завершает значения текущей строки.
+	 */
+	void endRow() {
+	    if (count + 1 == offsets.length) {
+		offsets = Arrays.copyOf(offsets, offsets.length * 2);
+	    }
+	    offsets[++count] = values.count;
+	}
+
+	int getCount(int row) {
+	    return offsets[row + 1] - offsets[row];
+	}
+
+	Object getRepeating(int row, int index) {
+	    return values.get(offsets[row] + index);
+	}
+
+	@Override
+	Object get(int row) {
+	    return getCount(row) == 0 ? null : getRepeating(row, 0);
+	}
+
+	@Override
+	void trim() {
+	    offsets = Arrays.copyOf(offsets, count + 1);
+	    values.trim();
+	}
+    }
+}
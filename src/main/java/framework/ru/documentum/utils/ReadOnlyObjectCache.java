@@ -0,0 +1,348 @@
+package framework.ru.documentum.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import framework.ru.documentum.services.DsHelper;
+
+import com.documentum.fc.client.IDfPersistentObject;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSysObject;
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfId;
+import com.documentum.fc.common.IDfId;
+
+/**
+ * Общий для процесса кэш объектов только для чтения (ReadOnlyPersistentObject)
+ * по r_object_id. <br>
+ *
+ * Предназначен для справочных объектов (пользователи, должности,
+ * справочники, настройки), которые читаются часто, а меняются редко. Объект
+ * загружается один раз сессией первого обратившегося пользователя, и getObject
+ * отдает его всем остальным без проверки их прав: пользователь без доступа к
+ * объекту получит его, если объект уже в кэше. Поэтому кэшировать можно только
+ * объекты, доступные всем пользователям. <br>
+ *
+ * В течение времени жизни (задается для типа, setTimeToLive) объект
+ * отдается без обращения к серверу. После этого запись проверяется по
+ * i_vstamp: устаревшие записи проверяются одним запросом на тип
+ * "select r_object_id, i_vstamp" (для типов dm_sysobject - "from тип (all)",
+ * чтобы были видны и не текущие версии), объект загружается заново, только если
+ * i_vstamp изменился. После изменения объекта в своем коде вызывайте
+ * invalidate. Размер кэша ограничен, вытесняются давно не использованные
+ * записи.
+ */
+public class ReadOnlyObjectCache extends DsHelper {
+
+	private static final int CHUNK_SIZE = 250;
+
+	private static int maxCacheSize = 10000;
+
+	private static long defaultTimeToLive = 5 * 60 * 1000;
+
+	private static final Map<String, Long> timeToLive = new HashMap<String, Long>();
+
+	private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() > maxCacheSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong stale = new AtomicLong();
+	private static final AtomicLong validations = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		private final IDfPersistentObject object;
+		private final String type;
+		private final boolean sysObject;
+		private final int vstamp;
+		private volatile long validatedAt = System.currentTimeMillis();
+
+		private Entry(IDfPersistentObject object, String type, boolean sysObject, int vstamp) {
+			this.object = object;
+			this.type = type;
+			this.sysObject = sysObject;
+			this.vstamp = vstamp;
+		}
+	}
+
+	public ReadOnlyObjectCache(DsHelper helper) {
+		super(helper);
+	}
+
+	public ReadOnlyObjectCache(IDfSession session) {
+		super(session);
+	}
+
+	/**
+	 * Возвращает объект из кэша, при необходимости загружает его.
+	 *
+	 * @param objectId
+	 *            Идентификатор объекта.
+	 * @return Объект только для чтения.
+	 */
+	public IDfPersistentObject getObject(IDfId objectId) throws DfException {
+		return getObject(objectId.getId());
+	}
+
+	/**
+	 * Возвращает объект из кэша, при необходимости загружает его.
+	 *
+	 * @param objectId
+	 *            Идентификатор объекта.
+	 * @return Объект только для чтения.
+	 */
+	public IDfPersistentObject getObject(String objectId) throws DfException {
+		IDfPersistentObject object = getObjects(Collections.singleton(objectId)).get(objectId);
+		if (object == null) {
+			throw new DfException("Object not found: " + objectId);
+		}
+		return object;
+	}
+
+	/**
+	 * Возвращает объекты из кэша. Устаревшие записи проверяются одним
+	 * запросом на тип, отсутствующие и измененные объекты загружаются.
+	 *
+	 * @param objectIds
+	 *            Идентификаторы объектов.
+	 * @return Идентификатор -> объект; удаленных объектов в результате нет.
+	 */
+	public Map<String, IDfPersistentObject> getObjects(Collection<String> objectIds) throws DfException {
+		Map<String, IDfPersistentObject> result = new LinkedHashMap<String, IDfPersistentObject>();
+		Map<String, Map<String, Entry>> expired = new HashMap<String, Map<String, Entry>>();
+		Set<String> load = new LinkedHashSet<String>();
+		long now = System.currentTimeMillis();
+
+		synchronized (cache) {
+			for (String objectId : objectIds) {
+				Entry entry = cache.get(objectId);
+				if (entry == null) {
+					load.add(objectId);
+				} else if (now - entry.validatedAt < getTimeToLive(entry.type)) {
+					result.put(objectId, entry.object);
+				} else {
+					Map<String, Entry> entries = expired.get(entry.type);
+					if (entries == null) {
+						entries = new HashMap<String, Entry>();
+						expired.put(entry.type, entries);
+					}
+					entries.put(objectId, entry);
+				}
+			}
+		}
+		hits.addAndGet(result.size());
+
+		for (Map.Entry<String, Map<String, Entry>> entries : expired.entrySet()) {
+			boolean sysObject = entries.getValue().values().iterator().next().sysObject;
+			Map<String, Integer> vstamps = queryVstamps(entries.getKey(), sysObject, entries.getValue().keySet());
+			for (Map.Entry<String, Entry> entry : entries.getValue().entrySet()) {
+				Integer vstamp = vstamps.get(entry.getKey());
+				if (vstamp != null && vstamp == entry.getValue().vstamp) {
+					entry.getValue().validatedAt = now;
+					result.put(entry.getKey(), entry.getValue().object);
+					hits.incrementAndGet();
+				} else {
+					stale.incrementAndGet();
+					remove(entry.getKey());
+					load.add(entry.getKey());
+				}
+			}
+		}
+
+		for (String objectId : load) {
+			misses.incrementAndGet();
+			IDfPersistentObject object = load(objectId);
+			if (object != null) {
+				result.put(objectId, object);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Загружает объект и помещает его копию только для чтения в кэш.
+	 */
+	private IDfPersistentObject load(String objectId) throws DfException {
+		IDfPersistentObject src;
+		try {
+			src = session.getObject(new DfId(objectId));
+		} catch (DfException e) {
+			debug("Cannot load object {0}: {1}", objectId, e.getMessage());
+			return null;
+		}
+		ReadOnlyPersistentObject object = new ReadOnlyPersistentObject(ReadOnlyTypedObjectFactory.getShared(src), src);
+		Entry entry = new Entry(object, src.getType().getName(), src instanceof IDfSysObject, src.getVStamp());
+		synchronized (cache) {
+			cache.put(objectId, entry);
+		}
+		return object;
+	}
+
+	/**
+	 * Читает i_vstamp объектов одного типа, по CHUNK_SIZE идентификаторов в
+	 * запросе. Для типов dm_sysobject запрос идет по всем версиям (all).
+	 */
+	private Map<String, Integer> queryVstamps(String type, boolean sysObject, Collection<String> objectIds) throws DfException {
+		final Map<String, Integer> result = new HashMap<String, Integer>();
+		List<String> ids = new ArrayList<String>(objectIds);
+		for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+			StringBuilder query = new StringBuilder("select r_object_id, i_vstamp from ").append(type).append(sysObject ? " (all)" : "")
+					.append(" where r_object_id in (");
+			for (int i = from; i < Math.min(from + CHUNK_SIZE, ids.size()); i++) {
+				if (i > from) {
+					query.append(", ");
+				}
+				query.append("'").append(QueryUtils.makeStringLiteral(ids.get(i))).append("'");
+			}
+			query.append(")");
+			validations.incrementAndGet();
+			new QueryHelper(this).perform(query.toString(), new IQueryProcessor() {
+				public boolean process(IDfTypedObject obj) throws DfException {
+					result.put(obj.getString("r_object_id"), obj.getInt("i_vstamp"));
+					return true;
+				}
+			});
+		}
+		return result;
+	}
+
+	private static long getTimeToLive(String type) {
+		synchronized (timeToLive) {
+			Long value = timeToLive.get(type);
+			return value == null ? defaultTimeToLive : value;
+		}
+	}
+
+	private static void remove(String objectId) {
+		synchronized (cache) {
+			cache.remove(objectId);
+		}
+	}
+
+	/**
+	 * Удаляет объект из кэша. Вызывается после изменения или удаления
+	 * объекта.
+	 *
+	 * @param objectId
+	 *            Идентификатор объекта.
+	 */
+	public static void invalidate(String objectId) {
+		remove(objectId);
+	}
+
+	public static void invalidate(IDfId objectId) {
+		remove(objectId.getId());
+	}
+
+	/**
+	 * Удаляет из кэша все объекты типа (без подтипов).
+	 *
+	 * @param type
+	 *            Имя типа.
+	 */
+	public static void invalidateType(String type) {
+		synchronized (cache) {
+			Iterator<Entry> entries = cache.values().iterator();
+			while (entries.hasNext()) {
+				if (entries.next().type.equals(type)) {
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Задает время, в течение которого объекты типа не проверяются по
+	 * i_vstamp.
+	 *
+	 * @param type
+	 *            Имя типа (без подтипов).
+	 * @param ms
+	 *            Время, мс; 0 - проверять при каждом обращении.
+	 */
+	public static void setTimeToLive(String type, long ms) {
+		synchronized (timeToLive) {
+			timeToLive.put(type, ms);
+		}
+	}
+
+	public static long getDefaultTimeToLive() {
+		return defaultTimeToLive;
+	}
+
+	/**
+	 * Время жизни для типов без setTimeToLive, мс.
+	 */
+	public static void setDefaultTimeToLive(long ms) {
+		defaultTimeToLive = ms;
+	}
+
+	public static void setMaxCacheSize(int size) {
+		maxCacheSize = size;
+	}
+
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	public static long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Число записей, загруженных заново из-за изменения i_vstamp или
+	 * удаления объекта.
+	 */
+	public static long getStaleCount() {
+		return stale.get();
+	}
+
+	/**
+	 * Число запросов проверки i_vstamp.
+	 */
+	public static long getValidationCount() {
+		return validations.get();
+	}
+
+	public static long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public static double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+}
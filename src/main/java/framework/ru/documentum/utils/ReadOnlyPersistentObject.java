@@ -27,6 +27,13 @@ public class ReadOnlyPersistentObject extends ReadOnlyTypedObject implements IDf
 	super(factory, src, map);
     }
 
+    /**
+     * Представление строки колоночного хранилища.
+     */
+    public ReadOnlyPersistentObject(ReadOnlyColumnStore store, int row) {
+	super(store, row);
+    }
+
     @Override
     public IDfRelation addChildRelative(String s, IDfId idfid, String s1, boolean flag, String s2) throws DfException {
 	notImpl();
@@ -1,12 +1,12 @@
 package framework.ru.documentum.utils;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.documentum.fc.client.IDfPersistentObject;
+import com.documentum.fc.client.IDfQuery;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.client.IDfTypedObject;
 import com.documentum.fc.common.DfException;
@@ -14,6 +14,10 @@ import com.documentum.fc.common.IDfAttr;
 
 import framework.ru.documentum.services.DsHelper;
 
+/**
+ * Запросы на чтение. Результат performQuery хранится в ReadOnlyColumnStore,
+ * строки - представления ReadOnlyPersistentObject над его колонками.
+ */
 public class ReadOnlyQueryHelper extends DsHelper {
 
     public ReadOnlyQueryHelper(IDfSession session) {
@@ -24,9 +28,7 @@ public class ReadOnlyQueryHelper extends DsHelper {
 
 	TimeSpanDebugHelper timeSpan = new TimeSpanDebugHelper();
 
-	final List<IDfPersistentObject> result = new ArrayList<IDfPersistentObject>();
-
-	final ReadOnlyTypedObjectFactory factory = new ReadOnlyTypedObjectFactory();
+	final ReadOnlyColumnStore store = new ReadOnlyColumnStore();
 
 	debug("Building query {0}", query);
 
@@ -34,28 +36,24 @@ public class ReadOnlyQueryHelper extends DsHelper {
 	helper.perform(query, new IQueryProcessor() {
 
 	    public boolean process(IDfTypedObject coll) throws DfException {
-		factory.init(coll);
-		ReadOnlyPersistentObject obj = new ReadOnlyPersistentObject(factory, coll);
-
-		result.add(obj);
+		store.add(coll);
 		return true;
 	    }
 	});
+	store.trim();
 
 	if (timeSpan.complete()) {
-	    debug("Readed records {0}", result.size());
+	    debug("Readed records {0}", store.size());
 	}
 
-	return result;
+	return store.asList();
     }
 
     public List<IDfPersistentObject> performQueryExtra(String query) throws DfException {
 
 	TimeSpanDebugHelper timeSpan = new TimeSpanDebugHelper();
 
-	final List<IDfPersistentObject> result = new ArrayList<IDfPersistentObject>();
-
-	final ReadOnlyTypedObjectFactory factory = new ReadOnlyTypedObjectFactory();
+	final ReadOnlyColumnStore store = new ReadOnlyColumnStore();
 
 	debug("Building query {0}", query);
 
@@ -63,9 +61,6 @@ public class ReadOnlyQueryHelper extends DsHelper {
 	helper.perform(query, new IQueryProcessor() {
 
 	    public boolean process(IDfTypedObject coll) throws DfException {
-		factory.init(coll);
-		factory.addAttr("_row");
-
 		Map<String, Object> map = new HashMap<>();
 		StringBuilder str = new StringBuilder();
 		for (int i = 0; i < coll.getAttrCount(); i++) {
@@ -78,12 +73,32 @@ public class ReadOnlyQueryHelper extends DsHelper {
 		}
 		map.put("_row", str.toString());
 
-		ReadOnlyPersistentObject obj = new ReadOnlyPersistentObject(factory, coll, map);
-
-		result.add(obj);
+		store.add(coll, map);
 		return true;
 	    }
 	});
+	store.trim();
+
+	if (timeSpan.complete()) {
+	    debug("Readed records {0}", store.size());
+	}
+
+	return store.asList();
+    }
+
+    /**
+     * Выполняет запрос на чтение и преобразует строки маппером, без
+     * промежуточных ReadOnlyPersistentObject.
+     */
+    public <T> List<T> performQuery(String query, RowMapper<T> mapper) throws DfException {
+
+	TimeSpanDebugHelper timeSpan = new TimeSpanDebugHelper();
+
+	debug("Building query {0}", query);
+
+	QueryHelper helper = new QueryHelper(this);
+	helper.setQueryType(IDfQuery.DF_READ_QUERY);
+	List<T> result = helper.perform(query, mapper);
 
 	if (timeSpan.complete()) {
 	    debug("Readed records {0}", result.size());
@@ -3,7 +3,8 @@ package framework.ru.documentum.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import com.documentum.fc.client.IDfACL;
@@ -27,7 +28,12 @@ import com.documentum.fc.common.IDfTime;
 
 public class ReadOnlySysObject extends ReadOnlyPersistentObject implements IDfSysObject {
 
-    private ByteArrayInputStream content;
+    private static volatile long mapThreshold = 1024 * 1024;
+
+    /**
+     * Содержимое только для чтения (initContent).
+     */
+    private ByteBuffer content;
 
     public ReadOnlySysObject(ReadOnlyTypedObjectFactory factory, IDfTypedObject src) throws DfException {
 	super(factory, src);
@@ -37,18 +43,54 @@ public class ReadOnlySysObject extends ReadOnlyPersistentObject implements IDfSy
 	super(factory, map);
     }
 
+    /**
+     * Минимальный размер файла (байт), начиная с которого initContent
+     * отображает файл в память, а не копирует его.
+     */
+    public static void setMapThreshold(long threshold) {
+	mapThreshold = threshold;
+    }
+
+    /**
+     * Задает содержимое объекта из файла. Файлы меньше mapThreshold (1 Мб)
+     * читаются в память Java, и файл можно сразу удалить или изменить.
+     * Большие файлы отображаются в память только для чтения без копирования:
+     * отображение живет, пока объект (и буферы getContentBuffer,
+     * getContentStream) не собран сборщиком мусора. Пока оно существует, файл
+     * нельзя изменять или усекать (чтение усеченного файла приводит к
+     * InternalError), а в Windows - удалить; место на диске после удаления
+     * освобождается только вместе с отображением.
+     * 
+     * @param file
+     *            Файл с содержимым.
+     */
     public void initContent(File file) throws DfException {
 	try {
-	    FileInputStream str = new FileInputStream(file);
-	    int size = (int) str.available();
-	    byte[] data = new byte[size];
-	    str.read(data);
-	    content = new ByteArrayInputStream(data);
+	    IOHelper helper = new IOHelper();
+	    content = file.length() < mapThreshold ? helper.read(file) : helper.map(file);
 	} catch (Throwable tr) {
 	    throw new DfException(tr);
 	}
     }
 
+    /**
+     * Содержимое в виде буфера только для чтения; у каждого вызова своя
+     * позиция.
+     */
+    public ByteBuffer getContentBuffer() throws DfException {
+	if (content == null) {
+	    notImpl();
+	}
+	return content.duplicate();
+    }
+
+    /**
+     * Поток для последовательного чтения содержимого без копирования.
+     */
+    public InputStream getContentStream() throws DfException {
+	return new IOHelper().toInputStream(getContentBuffer());
+    }
+
     @Override
     public IDfId addDigitalSignature(String s, String s1) throws DfException {
 	notImpl();
@@ -475,10 +517,12 @@ public class ReadOnlySysObject extends ReadOnlyPersistentObject implements IDfSy
 
     @Override
     public ByteArrayInputStream getContent() throws DfException {
-	if (content == null) {
-	    notImpl();
-	}
-	return content;
+	// интерфейс требует массив в памяти; для больших файлов используйте
+	// getContentStream или getContentBuffer
+	ByteBuffer buffer = getContentBuffer();
+	byte[] data = new byte[buffer.remaining()];
+	buffer.get(data);
+	return new ByteArrayInputStream(data);
     }
 
     @Override
@@ -4,6 +4,7 @@ import java.text.MessageFormat;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.client.IDfSessionManager;
@@ -30,10 +31,30 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 
     private static final String CHARSET = "UTF-8";
 
+    /**
+     * Частота проверки копии по источнику (check): 0 - не проверять, 1 -
+     * каждый объект, N - каждый N-й. По умолчанию выключена, для диагностики
+     * задается системным свойством framework.readonly.checkRate или
+     * setCheckRate.
+     */
+    private static volatile int checkRate = Integer.getInteger("framework.readonly.checkRate", 0);
+
+    private static final AtomicLong sampled = new AtomicLong();
+    private static final AtomicLong checks = new AtomicLong();
+    private static final AtomicLong mismatches = new AtomicLong();
+
     private final ReadOnlyTypedObjectFactory factory;
 
     private final Object[] values;
 
+    /**
+     * Колоночное хранилище и номер строки, если объект - представление
+     * строки ReadOnlyColumnStore; иначе значения лежат в values.
+     */
+    private final ReadOnlyColumnStore store;
+
+    private final int row;
+
     private void modify() throws DfException {
 	throw new DfException("Cannot modify readonly object");
     }
@@ -49,6 +70,9 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
     }
 
     private Object getObj(Attr attr) {
+	if (store != null) {
+	    return store.getValue(row, attr.getIndex());
+	}
 	return values[attr.getIndex()];
     }
 
@@ -57,6 +81,9 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
     }
 
     private Object getRepeating(Attr attr, int i) {
+	if (store != null) {
+	    return store.getRepeatingValue(row, attr.getIndex(), i);
+	}
 	return getObjs(attr)[i];
     }
 
@@ -68,16 +95,20 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 
     public ReadOnlyTypedObject(ReadOnlyTypedObjectFactory factory, IDfTypedObject src) throws DfException {
 	this.factory = factory;
+	this.store = null;
+	this.row = 0;
 	values = new Object[factory.getAttrCount()];
 	for (int i = 0; i < factory.getAttrCount(); i++) {
 	    IDfAttr attr = factory.getAttr(i);
 	    values[i] = getSrcValue(attr, src);
 	}
-	check(src);
+	checkSampled(src);
     }
 
     public ReadOnlyTypedObject(ReadOnlyTypedObjectFactory factory, Map<String, Object> map) throws DfException {
 	this.factory = factory;
+	this.store = null;
+	this.row = 0;
 	values = new Object[factory.getAttrCount()];
 	for (int i = 0; i < factory.getAttrCount(); i++) {
 	    IDfAttr attr = factory.getAttr(i);
@@ -88,6 +119,8 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
     public ReadOnlyTypedObject(ReadOnlyTypedObjectFactory factory, IDfTypedObject src, Map<String, Object> map)
 	    throws DfException {
 	this.factory = factory;
+	this.store = null;
+	this.row = 0;
 	values = new Object[factory.getAttrCount()];
 	for (int i = 0; i < factory.getAttrCount(); i++) {
 	    IDfAttr attr = factory.getAttr(i);
@@ -95,12 +128,37 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 	}
     }
 
+    /**
+     * Представление строки колоночного хранилища. Значения не копируются.
+     */
+    public ReadOnlyTypedObject(ReadOnlyColumnStore store, int row) {
+	this.factory = store.getFactory();
+	this.values = null;
+	this.store = store;
+	this.row = row;
+    }
+
     private void check(String name, Object value, Object srcValue) throws DfException {
 	if (value.equals(srcValue) == false) {
 	    throw new DfException(MessageFormat.format("Compare failed {0}, {1}, {2}", name, value, srcValue));
 	}
     }
 
+    private void checkSampled(IDfTypedObject src) throws DfException {
+	int rate = checkRate;
+	if (rate <= 0 || sampled.incrementAndGet() % rate != 0) {
+	    return;
+	}
+	checks.incrementAndGet();
+	try {
+	    check(src);
+	} catch (DfException e) {
+	    mismatches.incrementAndGet();
+	    error("Read-only copy differs from source", e);
+	    throw e;
+	}
+    }
+
     private void check(IDfTypedObject src) throws DfException {
 	for (Attr attr : factory.getAttrs()) {
 	    String name = attr.getName();
@@ -568,6 +626,9 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 	    return getString(attrName);
 	}
 	Object obj = getRepeating(attr, index);
+	if (obj instanceof String) {
+	    return (String) obj;
+	}
 	if (obj instanceof byte[]) {
 	    try {
 		return new String((byte[]) obj, CHARSET);
@@ -620,6 +681,9 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 		return getRepeatingString(attrName, 0);
 	    }
 	    Object obj = getObj(attr);
+	    if (obj instanceof String) {
+		return (String) obj;
+	    }
 	    if (obj instanceof byte[]) {
 		try {
 		    return new String((byte[]) obj, CHARSET);
@@ -673,6 +737,9 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 	if (attr.isRepeating() == false) {
 	    return 1;
 	}
+	if (store != null) {
+	    return store.getValueCount(row, attr.getIndex());
+	}
 	Object[] obj = getObjs(attr);
 	return obj.length;
     }
@@ -794,6 +861,34 @@ public class ReadOnlyTypedObject implements IDfTypedObject {
 	modify();
     }
 
+    public static int getCheckRate() {
+	return checkRate;
+    }
+
+    /**
+     * Задает частоту проверки копии по источнику.
+     * 
+     * @param rate
+     *            0 - не проверять, N - проверять каждый N-й объект.
+     */
+    public static void setCheckRate(int rate) {
+	checkRate = rate;
+    }
+
+    /**
+     * Число выполненных проверок.
+     */
+    public static long getCheckCount() {
+	return checks.get();
+    }
+
+    /**
+     * Число проверок, при которых копия не совпала с источником.
+     */
+    public static long getMismatchCount() {
+	return mismatches.get();
+    }
+
     protected void debug(String message, Object... params) {
 	String string = MessageFormat.format(message, params);
 	System.out.println(string);
@@ -2,6 +2,7 @@ package framework.ru.documentum.utils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -53,16 +54,85 @@ public class ReadOnlyTypedObjectFactory {
 	}
     }
 
+    private static int maxSharedLayouts = 256;
+
+    /**
+     * Общие фабрики по описанию набора атрибутов (getShared).
+     */
+    private static final Map<String, ReadOnlyTypedObjectFactory> shared = new LinkedHashMap<String, ReadOnlyTypedObjectFactory>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, ReadOnlyTypedObjectFactory> eldest) {
+	    return size() > maxSharedLayouts;
+	}
+    };
+
     private final List<Attr> attrs = new ArrayList<Attr>();
     private final Map<String, Integer> attrsMap = new HashMap<>();
 
+    /**
+     * Общая фабрика не меняется: новые атрибуты в нее не добавляются.
+     */
+    private boolean frozen;
+
     private boolean pushAttr(Attr attr) {
-	if (attrsMap.put(attr.name, attrs.size()) == null) {
-	    attrs.add(attr);
-	    return true;
+	if (attrsMap.containsKey(attr.name)) {
+	    return false;
+	}
+	if (frozen) {
+	    throw new IllegalStateException("Shared factory cannot be changed: " + attr.name);
 	}
+	attrsMap.put(attr.name, attrs.size());
+	attrs.add(attr);
+	return true;
+    }
 
-	return false;
+    /**
+     * Возвращает общую неизменяемую фабрику для набора атрибутов объекта и
+     * дополнительных строковых атрибутов. Запросы с одинаковым набором
+     * атрибутов используют одну фабрику.
+     * 
+     * @param obj
+     *            Строка результата запроса или объект.
+     * @param extraAttrs
+     *            Имена дополнительных атрибутов (DM_STRING).
+     * @return Фабрика.
+     */
+    public static ReadOnlyTypedObjectFactory getShared(IDfTypedObject obj, String... extraAttrs) throws DfException {
+	StringBuilder layout = new StringBuilder();
+	for (int i = 0; i < obj.getAttrCount(); i++) {
+	    IDfAttr attr = obj.getAttr(i);
+	    layout.append(attr.getName()).append(':').append(attr.getDataType()).append(attr.isRepeating() ? "R" : "S")
+		    .append(attr.getLength()).append(';');
+	}
+	for (String attrName : extraAttrs) {
+	    layout.append('+').append(attrName).append(';');
+	}
+	String key = layout.toString();
+	synchronized (shared) {
+	    ReadOnlyTypedObjectFactory factory = shared.get(key);
+	    if (factory == null) {
+		factory = new ReadOnlyTypedObjectFactory();
+		factory.init(obj);
+		for (String attrName : extraAttrs) {
+		    factory.addAttr(attrName);
+		}
+		factory.frozen = true;
+		shared.put(key, factory);
+	    }
+	    return factory;
+	}
+    }
+
+    public static void setMaxSharedLayouts(int size) {
+	maxSharedLayouts = size;
+    }
+
+    public static int getSharedLayoutCount() {
+	synchronized (shared) {
+	    return shared.size();
+	}
     }
 
     public void init(IDfTypedObject obj) throws DfException {
@@ -114,13 +184,8 @@ public class ReadOnlyTypedObjectFactory {
     }
 
     public int findAttrIndex(String attrName) {
-	for (int i = 0; i < attrs.size(); i++) {
-	    Attr attr = attrs.get(i);
-	    if (attr.name.equals(attrName)) {
-		return i;
-	    }
-	}
-	return -1;
+	Integer index = attrsMap.get(attrName);
+	return index == null ? -1 : index;
     }
 
     public Attr getAttr(int index) throws DfException {
@@ -128,12 +193,8 @@ public class ReadOnlyTypedObjectFactory {
     }
 
     public Attr getAttr(String name) throws DfException {
-	for (Attr attr : attrs) {
-	    if (attr.name.equals(name)) {
-		return attr;
-	    }
-	}
-	return null;
+	Integer index = attrsMap.get(name);
+	return index == null ? null : attrs.get(index);
     }
 
     public int getAttrCount() throws DfException {
@@ -0,0 +1,211 @@
+package framework.ru.documentum.utils;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.IDfTime;
+
+/**
+ * Преобразование строк результата запроса в объекты.
+ * <p>
+ * Маппер перечисляет нужные ему колонки. Индексы колонок определяются один
+ * раз для коллекции (в bind), значения читаются по индексу через
+ * getValueAt, без поиска атрибута по имени в каждой строке. Колонка, которой
+ * нет в результате, не считается ошибкой: Row.has возвращает false, а
+ * значение - null (0, false). Так один маппер используется с запросами,
+ * выбирающими разный набор колонок.
+ * <p>
+ * Маппер не хранит состояния и может быть константой, общей для потоков.
+ *
+ * <pre>
+ * public static final RowMapper&lt;Content&gt; CONTENT = new RowMapper&lt;Content&gt;(&quot;r_object_id&quot;, &quot;a_content_type&quot;) {
+ *     public Content map(Row row) throws DfException {
+ * 	Content content = new Content();
+ * 	content.setDocId(row.getString(0));
+ * 	content.setDocContentType(row.getString(1));
+ * 	return content;
+ *     }
+ * };
+ * </pre>
+ */
+public abstract class RowMapper<T> {
+
+    /**
+     * Имена колонок; в map к ним обращаются по номеру в этом массиве.
+     */
+    private final String[] columns;
+
+    /**
+     * Конструктор.
+     *
+     * @param columns
+     *            Имена колонок (атрибутов или псевдонимов запроса).
+     */
+    protected RowMapper(String... columns) {
+	this.columns = columns;
+    }
+
+    /**
+     * Создает объект из текущей строки.
+     *
+     * @param row
+     *            Текущая строка, полученная из bind.
+     * @return Объект.
+     */
+    public abstract T map(Row row) throws DfException;
+
+    /**
+     * Определяет индексы колонок в коллекции. Возвращаемая строка
+     * показывает текущую строку коллекции, поэтому bind вызывается один раз
+     * до цикла next.
+     *
+     * @param obj
+     *            Коллекция или объект.
+     * @return Строка для map.
+     */
+    public Row bind(IDfTypedObject obj) throws DfException {
+	Map<String, Integer> attrs = new HashMap<String, Integer>();
+	for (int i = 0; i < obj.getAttrCount(); i++) {
+	    attrs.put(obj.getAttr(i).getName().toLowerCase(), i);
+	}
+	int[] indexes = new int[columns.length];
+	String[] names = new String[columns.length];
+	for (int i = 0; i < columns.length; i++) {
+	    Integer index = attrs.get(columns[i].toLowerCase());
+	    if (index == null) {
+		indexes[i] = -1;
+	    } else {
+		indexes[i] = index;
+		names[i] = obj.getAttr(index).getName();
+	    }
+	}
+	return new Row(obj, indexes, names);
+    }
+
+    /**
+     * Текущая строка коллекции с индексами колонок маппера.
+     */
+    public static final class Row {
+
+	private final IDfTypedObject obj;
+	private final int[] indexes;
+	private final String[] names;
+
+	private Row(IDfTypedObject obj, int[] indexes, String[] names) {
+	    this.obj = obj;
+	    this.indexes = indexes;
+	    this.names = names;
+	}
+
+	/**
+	 * @param column
+	 *            Номер колонки маппера.
+	 * @return true, если колонка есть в результате запроса.
+	 */
+	public boolean has(int column) {
+	    return indexes[column] >= 0;
+	}
+
+	public String getString(int column) throws DfException {
+	    if (!has(column)) {
+		return null;
+	    }
+	    return obj.getValueAt(indexes[column]).asString();
+	}
+
+	public int getInt(int column) throws DfException {
+	    if (!has(column)) {
+		return 0;
+	    }
+	    return obj.getValueAt(indexes[column]).asInteger();
+	}
+
+	public double getDouble(int column) throws DfException {
+	    if (!has(column)) {
+		return 0;
+	    }
+	    return obj.getValueAt(indexes[column]).asDouble();
+	}
+
+	public boolean getBoolean(int column) throws DfException {
+	    if (!has(column)) {
+		return false;
+	    }
+	    return obj.getValueAt(indexes[column]).asBoolean();
+	}
+
+	public IDfTime getTime(int column) throws DfException {
+	    if (!has(column)) {
+		return null;
+	    }
+	    return obj.getValueAt(indexes[column]).asTime();
+	}
+
+	/**
+	 * Дата, как getTime(attr).getDate().
+	 */
+	public Date getDate(int column) throws DfException {
+	    IDfTime time = getTime(column);
+	    return time == null ? null : time.getDate();
+	}
+
+	/**
+	 * Идентификатор в виде строки.
+	 */
+	public String getId(int column) throws DfException {
+	    if (!has(column)) {
+		return null;
+	    }
+	    return obj.getValueAt(indexes[column]).asId().getId();
+	}
+
+	/**
+	 * Количество значений повторяющегося атрибута.
+	 */
+	public int getValueCount(int column) throws DfException {
+	    if (!has(column)) {
+		return 0;
+	    }
+	    return obj.getValueCount(names[column]);
+	}
+
+	/**
+	 * Значение повторяющегося атрибута.
+	 */
+	public String getRepeatingString(int column, int index) throws DfException {
+	    return obj.getRepeatingString(names[column], index);
+	}
+
+	/**
+	 * Все значения повторяющегося атрибута.
+	 */
+	public String[] getRepeatingStrings(int column) throws DfException {
+	    int count = getValueCount(column);
+	    String[] values = new String[count];
+	    for (int i = 0; i < count; i++) {
+		values[i] = obj.getRepeatingString(names[column], i);
+	    }
+	    return values;
+	}
+
+	/**
+	 * Все значения повторяющегося атрибута через разделитель.
+	 */
+	public String getAllRepeatingStrings(int column, String separator) throws DfException {
+	    if (!has(column)) {
+		return null;
+	    }
+	    return obj.getAllRepeatingStrings(names[column], separator);
+	}
+
+	/**
+	 * Исходная коллекция, для колонок, которых нет в маппере.
+	 */
+	public IDfTypedObject getObject() {
+	    return obj;
+	}
+    }
+}
@@ -1,23 +1,111 @@
 package framework.ru.documentum.utils;
 
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.documentum.fc.client.DfClient;
 import com.documentum.fc.client.IDfClient;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.client.IDfSessionManager;
 import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfLogger;
 import com.documentum.fc.common.DfLoginInfo;
 import com.documentum.fc.common.IDfLoginInfo;
 
 import framework.ru.documentum.services.DsHelper;
 
 /**
- * Создает новую сессию для заданного пользователя.
+ * Создает новую сессию для заданного пользователя. <br>
+ *
+ * Менеджеры сессий хранятся в общем реестре по репозиторию и пользователю,
+ * поэтому повторные вызовы получают сессии из пула DFC без нового
+ * соединения. Права вызывающего проверяются при каждом вызове: тикет
+ * пользователя заново запрашивается текущей сессией, переданный тикет
+ * проверяется на сервере, так что просроченный или одноразовый тикет не
+ * дает сессию из пула. Тикет в ключ реестра не входит.
+ * Размер реестра ограничен (setMaxManagers); менеджеры без выданных сессий
+ * удаляются после setIdleTimeout. Если реестр заполнен менеджерами с
+ * выданными сессиями, создается отдельный менеджер на один вызов, как
+ * раньше. <br>
+ *
+ * Сессия, не возвращенная через release дольше setLeakThreshold,
+ * считается утечкой: в лог пишется место ее получения.
  */
 public class SessionHelper extends DsHelper {
 
+    private static final char SEPARATOR = '\u0001';
+
+    private static int maxManagers = 100;
+
+    private static long idleTimeout = 10 * 60 * 1000;
+
+    /**
+     * Тикет действует 5 минут по умолчанию; идентификация менеджера
+     * обновляется раньше последним проверенным тикетом.
+     */
+    private static long identityRefreshInterval = 4 * 60 * 1000;
+
+    private static long leakThreshold = 10 * 60 * 1000;
+
+    private static final Map<String, PooledManager> managers = new LinkedHashMap<String, PooledManager>(16, 0.75f, true);
+
+    /**
+     * Выданные сессии. DFC может выдать один объект сессии нескольким
+     * вызовам, поэтому учет ведется по вызову, а не по сессии.
+     */
+    private static final Set<Checkout> checkouts = new HashSet<Checkout>();
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+    private static final AtomicLong overflows = new AtomicLong();
+    private static final AtomicLong acquired = new AtomicLong();
+    private static final AtomicLong waitTime = new AtomicLong();
+    private static final AtomicLong maxWaitTime = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+
+    private static volatile long statisticsStart = System.currentTimeMillis();
+
+    private static int peakActive;
+
+    private static class PooledManager {
+	private final String key;
+	private final IDfSessionManager manager;
+	private long identityAt;
+	private long lastUsed = System.currentTimeMillis();
+	private int active;
+
+	private PooledManager(String key, IDfSessionManager manager) {
+	    this.key = key;
+	    this.manager = manager;
+	}
+    }
+
+    /**
+     * Выданная сессия.
+     */
+    private static class Checkout {
+	private final PooledManager pooled;
+	private final String userName;
+	private final long since = System.currentTimeMillis();
+	private final Throwable origin = new Throwable("Session acquired here");
+	private boolean reported;
+
+	private Checkout(PooledManager pooled, String userName) {
+	    this.pooled = pooled;
+	    this.userName = userName;
+	}
+    }
+
     /**
      * Конструктор.
-     * 
+     *
      * @param helper
      *            Объект DsHelper.
      */
@@ -27,7 +115,7 @@ public class SessionHelper extends DsHelper {
 
     /**
      * Конструктор.
-     * 
+     *
      * @param session
      *            Сессия.
      */
@@ -37,60 +125,355 @@ public class SessionHelper extends DsHelper {
 
     private IDfSession userSession;
     private IDfSessionManager manager;
+    private Checkout checkout;
 
-    public IDfSession getUserSession(String userName)throws DfException 
+    public IDfSession getUserSession(String userName)throws DfException
     {
 	String docbase = session.getDocbaseName();
 	return getUserSession(userName,docbase);
     }
-    
+
+    /**
+     * Сессия пользователя по тикету, выданному текущей сессией.
+     */
     public IDfSession getUserSession(String userName, String docbase) throws DfException {
-	
+	return acquire(userName, null, docbase);
+    }
+
+    /**
+     * Сессия пользователя по переданному тикету.
+     */
+    public IDfSession getUserSession(String userName, String ticket, String docbase) throws DfException {
+	return acquire(userName, ticket, docbase);
+    }
+
+    private IDfSession acquire(String userName, String ticket, String docbase) throws DfException {
 
 	debug("Create session for {0} to {1}", userName, docbase);
 
-	IDfClient client;
 	if (userSession != null) {
 	    throw new DfException("Session already allocated");
 	}
 
-	client = DfClient.getLocalClient();
-	manager = client.newSessionManager();
-	IDfLoginInfo login = new DfLoginInfo();
-	login.setUser(userName);
-	login.setPassword(session.getLoginTicketForUser(userName));
-	manager.setIdentity(docbase, login);
-
-	userSession = manager.getSession(docbase);
+	sweep();
+	String key = docbase + SEPARATOR + userName;
+	// не удастся, если текущая сессия не может выдавать тикеты пользователю
+	String password = ticket != null ? ticket : session.getLoginTicketForUser(userName);
+	PooledManager pooled = checkoutManager(key);
+	long start = System.currentTimeMillis();
+	try {
+	    boolean reused = pooled.identityAt != 0;
+	    try {
+		refreshIdentity(pooled, userName, password, ticket != null, docbase);
+		userSession = pooled.manager.getSession(docbase);
+	    } catch (DfException e) {
+		if (!reused) {
+		    throw e;
+		}
+		// соединения менеджера могли устареть вместе с тикетом
+		debug("Session manager for {0} failed, recreating: {1}", userName, e.getMessage());
+		discard(pooled);
+		pooled = checkoutManager(key);
+		refreshIdentity(pooled, userName, password, ticket != null, docbase);
+		userSession = pooled.manager.getSession(docbase);
+	    }
+	} catch (DfException e) {
+	    discard(pooled);
+	    throw e;
+	}
+	long waited = System.currentTimeMillis() - start;
+	waitTime.addAndGet(waited);
+	long max;
+	while (waited > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, waited)) {
+	}
+	acquired.incrementAndGet();
+	manager = pooled.manager;
+	checkout = new Checkout(pooled, userName);
+	synchronized (managers) {
+	    checkouts.add(checkout);
+	    peakActive = Math.max(peakActive, checkouts.size());
+	}
 	return userSession;
     }
-    
-    public IDfSession getUserSession(String userName, String ticket, String docbase) throws DfException {
-	
 
-	debug("Create session for {0} to {1}", userName, docbase);
-
-	IDfClient client;
-	if (userSession != null) {
-	    throw new DfException("Session already allocated");
+    /**
+     * Возвращает менеджер из реестра или создает новый; увеличивает число
+     * выданных им сессий.
+     */
+    private static PooledManager checkoutManager(String key) {
+	synchronized (managers) {
+	    PooledManager pooled = managers.get(key);
+	    if (pooled == null) {
+		IDfClient client = DfClient.getLocalClient();
+		pooled = new PooledManager(key, client.newSessionManager());
+		created.incrementAndGet();
+		if (managers.size() >= maxManagers && !evictIdle()) {
+		    overflows.incrementAndGet();
+		    DfLogger.warn(SessionHelper.class, "Session manager registry is full ({0}), using an unpooled manager",
+			    new Object[] { managers.size() }, null);
+		} else {
+		    managers.put(key, pooled);
+		}
+	    }
+	    pooled.active++;
+	    pooled.lastUsed = System.currentTimeMillis();
+	    return pooled;
 	}
+    }
 
-	client = DfClient.getLocalClient();
-	manager = client.newSessionManager();
+    /**
+     * Задает идентификацию менеджера: для нового менеджера и затем через
+     * identityRefreshInterval, чтобы новые соединения не открывались по
+     * просроченному тикету. Переданный тикет для менеджера из реестра
+     * сначала проверяется на сервере: сессии пула его уже не проверяют.
+     */
+    private static void refreshIdentity(PooledManager pooled, String userName, String password, boolean passedTicket,
+	    String docbase) throws DfException {
 	IDfLoginInfo login = new DfLoginInfo();
 	login.setUser(userName);
-	login.setPassword(ticket);
-	manager.setIdentity(docbase, login);
-
-	userSession = manager.getSession(docbase);
-	return userSession;
+	login.setPassword(password);
+	if (passedTicket && pooled.identityAt != 0) {
+	    DfClient.getLocalClient().authenticate(docbase, login);
+	}
+	synchronized (pooled) {
+	    long now = System.currentTimeMillis();
+	    if (pooled.identityAt != 0 && now - pooled.identityAt < identityRefreshInterval) {
+		return;
+	    }
+	    if (pooled.identityAt != 0) {
+		pooled.manager.clearIdentity(docbase);
+	    }
+	    pooled.manager.setIdentity(docbase, login);
+	    pooled.identityAt = now;
+	}
     }
 
     public void release() throws DfException {
 	if (userSession != null) {
 	    manager.release(userSession);
+	    PooledManager pooled = checkout.pooled;
+	    synchronized (managers) {
+		checkouts.remove(checkout);
+		pooled.active--;
+		pooled.lastUsed = System.currentTimeMillis();
+	    }
+	    if (!isRegistered(pooled)) {
+		// менеджер вне реестра (переполнение или ошибка): закрыть соединения
+		if (pooled.active == 0) {
+		    pooled.manager.flushSessions();
+		}
+	    }
 	    userSession = null;
 	    manager = null;
+	    checkout = null;
 	}
     }
+
+    private static boolean isRegistered(PooledManager pooled) {
+	synchronized (managers) {
+	    return managers.get(pooled.key) == pooled;
+	}
+    }
+
+    private static void discard(PooledManager pooled) {
+	synchronized (managers) {
+	    pooled.active--;
+	    if (managers.get(pooled.key) == pooled) {
+		managers.remove(pooled.key);
+		evicted.incrementAndGet();
+	    }
+	}
+	if (pooled.active == 0) {
+	    pooled.manager.flushSessions();
+	}
+    }
+
+    /**
+     * Удаляет самый давно использованный менеджер без выданных сессий.
+     * Вызывается под блокировкой реестра.
+     */
+    private static boolean evictIdle() {
+	Iterator<PooledManager> iterator = managers.values().iterator();
+	while (iterator.hasNext()) {
+	    PooledManager pooled = iterator.next();
+	    if (pooled.active == 0) {
+		iterator.remove();
+		evicted.incrementAndGet();
+		pooled.manager.flushSessions();
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Удаляет простаивающие менеджеры и сообщает о сессиях, не возвращенных
+     * дольше leakThreshold.
+     */
+    private static void sweep() {
+	long now = System.currentTimeMillis();
+	List<Checkout> leaked = new ArrayList<Checkout>();
+	List<PooledManager> idle = new ArrayList<PooledManager>();
+	synchronized (managers) {
+	    Iterator<PooledManager> iterator = managers.values().iterator();
+	    while (iterator.hasNext()) {
+		PooledManager pooled = iterator.next();
+		if (pooled.active == 0 && now - pooled.lastUsed > idleTimeout) {
+		    iterator.remove();
+		    evicted.incrementAndGet();
+		    idle.add(pooled);
+		}
+	    }
+	    for (Checkout checkout : checkouts) {
+		if (!checkout.reported && now - checkout.since > leakThreshold) {
+		    checkout.reported = true;
+		    leaks.incrementAndGet();
+		    leaked.add(checkout);
+		}
+	    }
+	}
+	for (PooledManager pooled : idle) {
+	    pooled.manager.flushSessions();
+	}
+	for (Checkout checkout : leaked) {
+	    DfLogger.warn(SessionHelper.class, "Session of {0} is not released for {1} ms", new Object[] { checkout.userName,
+		    now - checkout.since }, checkout.origin);
+	}
+    }
+
+    /**
+     * Число менеджеров в реестре.
+     */
+    public static int getManagerCount() {
+	synchronized (managers) {
+	    return managers.size();
+	}
+    }
+
+    /**
+     * Число выданных и не возвращенных сессий.
+     */
+    public static int getActiveSessionCount() {
+	synchronized (managers) {
+	    return checkouts.size();
+	}
+    }
+
+    public static int getPeakActiveSessionCount() {
+	synchronized (managers) {
+	    return peakActive;
+	}
+    }
+
+    /**
+     * Доля менеджеров реестра, у которых есть выданные сессии.
+     */
+    public static double getUtilisation() {
+	synchronized (managers) {
+	    if (managers.isEmpty()) {
+		return 0;
+	    }
+	    int busy = 0;
+	    for (PooledManager pooled : managers.values()) {
+		if (pooled.active > 0) {
+		    busy++;
+		}
+	    }
+	    return (double) busy / managers.size();
+	}
+    }
+
+    public static long getAcquiredCount() {
+	return acquired.get();
+    }
+
+    /**
+     * Среднее время получения сессии от менеджера, мс.
+     */
+    public static double getAverageWaitTime() {
+	long count = acquired.get();
+	return count == 0 ? 0 : (double) waitTime.get() / count;
+    }
+
+    public static long getMaxWaitTime() {
+	return maxWaitTime.get();
+    }
+
+    public static long getCreatedCount() {
+	return created.get();
+    }
+
+    /**
+     * Число созданных менеджеров в минуту с момента resetStatistics.
+     */
+    public static double getCreationRate() {
+	long minutes = Math.max(1, (System.currentTimeMillis() - statisticsStart) / 60000);
+	return (double) created.get() / minutes;
+    }
+
+    public static long getEvictedCount() {
+	return evicted.get();
+    }
+
+    /**
+     * Число вызовов, получивших менеджер вне реестра из-за его переполнения.
+     */
+    public static long getOverflowCount() {
+	return overflows.get();
+    }
+
+    /**
+     * Число обнаруженных утечек сессий.
+     */
+    public static long getLeakCount() {
+	return leaks.get();
+    }
+
+    public static void resetStatistics() {
+	created.set(0);
+	evicted.set(0);
+	overflows.set(0);
+	acquired.set(0);
+	waitTime.set(0);
+	maxWaitTime.set(0);
+	leaks.set(0);
+	synchronized (managers) {
+	    peakActive = checkouts.size();
+	}
+	statisticsStart = System.currentTimeMillis();
+    }
+
+    public static String getStatistics() {
+	return MessageFormat.format("Session managers: {0}, active sessions {1} (peak {2}), utilisation {3,number,percent}, "
+		+ "acquired {4}, average wait {5,number,#.#} ms, max wait {6} ms, created {7} ({8,number,#.#}/min), evicted {9}, "
+		+ "overflows {10}, leaks {11}", getManagerCount(), getActiveSessionCount(), getPeakActiveSessionCount(),
+		getUtilisation(), getAcquiredCount(), getAverageWaitTime(), getMaxWaitTime(), getCreatedCount(),
+		getCreationRate(), getEvictedCount(), getOverflowCount(), getLeakCount());
+    }
+
+    public static void setMaxManagers(int size) {
+	maxManagers = size;
+    }
+
+    /**
+     * Время простоя менеджера без выданных сессий до удаления, мс.
+     */
+    public static void setIdleTimeout(long ms) {
+	idleTimeout = ms;
+    }
+
+    /**
+     * Интервал обновления идентификации менеджера (тикета), мс.
+     * Должен быть меньше времени жизни тикета.
+     */
+    public static void setIdentityRefreshInterval(long ms) {
+	identityRefreshInterval = ms;
+    }
+
+    /**
+     * Время, после которого не возвращенная сессия считается утечкой, мс.
+     */
+    public static void setLeakThreshold(long ms) {
+	leakThreshold = ms;
+    }
 }
@@ -1,6 +1,7 @@
 package ro.planet.documentum.stada.modules.beans;
 
 import java.util.Date;
+import java.util.Set;
 
 public class AttorneyFolderInput extends AttorneyFolder {
 
@@ -21,6 +22,10 @@ public class AttorneyFolderInput extends AttorneyFolder {
     private PositionHistory registrar;
     private PositionHistory coordinator;
 
+    private PageRequest page;
+
+    private Set<String> fields;
+
     private Date modifiedDate;
     private Date dsdtRegDate;
     private Date dsdtExecDate;
@@ -32,6 +37,8 @@ public class AttorneyFolderInput extends AttorneyFolder {
     private Date dsdtExecDateFrom;
     private Date dsdtExecDateTo;
 
+    private int rowsNr;
+
     public Date getDsdtIssueFrom() {
         return dsdtIssueFrom;
     }
@@ -224,4 +231,32 @@ public class AttorneyFolderInput extends AttorneyFolder {
         this.modifiedDateFilterCode = modifiedDateFilterCode;
     }
 
+    public int getRowsNr() {
+        return rowsNr;
+    }
+
+    public void setRowsNr(int rowsNr) {
+        this.rowsNr = rowsNr;
+    }
+
+    public PageRequest getPage() {
+        return page;
+    }
+
+    public void setPage(PageRequest page) {
+        this.page = page;
+    }
+
+    /**
+     * AttorneyFolder fields to return (name, dssStatus, registrar, ...); null
+     * or empty means all of them.
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(Set<String> fields) {
+        this.fields = fields;
+    }
+
 }
@@ -0,0 +1,42 @@
+package ro.planet.documentum.stada.modules.beans;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Changes of a list since the previous call: items created or modified
+ * since then and ids of items that left the list. asOf is the server time of
+ * this call and is passed as changedSince of the next one.
+ */
+public class Delta<T> {
+
+    private List<T> items = new ArrayList<T>();
+    private List<String> removedIds = new ArrayList<String>();
+    private Date asOf;
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public List<String> getRemovedIds() {
+        return removedIds;
+    }
+
+    public void setRemovedIds(List<String> removedIds) {
+        this.removedIds = removedIds;
+    }
+
+    public Date getAsOf() {
+        return asOf;
+    }
+
+    public void setAsOf(Date asOf) {
+        this.asOf = asOf;
+    }
+
+}
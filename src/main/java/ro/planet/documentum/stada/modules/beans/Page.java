@@ -0,0 +1,34 @@
+package ro.planet.documentum.stada.modules.beans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a list service result. nextToken is null on the last page.
+ */
+public class Page<T> {
+
+    private List<T> items = new ArrayList<T>();
+    private String nextToken;
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public void setNextToken(String nextToken) {
+        this.nextToken = nextToken;
+    }
+
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+}
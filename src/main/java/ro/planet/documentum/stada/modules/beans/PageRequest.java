@@ -0,0 +1,37 @@
+package ro.planet.documentum.stada.modules.beans;
+
+/**
+ * Paging parameters of a list service. The continuation token is returned
+ * by the previous page (Page.nextToken) and must be passed back unchanged;
+ * an empty token requests the first page.
+ */
+public class PageRequest {
+
+    private int pageSize;
+    private String continuationToken;
+
+    public PageRequest() {
+    }
+
+    public PageRequest(int pageSize, String continuationToken) {
+        this.pageSize = pageSize;
+        this.continuationToken = continuationToken;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
+}
@@ -0,0 +1,25 @@
+package ro.planet.documentum.stada.modules.pdf;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.services.dam.df.transform.ICTSService;
+
+/**
+ * Получение сервиса CTS. <br>
+ *
+ * Модули и CTSSubmissionQueue получают сервис через свои защищенные методы
+ * getCTSService/getService, которые вызывают этот класс; для проверки без
+ * CTS эти методы переопределяются в подклассах.
+ */
+public class CTSServiceLocator {
+
+	/**
+	 * Возвращает сервис CTS для сессии.
+	 *
+	 * @param session
+	 *            Сессия.
+	 * @return Сервис CTS.
+	 */
+	public static ICTSService getService(IDfSession session) throws Exception {
+		return (ICTSService) session.getClient().newService(ICTSService.class.getName(), session.getSessionManager());
+	}
+}
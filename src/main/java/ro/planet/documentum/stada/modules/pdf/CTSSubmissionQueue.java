@@ -0,0 +1,479 @@
+package ro.planet.documentum.stada.modules.pdf;
+
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.documentum.fc.client.DfClient;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSessionManager;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfLoginInfo;
+import com.documentum.fc.common.IDfLoginInfo;
+import com.documentum.services.dam.df.transform.ICTSService;
+import com.documentum.services.dam.df.transform.ITransformRequest;
+
+import framework.ru.documentum.services.DsHelper;
+
+/**
+ * Асинхронная очередь запросов CTS. <br>
+ *
+ * Вызывающий поток только ставит заявку в очередь. Одновременно в CTS
+ * отправляется не более maxInFlight запросов, остальные ждут в очереди
+ * (не более maxQueued). Состояние запроса опрашивается с увеличивающимся
+ * интервалом, при ошибке или превышении таймаута запрос повторяется с
+ * экспоненциальной задержкой. <br>
+ *
+ * Заявки, поставленные через submit(IDfSession, List), работают через
+ * собственный менеджер сессий очереди: сессия вызывающего модуля может быть
+ * закрыта сразу после постановки в очередь.
+ */
+public class CTSSubmissionQueue extends DsHelper {
+
+	private static final CTSSubmissionQueue instance = new CTSSubmissionQueue();
+
+	private int maxInFlight = 8;
+	private int maxQueued = 1000;
+	private int maxRetries = 3;
+	private long minPollInterval = 500;
+	private long maxPollInterval = 10000;
+	private long requestTimeout = 10 * 60 * 1000;
+	private long retryBackoff = 5000;
+	private int ticketTimeout = 12 * 60;
+
+	private final BlockingQueue<Job> pending = new LinkedBlockingQueue<Job>();
+	private final Permits queueSlots = new Permits(maxQueued);
+	private final Permits inFlight = new Permits(maxInFlight);
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	/**
+	 * Семафор, число разрешений которого можно уменьшить без ожидания.
+	 */
+	private static class Permits extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private Permits(int permits) {
+			super(permits);
+		}
+
+		private void resize(int delta) {
+			if (delta > 0) {
+				release(delta);
+			} else if (delta < 0) {
+				reducePermits(-delta);
+			}
+		}
+	}
+
+	/**
+	 * Заявки, поставленные одним вызовом submit, и их менеджер сессий.
+	 */
+	private static class Batch {
+		private final IDfSessionManager sessionManager;
+		private final String docbase;
+		private final boolean ownManager;
+		private final AtomicInteger remaining;
+
+		private Batch(IDfSessionManager sessionManager, String docbase, boolean ownManager, int size) {
+			this.sessionManager = sessionManager;
+			this.docbase = docbase;
+			this.ownManager = ownManager;
+			this.remaining = new AtomicInteger(size);
+		}
+	}
+
+	/**
+	 * Состояние одной заявки.
+	 */
+	private class Job {
+		private final Batch batch;
+		private final IDfSessionManager sessionManager;
+		private final String docbase;
+		private final ICTSSubmission submission;
+		private final long queuedAt = System.currentTimeMillis();
+		private int attempt = 0;
+		private long startedAt;
+		private long pollInterval;
+		private String requestId;
+		private Throwable lastError;
+
+		private Job(Batch batch, ICTSSubmission submission) {
+			this.batch = batch;
+			this.sessionManager = batch.sessionManager;
+			this.docbase = batch.docbase;
+			this.submission = submission;
+		}
+	}
+
+	public static CTSSubmissionQueue getInstance() {
+		return instance;
+	}
+
+	protected CTSSubmissionQueue() {
+		super((IDfSession) null);
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cts-submission-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor = pool;
+	}
+
+	/**
+	 * Ставит заявки в очередь от имени пользователя сессии: либо все, либо ни
+	 * одной. Очередь создает для них свой менеджер сессий с тикетом
+	 * пользователя (ticketTimeout) и закрывает его сессии после завершения
+	 * последней заявки.
+	 *
+	 * @param session
+	 *            Сессия пользователя; после возврата может быть закрыта.
+	 * @param submissions
+	 *            Заявки.
+	 * @return false, если в очереди нет места для всех заявок.
+	 */
+	public boolean submit(IDfSession session, List<? extends ICTSSubmission> submissions) throws DfException {
+		if (submissions.isEmpty()) {
+			return true;
+		}
+		if (!queueSlots.tryAcquire(submissions.size())) {
+			reject(submissions);
+			return false;
+		}
+		String docbase = session.getDocbaseName();
+		IDfSessionManager sessionManager;
+		try {
+			String userName = session.getLoginUserName();
+			IDfLoginInfo login = new DfLoginInfo();
+			login.setUser(userName);
+			login.setPassword(session.getLoginTicketEx(userName, "docbase", ticketTimeout, false, null));
+			sessionManager = DfClient.getLocalClient().newSessionManager();
+			sessionManager.setIdentity(docbase, login);
+		} catch (DfException e) {
+			queueSlots.release(submissions.size());
+			throw e;
+		}
+		enqueue(new Batch(sessionManager, docbase, true, submissions.size()), submissions);
+		return true;
+	}
+
+	/**
+	 * Ставит заявку в очередь. Менеджер сессий должен оставаться открытым до
+	 * завершения заявки; для сессии модуля используйте submit(IDfSession,
+	 * List).
+	 *
+	 * @param sessionManager
+	 *            Менеджер сессий, из которого очередь берет сессии.
+	 * @param docbase
+	 *            Имя репозитория.
+	 * @param submission
+	 *            Заявка.
+	 * @return false, если очередь переполнена.
+	 */
+	public boolean submit(IDfSessionManager sessionManager, String docbase, ICTSSubmission submission) {
+		List<ICTSSubmission> submissions = Collections.singletonList(submission);
+		if (!queueSlots.tryAcquire()) {
+			reject(submissions);
+			return false;
+		}
+		enqueue(new Batch(sessionManager, docbase, false, 1), submissions);
+		return true;
+	}
+
+	private void reject(List<? extends ICTSSubmission> submissions) {
+		rejected.addAndGet(submissions.size());
+		debug("CTS queue is full ({0}), rejected {1} requests starting with {2}", pending.size(), submissions.size(),
+				submissions.get(0).getDescription());
+	}
+
+	/**
+	 * Добавляет заявки, места для которых уже заняты в queueSlots.
+	 */
+	private void enqueue(Batch batch, List<? extends ICTSSubmission> submissions) {
+		for (ICTSSubmission submission : submissions) {
+			pending.add(new Job(batch, submission));
+			submitted.incrementAndGet();
+			debug("CTS request queued {0}, queue depth {1}", submission.getDescription(), pending.size());
+		}
+		dispatch();
+	}
+
+	/**
+	 * Запускает ожидающие заявки, пока есть свободные места.
+	 */
+	private void dispatch() {
+		while (inFlight.tryAcquire()) {
+			final Job job = pending.poll();
+			if (job == null) {
+				inFlight.release();
+				return;
+			}
+			queueSlots.release();
+			executor.execute(new Runnable() {
+				public void run() {
+					start(job);
+				}
+			});
+		}
+	}
+
+	private void start(final Job job) {
+		job.attempt++;
+		job.startedAt = System.currentTimeMillis();
+		job.pollInterval = minPollInterval;
+		IDfSession session = null;
+		try {
+			session = job.sessionManager.getSession(job.docbase);
+			ICTSService service = getService(session);
+			ITransformRequest request = job.submission.createRequest(session, service);
+			job.requestId = request.getObjectId().getId();
+			debug("Submit CTS request {0} for {1}, attempt {2}", job.requestId, job.submission.getDescription(),
+					job.attempt);
+			service.submitRequest(session, request, false, false, true);
+		} catch (Throwable tr) {
+			release(job, session);
+			retry(job, "Cannot submit request", tr);
+			return;
+		}
+		release(job, session);
+		schedulePoll(job);
+	}
+
+	/**
+	 * Сервис CTS, через который отправляются и опрашиваются запросы.
+	 */
+	protected ICTSService getService(IDfSession session) throws Exception {
+		return CTSServiceLocator.getService(session);
+	}
+
+	private void schedulePoll(final Job job) {
+		executor.schedule(new Runnable() {
+			public void run() {
+				poll(job);
+			}
+		}, job.pollInterval, TimeUnit.MILLISECONDS);
+		job.pollInterval = Math.min(maxPollInterval, job.pollInterval * 3 / 2);
+	}
+
+	private void poll(Job job) {
+		IDfSession session = null;
+		try {
+			session = job.sessionManager.getSession(job.docbase);
+			ICTSService service = getService(session);
+			if (service.isRequestProcessing(job.requestId)) {
+				if (System.currentTimeMillis() - job.startedAt > requestTimeout) {
+					service.deleteRequest(job.requestId);
+					release(job, session);
+					retry(job, "Request timeout", null);
+					return;
+				}
+				release(job, session);
+				schedulePoll(job);
+				return;
+			}
+			if (job.submission.onCompleted(session, service)) {
+				release(job, session);
+				complete(job);
+				return;
+			}
+			release(job, session);
+			retry(job, "Transformation result not found", null);
+		} catch (Throwable tr) {
+			release(job, session);
+			retry(job, "Cannot poll request", tr);
+		}
+	}
+
+	private void retry(final Job job, String reason, Throwable tr) {
+		job.lastError = tr == null ? job.lastError : tr;
+		error("CTS request {0} failed: {1}, attempt {2}", tr, job.submission.getDescription(), reason, job.attempt);
+		if (job.attempt > maxRetries) {
+			failed.incrementAndGet();
+			finish(job);
+			job.submission.onFailed(reason, job.lastError);
+			return;
+		}
+		retried.incrementAndGet();
+		long delay = retryBackoff << (job.attempt - 1);
+		executor.schedule(new Runnable() {
+			public void run() {
+				start(job);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void complete(Job job) {
+		completed.incrementAndGet();
+		long latency = System.currentTimeMillis() - job.queuedAt;
+		totalLatency.addAndGet(latency);
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+			max = maxLatency.get();
+		}
+		debug("CTS request {0} completed in {1} ms", job.submission.getDescription(), latency);
+		finish(job);
+	}
+
+	private void finish(Job job) {
+		inFlight.release();
+		if (job.batch.remaining.decrementAndGet() == 0 && job.batch.ownManager) {
+			job.sessionManager.flushSessions();
+		}
+		dispatch();
+	}
+
+	private void release(Job job, IDfSession session) {
+		if (session != null) {
+			job.sessionManager.release(session);
+		}
+	}
+
+	public int getQueueDepth() {
+		return pending.size();
+	}
+
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public long getRetriedCount() {
+		return retried.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Средняя задержка от постановки в очередь до завершения, мс.
+	 */
+	public long getAverageLatency() {
+		long count = completed.get();
+		return count == 0 ? 0 : totalLatency.get() / count;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	@Override
+	public String toString() {
+		return MessageFormat.format(
+				"CTS queue: depth {0}, in flight {1}, submitted {2}, completed {3}, failed {4}, retried {5}, rejected {6}, latency avg {7} ms, max {8} ms",
+				getQueueDepth(), getInFlight(), getSubmittedCount(), getCompletedCount(), getFailedCount(),
+				getRetriedCount(), getRejectedCount(), getAverageLatency(), getMaxLatency());
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Изменяет размер окна одновременно обрабатываемых запросов. При
+	 * уменьшении выполняющиеся запросы не прерываются, новые не запускаются,
+	 * пока их число не станет меньше нового размера.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		int delta = maxInFlight - this.maxInFlight;
+		this.maxInFlight = maxInFlight;
+		inFlight.resize(delta);
+		if (delta > 0) {
+			dispatch();
+		}
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public synchronized void setMaxQueued(int maxQueued) {
+		int delta = maxQueued - this.maxQueued;
+		this.maxQueued = maxQueued;
+		queueSlots.resize(delta);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public long getMinPollInterval() {
+		return minPollInterval;
+	}
+
+	public void setMinPollInterval(long minPollInterval) {
+		this.minPollInterval = minPollInterval;
+	}
+
+	public long getMaxPollInterval() {
+		return maxPollInterval;
+	}
+
+	public void setMaxPollInterval(long maxPollInterval) {
+		this.maxPollInterval = maxPollInterval;
+	}
+
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public int getTicketTimeout() {
+		return ticketTimeout;
+	}
+
+	/**
+	 * Время жизни тикета, с которым очередь открывает сессии для заявок
+	 * submit(IDfSession, List), минуты. Должно покрывать ожидание в очереди и
+	 * все попытки; сервер может ограничить его своим максимумом.
+	 */
+	public void setTicketTimeout(int ticketTimeout) {
+		this.ticketTimeout = ticketTimeout;
+	}
+}
@@ -1,5 +1,6 @@
 package ro.planet.documentum.stada.modules.pdf;
 
+import java.io.ByteArrayInputStream;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Locale;
@@ -10,7 +11,6 @@ import com.documentum.fc.client.DfServiceException;
 import com.documentum.fc.client.DfSingleDocbaseModule;
 import com.documentum.fc.client.IDfClient;
 import com.documentum.fc.client.IDfFolder;
-import com.documentum.fc.client.IDfPersistentObject;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.client.IDfSessionManager;
 import com.documentum.fc.client.IDfSysObject;
@@ -27,6 +27,9 @@ import com.documentum.services.dam.df.transform.IProfileParameter;
 import com.documentum.services.dam.df.transform.IProfileService;
 import com.documentum.services.dam.df.transform.ITransformRequest;
 
+import framework.ru.documentum.utils.FolderPathResolver;
+import framework.ru.documentum.utils.IOHelper;
+
 public class ConvertPDFModule extends DfSingleDocbaseModule {
 
 	public Result execute(String packageToTransform, boolean newObject, String newObjectName, String newObjectType, String rootPathName, String appendPath, String folderObjectType, boolean sync) {
@@ -55,7 +58,40 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 
 	}
 
+	/**
+	 * Same as execute, but conversion requests are passed to CTSSubmissionQueue
+	 * and the method returns as soon as they are queued.
+	 */
+	public Result executeQueued(String packageToTransform, boolean newObject, String newObjectName, String newObjectType, String rootPathName, String appendPath, String folderObjectType) {
+		debug("Begin ConvertPDFModule.executeQueued()");
+		Result result = new Result();
+		IDfSession session = null;
+
+		try {
+			session = getSessionManager().newSession(getDocbaseName());
+			result = executeWithSession(session, packageToTransform, newObject, newObjectName, newObjectType, rootPathName, appendPath, folderObjectType, false, true);
+		} catch (DfException e) {
+			String errorMsg = "DFC Error queueing PDF conversion";
+			DfLogger.error(this, errorMsg, null, e);
+			result.setErrorMessage(errorMsg);
+			result.setSuccess(false);
+		} catch (Exception e) {
+			String errorMsg = "Error queueing PDF conversion";
+			DfLogger.warn(this, errorMsg, null, e);
+			result.setErrorMessage(errorMsg);
+			result.setSuccess(false);
+		} finally {
+			DfLogger.debug(this, "End ConvertPDFModule.executeQueued()", null, null);
+			getSessionManager().release(session);
+		}
+		return result;
+	}
+
 	protected Result executeWithSession(IDfSession session, String packageToTransform, boolean newObject, String newObjectName, String newObjectType, String rootPathName, String appendPath, String folderObjectType, boolean sync) throws DfException, Exception {
+		return executeWithSession(session, packageToTransform, newObject, newObjectName, newObjectType, rootPathName, appendPath, folderObjectType, sync, false);
+	}
+
+	protected Result executeWithSession(IDfSession session, String packageToTransform, boolean newObject, String newObjectName, String newObjectType, String rootPathName, String appendPath, String folderObjectType, boolean sync, boolean queued) throws DfException, Exception {
 		Result result = new Result();
 		IDfSysObject objectToTransform = null;
 		ArrayList<IMediaProfile> mediaProfiles = null;
@@ -106,7 +142,7 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 				debug("Root Path ID: {0}",rootPath);
 			}
 			debug("Creating New Object. Creating folders.");
-			IDfFolder theFolder = createFolderByIdAndPath(rootPath, appendPath, folderObjectType, session);
+			IDfFolder theFolder = new FolderPathResolver(session).resolve(rootPath, appendPath, folderObjectType);
 			newRepoObject = (IDfSysObject) session.newObject(newObjectType);
 			newRepoObject.setObjectName(newObjectName);
 			newRepoObject.setContentType(targetFormat);
@@ -118,7 +154,11 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 		}
 		debug( "Finding profiles to transform document to PDF");
 		mediaProfiles = findProfile(session, srcObjectID, srcFormat, tarFormat);
-		submitReguest(result, session, sync, objectToTransform, mediaProfiles, targetFormat, newRepoObjectID);
+		if (queued) {
+			queueRequest(result, session, objectToTransform, mediaProfiles, targetFormat, newRepoObjectID);
+		} else {
+			submitReguest(result, session, sync, objectToTransform, mediaProfiles, targetFormat, newRepoObjectID);
+		}
 
 		if (result.getSuccess())
 		{
@@ -136,8 +176,6 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 
 		if (mediaProfiles != null) {
 			debug(mediaProfiles.size() + " Profiles Found.");
-			com.documentum.fc.client.IDfSessionManager idfsessionmanager = session.getSessionManager();
-			IDfClient idfclient = session.getClient();
 			java.util.Iterator<IMediaProfile> itr = mediaProfiles.iterator();
 			for (; itr.hasNext();) {
 				profile = itr.next();
@@ -145,7 +183,7 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 				    	debug("Profile Name : {0}", profile.getObjectName());
 				    	debug("Sending Request to create Transformation object using {0}", profile.getObjectName());
 					ITransformRequest itransformrequest = this.createRenditionTransformRequestNew(session, objectToTransform, profile, targetFormat, profile.getParameters(), newRepoObjectID, false);
-					ICTSService ictsservice = (ICTSService) idfclient.newService((com.documentum.services.dam.df.transform.ICTSService.class).getName(), idfsessionmanager);
+					ICTSService ictsservice = getCTSService(session);
 					debug("Submit request with synchron param: {0}", sync);
 					ictsservice.submitRequest(session, itransformrequest, false, sync, true);
 					debug("Request executed");
@@ -159,6 +197,97 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 		}
 	}
 
+	private void queueRequest(Result result, IDfSession session, IDfSysObject objectToTransform, ArrayList<IMediaProfile> mediaProfiles, String targetFormat, IDfId newRepoObjectID) throws DfException {
+		if (mediaProfiles == null) {
+			String errorMsg = "Formats not supported. Profile not found";
+			debug("{0}", errorMsg);
+			result.setErrorMessage(errorMsg);
+			result.setSuccess(false);
+			return;
+		}
+		String relatedObjectId = newRepoObjectID == null ? null : newRepoObjectID.getId();
+		ArrayList<ConvertSubmission> submissions = new ArrayList<ConvertSubmission>();
+		for (IMediaProfile profile : mediaProfiles) {
+			if (profile == null) {
+				continue;
+			}
+			debug("Queue request for {0} using {1}", objectToTransform.getObjectId(), profile.getObjectName());
+			submissions.add(new ConvertSubmission(objectToTransform.getObjectId().getId(), profile.getObjectId().getId(), targetFormat, relatedObjectId));
+		}
+		// all profiles or none: the queue opens its own sessions, ours is released on return
+		if (!getSubmissionQueue().submit(session, submissions)) {
+			String errorMsg = "CTS submission queue is full";
+			debug("{0}", errorMsg);
+			result.setErrorMessage(errorMsg);
+			result.setSuccess(false);
+		}
+	}
+
+	protected ICTSService getCTSService(IDfSession session) throws Exception {
+		return CTSServiceLocator.getService(session);
+	}
+
+	protected CTSSubmissionQueue getSubmissionQueue() {
+		return CTSSubmissionQueue.getInstance();
+	}
+
+	/**
+	 * Queued conversion of one object with one media profile.
+	 */
+	private class ConvertSubmission implements ICTSSubmission {
+		private final String sourceObjectId;
+		private final String profileId;
+		private final String targetFormat;
+		private final String relatedObjectId;
+
+		private ConvertSubmission(String sourceObjectId, String profileId, String targetFormat, String relatedObjectId) {
+			this.sourceObjectId = sourceObjectId;
+			this.profileId = profileId;
+			this.targetFormat = targetFormat;
+			this.relatedObjectId = relatedObjectId;
+		}
+
+		public String getDescription() {
+			return MessageFormat.format("{0} -> {1} ({2})", sourceObjectId, targetFormat, relatedObjectId);
+		}
+
+		public ITransformRequest createRequest(IDfSession session, ICTSService service) throws Exception {
+			IDfSysObject source = (IDfSysObject) session.getObject(new DfId(sourceObjectId));
+			IMediaProfile profile = (IMediaProfile) session.getObject(new DfId(profileId));
+			IDfId related = relatedObjectId == null ? null : new DfId(relatedObjectId);
+			return createRenditionTransformRequestNew(session, source, profile, targetFormat, profile.getParameters(), related, false);
+		}
+
+		public boolean onCompleted(IDfSession session, ICTSService service) throws Exception {
+			boolean renditionExists = service.doesRenditionExists(session, sourceObjectId, targetFormat, 0, "");
+			if (relatedObjectId == null) {
+				return renditionExists;
+			}
+			IDfSysObject target = (IDfSysObject) session.getObject(new DfId(relatedObjectId));
+			if (target.getContentSize() > 0) {
+				return true;
+			}
+			if (!renditionExists) {
+				return false;
+			}
+			debug("Save rendition of {0} into {1}", sourceObjectId, relatedObjectId);
+			IDfSysObject source = (IDfSysObject) session.getObject(new DfId(sourceObjectId));
+			ByteArrayInputStream content = source.getContentEx2(targetFormat, 0, "");
+			try {
+				target.setContentType(targetFormat);
+				target.setContent(new IOHelper().toByteArray(content));
+				target.save();
+			} finally {
+				content.close();
+			}
+			return true;
+		}
+
+		public void onFailed(String reason, Throwable tr) {
+			error("PDF conversion of {0} failed: {1}", tr, sourceObjectId, reason);
+		}
+	}
+
 	private ArrayList<IMediaProfile> findProfile(IDfSession session, String srcObjectID, String srcFormat, String tarFormat) {
 		IDfClientX cx = null;
 		IDfClient client = null;
@@ -239,50 +368,6 @@ public class ConvertPDFModule extends DfSingleDocbaseModule {
 		return mediaProfileToReturn;
 	}
 
-	private IDfFolder createFolderByIdAndPath(IDfId idfid, String appendPath, String folderObjectType, IDfSession idfsession) throws Exception {
-		IDfFolder idffolder = null;
-		IDfPersistentObject idfpersistentobject = null;
-		if (idfid.isNull() || !idfid.isObjectId()) {
-			DfLogger.debug(this, "The object id: " + idfid.toString() + " is invalid.  Called from IDfId version of CreateFolderByIdAndPath.", null, null);
-			return idffolder;
-
-		}
-		idfpersistentobject = idfsession.getObject(idfid);
-		if (!(idfpersistentobject instanceof IDfFolder)) {
-			DfLogger.debug(this, "The object id: " + idfid.toString() + " is not a dm_folder or subtype.  Called from CreateFolderByIdAndPath.", null, null);
-			return idffolder;
-		}
-		if (appendPath == null || appendPath.length() == 0) {
-			return (IDfFolder) idfpersistentobject;
-		}
-		String as[] = appendPath.split("/");
-		idffolder = (IDfFolder) idfpersistentobject;
-		String rootPath = idffolder.getFolderPath(0);
-		for (int i = 0; i < as.length; i++) {
-			String s3 = rootPath;
-			rootPath = rootPath + "/" + as[i];
-			idffolder = idfsession.getFolderByPath(rootPath);
-			if (idffolder != null) {
-				continue;
-			}
-			if (i == as.length - 1) {
-				if (idfsession.getType(folderObjectType) == null) {
-					DfLogger.debug(this, "Tried to create an object of type: " + folderObjectType + " which does not exist in the repository.  Called from CreateFolderByIdAndPath.", null, null);
-					idffolder = null;
-					return idffolder;
-				}
-				idffolder = (IDfFolder) idfsession.newObject(folderObjectType);
-			} else {
-				idffolder = (IDfFolder) idfsession.newObject("dm_folder");
-			}
-			idffolder.setObjectName(as[i]);
-			idffolder.link(s3);
-			idffolder.save();
-
-		}
-		return idffolder;
-	}
-
 	private void linkObject(IDfSysObject idfsysobject, String s, boolean flag) throws Exception {
 		if (flag) {
 			int i = idfsysobject.getFolderIdCount();
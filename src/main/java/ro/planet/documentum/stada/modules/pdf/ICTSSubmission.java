@@ -0,0 +1,51 @@
+package ro.planet.documentum.stada.modules.pdf;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.services.dam.df.transform.ICTSService;
+import com.documentum.services.dam.df.transform.ITransformRequest;
+
+/**
+ * Заявка на преобразование, которая ставится в очередь CTSSubmissionQueue.
+ * Все методы вызываются в потоках очереди, с сессией, полученной очередью.
+ */
+public interface ICTSSubmission {
+
+	/**
+	 * Описание заявки для журнала.
+	 */
+	public String getDescription();
+
+	/**
+	 * Создает и сохраняет запрос на преобразование. Вызывается при каждой
+	 * попытке.
+	 *
+	 * @param session
+	 *            Сессия.
+	 * @param service
+	 *            Сервис CTS.
+	 * @return Сохраненный запрос.
+	 */
+	public ITransformRequest createRequest(IDfSession session, ICTSService service) throws Exception;
+
+	/**
+	 * Вызывается, когда CTS закончил обработку запроса.
+	 *
+	 * @param session
+	 *            Сессия.
+	 * @param service
+	 *            Сервис CTS.
+	 * @return true, если результат получен и сохранен; false - попытка
+	 *         считается неудачной.
+	 */
+	public boolean onCompleted(IDfSession session, ICTSService service) throws Exception;
+
+	/**
+	 * Вызывается, когда все попытки исчерпаны.
+	 *
+	 * @param reason
+	 *            Причина.
+	 * @param tr
+	 *            Последняя ошибка (может быть null).
+	 */
+	public void onFailed(String reason, Throwable tr);
+}
@@ -2,16 +2,16 @@ package ro.planet.documentum.stada.modules.pdf;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import com.documentum.fc.client.DfSingleDocbaseModule;
-import com.documentum.fc.client.IDfClient;
 import com.documentum.fc.client.IDfDocument;
 import com.documentum.fc.client.IDfFolder;
-import com.documentum.fc.client.IDfPersistentObject;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.client.IDfSysObject;
 import com.documentum.fc.common.DfException;
@@ -29,6 +29,8 @@ import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfStamper;
 import com.lowagie.text.pdf.PdfWriter;
 
+import framework.ru.documentum.utils.FolderPathResolver;
+
 public class MergePdfExtModule extends DfSingleDocbaseModule {
 
 	private String mergeProfileName = "mergePDF_adts";
@@ -75,17 +77,9 @@ public class MergePdfExtModule extends DfSingleDocbaseModule {
 		debug("Merged content is read in memory");
 
 		debug("Begin secure operations with iText");
-		PdfReader mergedReader = new PdfReader(mergedContentInputStream);
-		int numberOfPages = mergedReader.getNumberOfPages();
-		String pageRange = "1,3-" + numberOfPages;
-		mergedReader.selectPages(pageRange);
-		PdfStamper stamper = new PdfStamper(mergedReader, resultOutputStream);
 		String pdfOwnerPassword = RegistryPasswordUtils.decrypt(pdfOwnerPasswordEncrypted);
-		byte[] ownerPasswordByteArray = pdfOwnerPassword.getBytes();
-		stamper.setEncryption(null, ownerPasswordByteArray, PdfWriter.ALLOW_COPY | PdfWriter.ALLOW_SCREENREADERS, PdfWriter.ENCRYPTION_AES_128);
+		secureMergedPdf(mergedContentInputStream, resultOutputStream, pdfOwnerPassword.getBytes());
 		mergedContentInputStream.close();
-		mergedReader.close();
-		stamper.close();
 		debug("End secure operations with iText");
 
 		IDfDocument resultObject = createNewDfObject(session, mergedObject, result);
@@ -105,6 +99,20 @@ public class MergePdfExtModule extends DfSingleDocbaseModule {
 		return result;
 	}
 
+	/**
+	 * Removes the second page of the merged PDF and encrypts the result with the owner password.
+	 */
+	static void secureMergedPdf(InputStream mergedContent, OutputStream result, byte[] ownerPassword) throws Exception {
+		PdfReader mergedReader = new PdfReader(mergedContent);
+		int numberOfPages = mergedReader.getNumberOfPages();
+		String pageRange = "1,3-" + numberOfPages;
+		mergedReader.selectPages(pageRange);
+		PdfStamper stamper = new PdfStamper(mergedReader, result);
+		stamper.setEncryption(null, ownerPassword, PdfWriter.ALLOW_COPY | PdfWriter.ALLOW_SCREENREADERS, PdfWriter.ENCRYPTION_AES_128);
+		mergedReader.close();
+		stamper.close();
+	}
+
 	private IDfDocument createNewDfObject(IDfSession session, IDfSysObject mergedObject, Result result) throws Exception {
 		IDfId pathId = mergedObject.getFolderId(0);
 		String newObjectName = mergedObject.getObjectName();
@@ -196,7 +204,7 @@ public class MergePdfExtModule extends DfSingleDocbaseModule {
 				debug("{0}","Root Path ID: " + rootPath);
 			}
 			debug("{0}","Creating New Object. Creating folders.");
-			IDfFolder theFolder = createFolderByIdAndPath(rootPath, appendPath, folderObjectType, session);
+			IDfFolder theFolder = new FolderPathResolver(session).resolve(rootPath, appendPath, folderObjectType);
 			newRepoObject = (IDfSysObject) session.newObject(newObjectType);
 			newRepoObject.setObjectName(newObjectName);
 			newRepoObject.setContentType(format);
@@ -209,11 +217,10 @@ public class MergePdfExtModule extends DfSingleDocbaseModule {
 		debug("{0}","Finding media profile to merge documents");
 		mergeProfile = (IMediaProfile) session.getObjectByQualification("dm_media_profile where object_name='" + mergeProfileName + "'");
 
-		IDfClient idfclient = session.getClient();
 		if (mergeProfile != null) {
 		    	debug("Profile Name : {0}", mergeProfile.getObjectName());
 		    	debug("Sending Request to merge objects: {0}", mergeProfile.getObjectName());
-			ICTSService ictsservice = (ICTSService) idfclient.newService((com.documentum.services.dam.df.transform.ICTSService.class).getName(), session.getSessionManager());
+			ICTSService ictsservice = getCTSService(session);
 			ITransformRequest itransformrequest = createRenditionTransformRequestNew(session, titlePageObject, additionalContentObjectID, newRepoObjectID, mergeProfile, mergeProfile.getParameters(), ictsservice);
 			ictsservice.submitRequest(session, itransformrequest, false, true, true);
 		} else {
@@ -227,48 +234,8 @@ public class MergePdfExtModule extends DfSingleDocbaseModule {
 		result.setSuccess(true);
 	}
 
-	private IDfFolder createFolderByIdAndPath(IDfId idfid, String appendPath, String folderObjectType, IDfSession idfsession) throws Exception {
-		IDfFolder idffolder = null;
-		IDfPersistentObject idfpersistentobject = null;
-		if (idfid.isNull() || !idfid.isObjectId()) {
-			DfLogger.debug(this, "The object id: " + idfid.toString() + " is invalid.  Called from IDfId version of CreateFolderByIdAndPath.", null, null);
-			return idffolder;
-
-		}
-		idfpersistentobject = idfsession.getObject(idfid);
-		if (!(idfpersistentobject instanceof IDfFolder)) {
-			DfLogger.debug(this, "The object id: " + idfid.toString() + " is not a dm_folder or subtype.  Called from CreateFolderByIdAndPath.", null, null);
-			return idffolder;
-		}
-		if (appendPath == null || appendPath.length() == 0) {
-			return (IDfFolder) idfpersistentobject;
-		}
-		String as[] = appendPath.split("/");
-		idffolder = (IDfFolder) idfpersistentobject;
-		String rootPath = idffolder.getFolderPath(0);
-		for (int i = 0; i < as.length; i++) {
-			String s3 = rootPath;
-			rootPath = rootPath + "/" + as[i];
-			idffolder = idfsession.getFolderByPath(rootPath);
-			if (idffolder != null) {
-				continue;
-			}
-			if (i == as.length - 1) {
-				if (idfsession.getType(folderObjectType) == null) {
-					DfLogger.debug(this, "Tried to create an object of type: " + folderObjectType + " which does not exist in the repository.  Called from CreateFolderByIdAndPath.", null, null);
-					idffolder = null;
-					return idffolder;
-				}
-				idffolder = (IDfFolder) idfsession.newObject(folderObjectType);
-			} else {
-				idffolder = (IDfFolder) idfsession.newObject("dm_folder");
-			}
-			idffolder.setObjectName(as[i]);
-			idffolder.link(s3);
-			idffolder.save();
-
-		}
-		return idffolder;
+	protected ICTSService getCTSService(IDfSession session) throws Exception {
+		return CTSServiceLocator.getService(session);
 	}
 
 	private void linkObject(IDfSysObject idfsysobject, String path, boolean flag) throws Exception {
@@ -2,11 +2,12 @@ package ro.planet.documentum.stada.modules.pdf;
 
 import java.text.MessageFormat;
 
-import com.documentum.fc.client.IDfFormat;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 
+import framework.ru.documentum.utils.FormatRegistry;
+
 public class ObjectNameHelper {
 
     private IDfSession session;
@@ -25,16 +26,12 @@ public class ObjectNameHelper {
     }
 
     public String getObjectName(String newObjectName) throws DfException {
-	IDfFormat format = session.getFormat(formatName);
-	if (format == null) {
+	String formatExt = new FormatRegistry(session).getDosExtension(formatName);
+	if (formatExt == null) {
 	    debug("Cannot obtain format {0}", formatName);
 	    return newObjectName;
 	}
 
-	debug("Format obtained {0}", formatName);
-
-	String formatExt = format.getDOSExtension();
-
 	debug("Format ext {0}", formatExt);
 
 	if (formatExt.trim().length() > 0) {
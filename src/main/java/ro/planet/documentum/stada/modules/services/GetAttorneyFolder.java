@@ -2,14 +2,27 @@ package ro.planet.documentum.stada.modules.services;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.AttorneyFolder;
 import ro.planet.documentum.stada.modules.beans.AttorneyFolderInput;
+import ro.planet.documentum.stada.modules.beans.Page;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
 import ro.planet.documentum.stada.modules.beans.PositionHistory;
 import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
 import ro.planet.documentum.stada.modules.services.utils.filter.DayFilter;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.KeysetPaging;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.PositionNames;
+import ro.planet.documentum.stada.modules.services.utils.query.Projection;
 import ro.planet.documentum.stada.modules.services.utils.query.QueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryGroup;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -30,12 +43,57 @@ public class GetAttorneyFolder extends DfSingleDocbaseModule {
   public static final String DATE_FORMAT = "MM/dd/yyyy";
   public static final String COORDINATOR_RELATION_NAME = "bd_dms_folder_ph_coord";
   public static final String REGISTRAR_RELATION_NAME = "bd_dms_folder_ph_regis";
+  private static final KeysetPaging PAGING = new KeysetPaging("af.r_modify_date", "r_modify_date", IQueryBuilder.TYPE_DATE, "af.r_object_id", "r_object_id", true);
+  private static final String POSITION_HISTORY_CLAUSE = "exists (select rel.child_id from %s rel, bd_position_history ph where rel.parent_id=af.r_object_id and rel.child_id=ph.r_object_id and ph.dss_code=%%%d)";
+  // AttorneyFolder fields -> columns; r_object_id and r_modify_date are the keyset keys
+  private static final Projection COLUMNS = new Projection("r_object_id", "r_modify_date")
+      .field("id", "r_object_id")
+      .field("type", "r_object_type")
+      .field("name", "object_name")
+      .field("dssDocumentType", "dss_document_type")
+      .field("dssStatus", "dss_status")
+      .field("dssRegNumber", "dss_reg_number")
+      .field("dsdtRegDate", "dsdt_reg_date")
+      .field("dssComment", "dss_comment")
+      .field("registrar")
+      .field("coordinator");
+  private static final QueryTemplate ATTORNEY_FOLDERS = compileAttorneyFolders();
 
   public List<AttorneyFolder> getresults(AttorneyFolderInput inputValues) throws DfException {
+    ListConsumer<AttorneyFolder> consumer = new ListConsumer<AttorneyFolder>();
+    query(inputValues, consumer);
+    return consumer.getItems();
+  }
+
+  /**
+   * Paged variant, the paging parameters are taken from inputValues.getPage().
+   */
+  public Page<AttorneyFolder> getPage(AttorneyFolderInput inputValues) throws DfException {
+    Page<AttorneyFolder> resultPage = new Page<AttorneyFolder>();
+    resultPage.setNextToken(query(inputValues, new ListConsumer<AttorneyFolder>(resultPage.getItems())));
+    return resultPage;
+  }
+
+  /**
+   * Streaming variant: beans are passed to the consumer as the rows are read,
+   * registrar and coordinator names are loaded per batch.
+   */
+  public void stream(AttorneyFolderInput inputValues, RowConsumer<AttorneyFolder> consumer) throws DfException {
+    query(inputValues, consumer);
+  }
+
+  private String query(final AttorneyFolderInput inputValues, RowConsumer<AttorneyFolder> consumer) throws DfException {
     DfLogger.debug(this, " getresults -> Begin", null, null);
     logParams(inputValues);
     IDfCollection collection = null;
-    List<AttorneyFolder> resultList = new ArrayList<AttorneyFolder>();
+    PageRequest page = inputValues.getPage();
+    String nextToken = null;
+    int count = 0;
+    BatchingConsumer<AttorneyFolder> rowConsumer = new BatchingConsumer<AttorneyFolder>(consumer) {
+      protected void process(List<AttorneyFolder> batch) throws DfException {
+        setPositionHistory(batch, inputValues);
+      }
+    };
     try {
       if (session == null) {
         session = getSession();
@@ -46,24 +104,47 @@ public class GetAttorneyFolder extends DfSingleDocbaseModule {
       DfLogger.debug(this, " getresults -> dql: " + dql, null, null);
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      String lastToken = null;
       while (collection.next()) {
+        if (page != null && count == page.getPageSize()) {
+          nextToken = lastToken;
+          break;
+        }
         AttorneyFolder result = new AttorneyFolder();
+        Set<String> fields = inputValues.getFields();
         result.setId(collection.getString("r_object_id"));
-        result.setType(collection.getString("r_object_type"));
-        result.setName(collection.getString("object_name"));
-        result.setDssDocumentType(collection.getString("dss_document_type"));
-        result.setDssStatus(collection.getString("dss_status"));
-        result.setDssRegNumber(collection.getString("dss_reg_number"));
-        result.setDsdtRegDate(collection.getTime("dsdt_reg_date").getDate());
-        result.setDssComment(collection.getString("dss_comment"));
+        if (Projection.has(fields, "type")) {
+          result.setType(collection.getString("r_object_type"));
+        }
+        if (Projection.has(fields, "name")) {
+          result.setName(collection.getString("object_name"));
+        }
+        if (Projection.has(fields, "dssDocumentType")) {
+          result.setDssDocumentType(collection.getString("dss_document_type"));
+        }
+        if (Projection.has(fields, "dssStatus")) {
+          result.setDssStatus(collection.getString("dss_status"));
+        }
+        if (Projection.has(fields, "dssRegNumber")) {
+          result.setDssRegNumber(collection.getString("dss_reg_number"));
+        }
+        if (Projection.has(fields, "dsdtRegDate")) {
+          result.setDsdtRegDate(collection.getTime("dsdt_reg_date").getDate());
+        }
+        if (Projection.has(fields, "dssComment")) {
+          result.setDssComment(collection.getString("dss_comment"));
+        }
         // result.setDsdtIssue(collection.getTime("dsdt_issue").getDate()); TODO: check dsdt_issue, does not exist
-
-        if (!isFilteredByPositionHistory(result, inputValues)) {
-          resultList.add(result);
+        count++;
+        if (page != null) {
+          lastToken = PAGING.getToken(collection);
+        }
+        if (!rowConsumer.accept(result)) {
+          break;
         }
-
       }
-      DfLogger.debug(this, " getresults -> Rezults: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " getresults -> Rezults: " + count, null, null);
       DfLogger.debug(this, " getresults -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " getresults -> Error: " + e.getMessage(), null, e);
@@ -75,57 +156,39 @@ public class GetAttorneyFolder extends DfSingleDocbaseModule {
         collection.close();
       }
     }
-    return resultList;
+    return nextToken;
   }
 
-  private boolean isFilteredByPositionHistory(AttorneyFolder result, AttorneyFolderInput inputValues1) throws DfException {
-    if (!hasResultsForRegistrar(result, inputValues1.getRegistrar())) {
-      return true;
+  private void setPositionHistory(List<AttorneyFolder> results, AttorneyFolderInput inputValues) throws DfException {
+    boolean withRegistrar = Projection.has(inputValues.getFields(), "registrar");
+    boolean withCoordinator = Projection.has(inputValues.getFields(), "coordinator");
+    if (!withRegistrar && !withCoordinator) {
+      return;
     }
-    if (!hasResultsForCoordinator(result, inputValues1.getCoordinator())) {
-      return true;
+    List<String> folderIds = new ArrayList<String>();
+    for (AttorneyFolder result : results) {
+      folderIds.add(result.getId());
     }
-
-    return false;
-  }
-
-  private boolean hasResultsForRegistrar(AttorneyFolder result, PositionHistory registrarIn) throws DfException {
-    String dssName = getPositionHistoryName(result.getId(), registrarIn.getId(), REGISTRAR_RELATION_NAME);
-    if ((dssName != null && dssName.length() > 0) || !isFilterActive(registrarIn)) {
-      PositionHistory res = new PositionHistory();
-      res.setDssName(dssName);
-      result.setRegistrar(res);
-      return true;
-    }
-    return false;
-  }
-
-  private boolean hasResultsForCoordinator(AttorneyFolder result, PositionHistory coordinatorIn) throws DfException {
-    String dssName = getPositionHistoryName(result.getId(), coordinatorIn.getId(), COORDINATOR_RELATION_NAME);
-    if ((dssName != null && dssName.length() > 0) || !isFilterActive(coordinatorIn)) {
-      PositionHistory res = new PositionHistory();
-      res.setDssName(dssName);
-      result.setCoordinator(res);
-      return true;
+    QueryGroup group = new QueryGroup(session);
+    Future<Map<String, String>> registrarsResult = withRegistrar ? group.add(PositionNames.step(REGISTRAR_RELATION_NAME, folderIds, getFilterCode(inputValues.getRegistrar()))) : null;
+    Future<Map<String, String>> coordinatorsResult = withCoordinator ? group.add(PositionNames.step(COORDINATOR_RELATION_NAME, folderIds, getFilterCode(inputValues.getCoordinator()))) : null;
+    group.join();
+    for (AttorneyFolder result : results) {
+      if (withRegistrar) {
+        PositionHistory registrar = new PositionHistory();
+        registrar.setDssName(QueryGroup.get(registrarsResult).get(result.getId()));
+        result.setRegistrar(registrar);
+      }
+      if (withCoordinator) {
+        PositionHistory coordinator = new PositionHistory();
+        coordinator.setDssName(QueryGroup.get(coordinatorsResult).get(result.getId()));
+        result.setCoordinator(coordinator);
+      }
     }
-    return false;
   }
 
-  private String getPositionHistoryName(String parentId, String childId, String relationName) throws DfException {
-    return QueryUtils.getFirstString(session, getDQLForPositionHistory(parentId, childId, relationName));
-  }
-
-  private String getDQLForPositionHistory(String parentId, String childId, String relationName) throws DfException {
-
-    QueryBuilder builder = new QueryBuilder();
-    builder.addSelectedType("bd_position_history ph");
-    builder.addSelectedType(relationName + " rel");
-    builder.addSelectedAttribute(" ph.dss_name");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "rel.parent_id", new DfId(parentId));
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "rel.child_id=ph.r_object_id");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "ph.dss_code", new DfId(childId));
-
-    return builder.getDql();
+  private String getFilterCode(PositionHistory posHist) {
+    return isFilterActive(posHist) ? posHist.getId() : null;
   }
 
   private boolean isFilterActive(PositionHistory posHist) {
@@ -136,33 +199,41 @@ public class GetAttorneyFolder extends DfSingleDocbaseModule {
   }
 
   private String getDQLForAttorneyFolder(AttorneyFolderInput inputValues) throws DfException {
+    PageRequest page = inputValues.getPage();
+    return ATTORNEY_FOLDERS.render(inputValues.getDssBranch(), inputValues.getDssDocumentType(), inputValues.getDssDescription(), inputValues.getDssUid(), inputValues.getDssRegNumber(), inputValues.getDsdtRegDateFrom(), inputValues.getDsdtRegDateTo(), inputValues.getDsdtIssueFrom(),
+        inputValues.getDsdtIssueTo(), inputValues.getDsdtExecDateFrom(), inputValues.getDsdtExecDateTo(), inputValues.getDssStatus(), DayFilter.getFilterDate(inputValues.getModifiedDateFilterCode()), getFilterCode(inputValues.getRegistrar()), getFilterCode(inputValues.getCoordinator()),
+        page == null ? null : PAGING.getPredicate(page), page == null ? null : PAGING.getSuffix(page), page == null && 0 != inputValues.getRowsNr() ? Integer.valueOf(inputValues.getRowsNr()) : null, COLUMNS.select(inputValues.getFields()));
+  }
+
+  private static QueryTemplate compileAttorneyFolders() {
     QueryBuilder builder = new QueryBuilder();
-    builder.addSelectedType("od_attorney_folder");
-    builder.addSelectedAttributes(new String[] {
-        "r_object_id", "r_object_type", "object_name", "dss_document_type", "dss_reg_number", "dsdt_reg_date", "dss_comment", "dss_status"
-    });
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dss_branch like '%1%'", new String[] {
-      inputValues.getDssBranch()
-    });
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dss_document_type", inputValues.getDssDocumentType(), "=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "lower(dss_description) like lower('%%1%');", new String[] {
-      inputValues.getDssDescription()
-    });
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "lower(dss_uid) like lower('%%1%');", new String[] {
-      inputValues.getDssUid()
-    });
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dss_reg_number like '%1%'", new String[] {
-      inputValues.getDssRegNumber()
-    });
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_reg_date", inputValues.getDsdtRegDateFrom(), DATE_FORMAT, ">=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_reg_date", inputValues.getDsdtRegDateTo(), DATE_FORMAT, "<=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_issue", inputValues.getDsdtIssueFrom(), DATE_FORMAT, ">=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_issue", inputValues.getDsdtIssueTo(), DATE_FORMAT, "<=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_exec_date", inputValues.getDsdtExecDateFrom(), DATE_FORMAT, ">=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dsdt_exec_date", inputValues.getDsdtExecDateTo(), DATE_FORMAT, "<=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "dss_status", inputValues.getDssStatus(), "=");
-    builder.addClause(IQueryBuilder.LOGICAL_AND, "r_modify_date", DayFilter.getFilterDate(inputValues.getModifiedDateFilterCode()), DATE_FORMAT, ">=");
-    return builder.getDql();
+    builder.addSelectedType("od_attorney_folder af");
+    // select list of the requested fields
+    builder.addSelectedAttribute("%19");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dss_branch like %1");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dss_document_type=%2");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "lower(dss_description) like lower(%3)");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "lower(dss_uid) like lower(%4)");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dss_reg_number like %5");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_reg_date>=%6");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_reg_date<=%7");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_issue>=%8");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_issue<=%9");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_exec_date>=%10");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dsdt_exec_date<=%11");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "dss_status=%12");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "r_modify_date>=%13");
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, String.format(POSITION_HISTORY_CLAUSE, REGISTRAR_RELATION_NAME, 14));
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, String.format(POSITION_HISTORY_CLAUSE, COORDINATOR_RELATION_NAME, 15));
+    // keyset predicate and order by of KeysetPaging, or RETURN_TOP rows
+    builder.addCondition(IQueryBuilder.LOGICAL_AND, "%16");
+    builder.addOptional("%17");
+    builder.addOptional(" ENABLE (RETURN_TOP %18)");
+    try {
+      return builder.compile(DATE_FORMAT, Slot.PREFIX, Slot.STRING, Slot.CONTAINS, Slot.CONTAINS, Slot.PREFIX, Slot.DATE, Slot.DATE, Slot.DATE, Slot.DATE, Slot.DATE, Slot.DATE, Slot.STRING, Slot.DATE, Slot.STRING, Slot.STRING, Slot.DQL, Slot.DQL, Slot.NUMBER, Slot.DQL);
+    } catch (DfException e) {
+      throw new ExceptionInInitializerError(e);
+    }
   }
 
   private void logParams(AttorneyFolderInput inputValues) {
@@ -181,6 +252,7 @@ public class GetAttorneyFolder extends DfSingleDocbaseModule {
     DfLogger.debug(this, " getresults -> r_modify_date: " + inputValues.getModifiedDateFilterCode(), null, null);
     DfLogger.debug(this, " getresults -> coordinator id: " + inputValues.getCoordinator().getId(), null, null);
     DfLogger.debug(this, " getresults -> registar id: " + inputValues.getRegistrar().getId(), null, null);
+    DfLogger.debug(this, " getresults -> rows: " + inputValues.getRowsNr(), null, null);
 
   }
 
@@ -1,14 +1,26 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
-import ro.planet.documentum.stada.modules.beans.Content;
 import ro.planet.documentum.stada.modules.beans.DmsFolder;
+import ro.planet.documentum.stada.modules.beans.Page;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BeanMappers;
+import ro.planet.documentum.stada.modules.services.utils.query.KeysetPaging;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryGroup;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -19,6 +31,8 @@ import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 
+import framework.ru.documentum.utils.RowMapper.Row;
+
 public class GetDmsFolderAndMainFiles extends DfSingleDocbaseModule {
 
   private static final String DATE_FORMAT = "dd/MM/yyyy";
@@ -26,87 +40,170 @@ public class GetDmsFolderAndMainFiles extends DfSingleDocbaseModule {
   private static final String INITIAL_QUERY_GET_DMS_FOLDERS = "select bdf.r_object_id as fld_id,bdf.r_object_type,bdf.dss_document_type,bdf.dss_status,bdf.dss_reg_number,bdf.r_modify_date,bdf.dss_description,bdf.dss_uid,bdf.dss_branch,bdf.dsi_version, doc.r_object_id, doc.a_content_type "
       + "from %1 bdf left join (Select i_folder_id, r_object_id, a_content_type, dss_main_file  from bd_document_content Where dss_main_file ='01') doc ON  doc.i_folder_id = bdf.r_object_id where dsi_proc_step=0 and dss_status in ('Rejected','NewVersion') and exists (select child_id from bd_dms_folder_ph_coord where parent_id=bdf.r_object_id and dss_user_name=USER) ";
 
-  private static final String SECOND_QUERY_GET_DMS_FOLDERS = "select bdf.r_object_id,bdf.r_object_type,bdf.dss_document_type,bdf.dss_status,bdf.dss_reg_number,bdf.r_modify_date,bdf.dss_description,bdf.dss_uid,bdf.dss_branch,bdf.dsi_version, doc.r_object_id, doc.a_content_type "
+  private static final String SECOND_QUERY_GET_DMS_FOLDERS = "select bdf.r_object_id as fld_id,bdf.r_object_type,bdf.dss_document_type,bdf.dss_status,bdf.dss_reg_number,bdf.r_modify_date,bdf.dss_description,bdf.dss_uid,bdf.dss_branch,bdf.dsi_version, doc.r_object_id, doc.a_content_type "
       + "from %1 bdf left join (Select i_folder_id, r_object_id, a_content_type, dss_main_file  from bd_document_content Where dss_main_file ='01') doc ON  doc.i_folder_id = bdf.r_object_id where dsi_proc_step=0 and dss_status in ('Rejected','NewVersion') and exists (select child_id from bd_dms_folder_ph_initi where parent_id=bdf.r_object_id and dss_user_name=USER) ";
 
   private static final String DEFAULT_FOLDER = "bd_dms_folder";
+  private static final KeysetPaging PAGING = new KeysetPaging("bdf.r_modify_date", "r_modify_date", IQueryBuilder.TYPE_DATE, "bdf.r_object_id", "fld_id", "doc.r_object_id", "r_object_id",
+      true);
+  private static final QueryTemplate INITIAL_DMS_FOLDERS = builder(INITIAL_QUERY_GET_DMS_FOLDERS).build();
+  // RETURN_TOP applies to the whole union
+  private static final QueryTemplate SECOND_DMS_FOLDERS = builder(SECOND_QUERY_GET_DMS_FOLDERS).optional(" ENABLE (RETURN_TOP %7)").build();
+
+  private static QueryTemplate.Builder builder(String dql) {
+    return QueryTemplate.builder(dql, Slot.NAME, Slot.STRING, Slot.STRING, Slot.CONTAINS, Slot.DATE, Slot.DATE, Slot.NUMBER)
+        .condition(IQueryBuilder.LOGICAL_AND, "dss_document_type=%2")
+        .condition(IQueryBuilder.LOGICAL_AND, "dss_status=%3")
+        .condition(IQueryBuilder.LOGICAL_AND, "dss_description like %4")
+        .condition(IQueryBuilder.LOGICAL_AND, "r_creation_date >= %5")
+        .condition(IQueryBuilder.LOGICAL_AND, "r_creation_date <= %6")
+        .dateFormat(DATE_FORMAT);
+  }
 
   public List<DmsFolder> getresults(String folderType, String dssDocumentType, String dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, int rowsNr) throws DfException {
+    ListConsumer<DmsFolder> consumer = new ListConsumer<DmsFolder>();
+    query(folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, rowsNr, null, consumer);
+    return consumer.getItems();
+  }
+
+  /**
+   * Paged variant. The two branches of the union are run as separate keyset
+   * queries and merged here, since the union result itself cannot be ordered.
+   */
+  public Page<DmsFolder> getPage(String folderType, String dssDocumentType, String dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, PageRequest page) throws DfException {
+    Page<DmsFolder> resultPage = new Page<DmsFolder>();
+    resultPage.setNextToken(query(folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, 0, page, new ListConsumer<DmsFolder>(resultPage.getItems())));
+    return resultPage;
+  }
+
+  /**
+   * Streaming variant: folders are passed to the consumer as the rows of the
+   * union are read.
+   */
+  public void stream(String folderType, String dssDocumentType, String dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, RowConsumer<DmsFolder> consumer) throws DfException {
+    query(folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, 0, null, consumer);
+  }
+
+  private String query(String folderType, String dssDocumentType, String dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, int rowsNr, PageRequest page, RowConsumer<DmsFolder> consumer) throws DfException {
     DfLogger.debug(this, " GetDmsFolderAndMainFiles -> Begin", null, null);
     DfLogger.debug(this, " GetDmsFolderAndMainFiles -> Parameters: mainFileCondition: " + mainFileCondition, null, null);
     DfLogger.debug(this, " GetDmsFolderAndMainFiles -> folderType[" + folderType + "] dssDocumentType[" + dssDocumentType + "] dssStatus[" + dssStatus + "] rModifyDateFrom[" + rModifyDateFrom + "] rModifyDateTo[" + rModifyDateTo + "] dssDescription[" + dssDescription + "] rowsNr[" + rowsNr + "]", null, null);
     IDfSession session = null;
     IDfCollection collection = null;
-    List<DmsFolder> resultList = new ArrayList<DmsFolder>();
+    String nextToken = null;
+    int count = 0;
     try {
       session = getSession();
       IDfQuery query = clientx.getQuery();
-      String initialDql = INITIAL_QUERY_GET_DMS_FOLDERS;
-      String secondDql = SECOND_QUERY_GET_DMS_FOLDERS;
       String type = DEFAULT_FOLDER;
       if (!CommonUtils.isEmpty(folderType)) {
         type = folderType;
       }
-      initialDql = QueryUtils.toDql(initialDql, new String[] {
-        type
-      });
-      secondDql = QueryUtils.toDql(secondDql, new String[] {
-        type
-      });
-      if (!CommonUtils.isEmpty(dssDocumentType)) {
-        initialDql = initialDql + " and dss_document_type='" + dssDocumentType + "'";
-        secondDql = secondDql + " and dss_document_type='" + dssDocumentType + "'";
+      Integer top = page == null && 0 != rowsNr ? Integer.valueOf(rowsNr) : null;
+      String initialDql = INITIAL_DMS_FOLDERS.render(type, dssDocumentType, dssStatus, dssDescription, rModifyDateFrom, rModifyDateTo, top);
+      String secondDql = SECOND_DMS_FOLDERS.render(type, dssDocumentType, dssStatus, dssDescription, rModifyDateFrom, rModifyDateTo, top);
+
+      if (page != null) {
+        nextToken = readPage(session, initialDql, secondDql, page, consumer);
+      } else {
+        String dql = initialDql + " UNION " + secondDql;
+        DfLogger.debug(this, " GetDmsFolderAndMainFiles -> dql: " + dql, null, null);
+        query.setDQL(dql);
+        collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+        Row row = BeanMappers.DMS_FOLDER.bind(collection);
+        while (collection.next()) {
+          count++;
+          if (!consumer.accept(BeanMappers.DMS_FOLDER.map(row))) {
+            break;
+          }
+        }
+        DfLogger.debug(this, " GetDmsFolderAndMainFiles -> Results: " + count, null, null);
       }
-      if (!CommonUtils.isEmpty(dssStatus)) {
-        initialDql = initialDql + " and dss_status='" + dssStatus + "'";
-        secondDql = secondDql + " and dss_status='" + dssStatus + "'";
+      DfLogger.debug(this, " GetDmsFolderAndMainFiles -> End", null, null);
+    } catch (DfException e) {
+      DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
+    } finally {
+      releaseSession(session);
+      if (collection != null) {
+        collection.close();
       }
-      if (!CommonUtils.isEmpty(dssDescription)) {
-        initialDql = initialDql + " and dss_description like '%" + dssDescription + "%'";
-        secondDql = secondDql + " and dss_description like '%" + dssDescription + "%'";
+    }
+    return nextToken;
+  }
+
+  private String readPage(IDfSession session, String initialDql, String secondDql, PageRequest page, RowConsumer<DmsFolder> consumer) throws DfException {
+    // the branches are independent, run them concurrently
+    QueryGroup group = new QueryGroup(session);
+    List<Future<List<DmsFolder>>> branches = new ArrayList<Future<List<DmsFolder>>>();
+    for (String dql : new String[] {
+        initialDql, secondDql
+    }) {
+      final String pageDql = PAGING.apply(dql, page);
+      branches.add(group.add(new QueryGroup.Step<List<DmsFolder>>() {
+        public List<DmsFolder> execute(IDfSession stepSession) throws DfException {
+          return readBranch(stepSession, pageDql);
+        }
+      }));
+    }
+    group.join();
+
+    List<DmsFolder> rows = new ArrayList<DmsFolder>();
+    Set<String> keys = new HashSet<String>();
+    for (Future<List<DmsFolder>> branch : branches) {
+      for (DmsFolder result : QueryGroup.get(branch)) {
+        // UNION semantics: identical rows of both branches are returned once
+        if (keys.add(result.getId() + "/" + result.getContent().getDocId())) {
+          rows.add(result);
+        }
       }
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      if (!CommonUtils.isEmpty(rModifyDateFrom)) {
-        initialDql = initialDql + " and r_creation_date >= DATE('" + format.format(rModifyDateFrom) + "','" + DATE_FORMAT + "')";
-        secondDql = secondDql + " and r_creation_date >= DATE('" + format.format(rModifyDateFrom) + "','" + DATE_FORMAT + "')";
+    }
+    Collections.sort(rows, new Comparator<DmsFolder>() {
+      public int compare(DmsFolder o1, DmsFolder o2) {
+        int result = o2.getModifiedDate().compareTo(o1.getModifiedDate());
+        if (result == 0) {
+          result = o2.getId().compareTo(o1.getId());
+        }
+        return result != 0 ? result : mainFileId(o2).compareTo(mainFileId(o1));
       }
-      if (!CommonUtils.isEmpty(rModifyDateTo)) {
-        initialDql = initialDql + " and r_creation_date <= DATE('" + format.format(rModifyDateTo) + "','" + DATE_FORMAT + "')";
-        secondDql = secondDql + " and r_creation_date <= DATE('" + format.format(rModifyDateTo) + "','" + DATE_FORMAT + "')";
+    });
+    int pageSize = KeysetPaging.getPageSize(page);
+    String nextToken = null;
+    if (rows.size() > pageSize) {
+      rows = rows.subList(0, pageSize);
+      DmsFolder last = rows.get(pageSize - 1);
+      nextToken = PAGING.getToken(last.getModifiedDate(), last.getId(), mainFileId(last));
+    }
+    for (DmsFolder row : rows) {
+      if (!consumer.accept(row)) {
+        break;
       }
+    }
+    DfLogger.debug(this, " GetDmsFolderAndMainFiles -> Results: " + rows.size(), null, null);
+    return nextToken;
+  }
 
-      if (0 != rowsNr) {
-        secondDql = secondDql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
-      }
-      String dql = initialDql + " UNION " + secondDql;
-      DfLogger.debug(this, " GetDmsFolderAndMainFiles -> dql: " + dql, null, null);
+  private static String mainFileId(DmsFolder folder) {
+    String id = folder.getContent() == null ? null : folder.getContent().getDocId();
+    return id == null ? "" : id;
+  }
+
+  private List<DmsFolder> readBranch(IDfSession session, String dql) throws DfException {
+    DfLogger.debug(this, " GetDmsFolderAndMainFiles -> dql: " + dql, null, null);
+    List<DmsFolder> rows = new ArrayList<DmsFolder>();
+    IDfCollection collection = null;
+    try {
+      IDfQuery query = clientx.getQuery();
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      Row row = BeanMappers.DMS_FOLDER.bind(collection);
       while (collection.next()) {
-        DmsFolder result = new DmsFolder();
-        result.setId(collection.getString("fld_id"));
-        result.setType(collection.getString("r_object_type"));
-        result.setDssDescription(collection.getString("dss_description"));
-        result.setDssDocumentType(collection.getString("dss_document_type"));
-        result.setDssRegNumber(collection.getString("dss_reg_number"));
-        result.setModifiedDate(collection.getTime("r_modify_date").getDate());
-        result.setDssStatus(collection.getString("dss_status"));
-        Content content = new Content();
-        content.setDocContentType(collection.getString("a_content_type"));
-        content.setDocId(collection.getString("r_object_id"));
-        result.setContent(content);
-        resultList.add(result);
+        rows.add(BeanMappers.DMS_FOLDER.map(row));
       }
-      DfLogger.debug(this, " GetDmsFolderAndMainFiles -> Results: " + resultList.size(), null, null);
-      DfLogger.debug(this, " GetDmsFolderAndMainFiles -> End", null, null);
-    } catch (DfException e) {
-      DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
     } finally {
-      releaseSession(session);
       if (collection != null) {
         collection.close();
       }
     }
-    return resultList;
+    return rows;
   }
 }
@@ -1,14 +1,22 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
 import ro.planet.documentum.stada.modules.beans.DmsFolder;
+import ro.planet.documentum.stada.modules.beans.Page;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.KeysetPaging;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.Projection;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -23,77 +31,123 @@ public class GetDocuments extends DfSingleDocbaseModule {
 
   private static final String DATE_FORMAT = "dd/MM/yyyy";
   private static final IDfClientX clientx = new DfClientX();
-  private static final String QUERY_GET_DMS_FOLDERS = "select bdf.r_object_id as fld_id,bdf.r_object_type,bdf.dss_document_type,bdf.dss_status,bdf.dss_reg_number,bdf.r_modify_date,bdf.dss_description,bdf.dss_uid,bdf.dss_branch,bdf.dsi_version, doc.r_object_id, doc.a_content_type "
+  private static final String QUERY_GET_DMS_FOLDERS = "select %9 "
       + "from %1 bdf left join (Select i_folder_id, r_object_id, a_content_type, dss_main_file  from bd_document_content Where dss_main_file ='01') doc ON  doc.i_folder_id = bdf.r_object_id where 1=1";
   private static final String DEFAULT_FOLDER = "bd_dms_folder";
+  // DmsFolder fields -> columns; id, r_modify_date and the main file id are the keyset keys
+  private static final Projection COLUMNS = new Projection("bdf.r_object_id as fld_id", "bdf.r_modify_date", "doc.r_object_id")
+      .field("type", "bdf.r_object_type")
+      .field("dssDescription", "bdf.dss_description")
+      .field("dssDocumentType", "bdf.dss_document_type")
+      .field("dssRegNumber", "bdf.dss_reg_number")
+      .field("modifiedDate", "bdf.r_modify_date")
+      .field("dssStatus", "bdf.dss_status")
+      .field("content", "doc.r_object_id", "doc.a_content_type");
+  private static final KeysetPaging PAGING = new KeysetPaging("bdf.r_modify_date", "r_modify_date", IQueryBuilder.TYPE_DATE, "bdf.r_object_id", "fld_id", "doc.r_object_id", "r_object_id",
+      true);
+  private static final QueryTemplate DMS_FOLDERS = QueryTemplate.builder(QUERY_GET_DMS_FOLDERS, Slot.NAME, Slot.STRING, Slot.STRING, Slot.STRING_LIST, Slot.CONTAINS, Slot.DATE, Slot.DATE, Slot.NUMBER, Slot.DQL)
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_coord where parent_id=bdf.r_object_id and dss_user_name=%2) or exists (select child_id from bd_dms_folder_ph_initi where parent_id=bdf.r_object_id and dss_user_name=%2))")
+      .condition(IQueryBuilder.LOGICAL_AND, "dss_document_type=%3")
+      .condition(IQueryBuilder.LOGICAL_AND, "dss_status in (%4)")
+      .condition(IQueryBuilder.LOGICAL_AND, "dss_description like %5")
+      .condition(IQueryBuilder.LOGICAL_AND, "r_creation_date >= %6")
+      .condition(IQueryBuilder.LOGICAL_AND, "r_creation_date <= %7")
+      .optional(" ENABLE (RETURN_TOP %8)")
+      .dateFormat(DATE_FORMAT).build();
 
   public List<DmsFolder> getresults(String userName, String folderType, String dssDocumentType, String[] dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, int rowsNr) throws DfException {
+    ListConsumer<DmsFolder> consumer = new ListConsumer<DmsFolder>();
+    query(userName, folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, rowsNr, null, null, consumer);
+    return consumer.getItems();
+  }
+
+  public Page<DmsFolder> getPage(String userName, String folderType, String dssDocumentType, String[] dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, PageRequest page) throws DfException {
+    return getPage(userName, folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, page, null);
+  }
+
+  /**
+   * Paged variant returning only the requested DmsFolder fields (type,
+   * dssStatus, content, ...); null or empty means all of them.
+   */
+  public Page<DmsFolder> getPage(String userName, String folderType, String dssDocumentType, String[] dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, PageRequest page, Set<String> fields) throws DfException {
+    Page<DmsFolder> resultPage = new Page<DmsFolder>();
+    resultPage.setNextToken(query(userName, folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, 0, page, fields, new ListConsumer<DmsFolder>(resultPage.getItems())));
+    return resultPage;
+  }
+
+  /**
+   * Streaming variant: beans are passed to the consumer as the rows are read.
+   */
+  public void stream(String userName, String folderType, String dssDocumentType, String[] dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, RowConsumer<DmsFolder> consumer) throws DfException {
+    query(userName, folderType, dssDocumentType, dssStatus, rModifyDateFrom, rModifyDateTo, dssDescription, mainFileCondition, 0, null, null, consumer);
+  }
+
+  private String query(String userName, String folderType, String dssDocumentType, String[] dssStatus, Date rModifyDateFrom, Date rModifyDateTo, String dssDescription, String mainFileCondition, int rowsNr, PageRequest page, Set<String> fields, RowConsumer<DmsFolder> consumer) throws DfException {
     DfLogger.debug(this, " GetDocuments -> Begin", null, null);
-    DfLogger.debug(this, " GetDocuments -> userName[" + userName + "] folderType[" + folderType + "] dssDocumentType[" + dssDocumentType + "] dssStatus[" + dssStatus + "] rModifyDateFrom[" + rModifyDateFrom + "] rModifyDateTo[" + rModifyDateTo + "] dssDescription[" + dssDescription + "] rowsNr[" + rowsNr + "] mainFileCondition[" + mainFileCondition + "]", null, null);
+    DfLogger.debug(this, " GetDocuments -> userName[" + userName + "] folderType[" + folderType + "] dssDocumentType[" + dssDocumentType + "] dssStatus[" + dssStatus + "] rModifyDateFrom[" + rModifyDateFrom + "] rModifyDateTo[" + rModifyDateTo + "] dssDescription[" + dssDescription + "] rowsNr[" + rowsNr + "] mainFileCondition[" + mainFileCondition + "] fields[" + fields + "]", null, null);
     IDfSession session = null;
     IDfCollection collection = null;
-    List<DmsFolder> resultList = new ArrayList<DmsFolder>();
+    String nextToken = null;
+    int count = 0;
     try {
       session = getSession();
       IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_DMS_FOLDERS;
       String type = DEFAULT_FOLDER;
       if (!CommonUtils.isEmpty(folderType)) {
         type = folderType;
       }
-      dql = QueryUtils.toDql(dql, new String[] {
-        type
-      });
-      if (!CommonUtils.isEmpty(userName)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_coord where parent_id=bdf.r_object_id and dss_user_name='" + userName + "') or exists (select child_id from bd_dms_folder_ph_initi where parent_id=bdf.r_object_id and dss_user_name='" + userName + "'))";
-      }
-      if (!CommonUtils.isEmpty(dssDocumentType)) {
-        dql = dql + " and dss_document_type='" + dssDocumentType + "'";
-      }
+      List<String> statuses = null;
       if (!CommonUtils.isEmpty(dssStatus) && !CommonUtils.isEmpty(dssStatus[0])) {
-        dql = dql + " and (";
-        for (int i = 0; i < dssStatus.length; i++) {
-          dql = dql + " dss_status='" + dssStatus[i] + "'";
-          if (i != dssStatus.length - 1) {
-            dql = dql + " or ";
-          }
-
-        }
-        dql = dql + " )";
-      }
-      if (!CommonUtils.isEmpty(dssDescription)) {
-        dql = dql + " and dss_description like '%" + dssDescription + "%'";
+        statuses = Arrays.asList(dssStatus);
       }
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      if (!CommonUtils.isEmpty(rModifyDateFrom)) {
-        dql = dql + " and r_creation_date >= DATE('" + format.format(rModifyDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(rModifyDateTo)) {
-        dql = dql + " and r_creation_date <= DATE('" + format.format(rModifyDateTo) + "','" + DATE_FORMAT + "')";
-      }
-
-      if (0 != rowsNr) {
-        dql = dql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
+      String dql = DMS_FOLDERS.render(type, userName, dssDocumentType, statuses, dssDescription, rModifyDateFrom, rModifyDateTo, page == null && 0 != rowsNr ? Integer.valueOf(rowsNr) : null, COLUMNS.select(fields));
+      if (page != null) {
+        dql = PAGING.apply(dql, page);
       }
       DfLogger.debug(this, " GetDocuments -> dql: " + dql, null, null);
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      String lastToken = null;
       while (collection.next()) {
+        if (page != null && count == page.getPageSize()) {
+          nextToken = lastToken;
+          break;
+        }
         DmsFolder result = new DmsFolder();
         result.setId(collection.getString("fld_id"));
-        result.setType(collection.getString("r_object_type"));
-        result.setDssDescription(collection.getString("dss_description"));
-        result.setDssDocumentType(collection.getString("dss_document_type"));
-        result.setDssRegNumber(collection.getString("dss_reg_number"));
-        result.setModifiedDate(collection.getTime("r_modify_date").getDate());
-        result.setDssStatus(collection.getString("dss_status"));
-        Content content = new Content();
-        content.setDocContentType(collection.getString("a_content_type"));
-        content.setDocId(collection.getString("r_object_id"));
-        result.setContent(content);
-        resultList.add(result);
+        if (Projection.has(fields, "type")) {
+          result.setType(collection.getString("r_object_type"));
+        }
+        if (Projection.has(fields, "dssDescription")) {
+          result.setDssDescription(collection.getString("dss_description"));
+        }
+        if (Projection.has(fields, "dssDocumentType")) {
+          result.setDssDocumentType(collection.getString("dss_document_type"));
+        }
+        if (Projection.has(fields, "dssRegNumber")) {
+          result.setDssRegNumber(collection.getString("dss_reg_number"));
+        }
+        if (Projection.has(fields, "modifiedDate")) {
+          result.setModifiedDate(collection.getTime("r_modify_date").getDate());
+        }
+        if (Projection.has(fields, "dssStatus")) {
+          result.setDssStatus(collection.getString("dss_status"));
+        }
+        if (Projection.has(fields, "content")) {
+          Content content = new Content();
+          content.setDocContentType(collection.getString("a_content_type"));
+          content.setDocId(collection.getString("r_object_id"));
+          result.setContent(content);
+        }
+        count++;
+        if (page != null) {
+          lastToken = PAGING.getToken(collection);
+        }
+        if (!consumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetDocuments -> Results: " + resultList.size(), null, null);
+      DfLogger.debug(this, " GetDocuments -> Results: " + count, null, null);
       DfLogger.debug(this, " GetDocuments -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
@@ -103,7 +157,7 @@ public class GetDocuments extends DfSingleDocbaseModule {
         collection.close();
       }
     }
-    return resultList;
+    return nextToken;
   }
 
 }
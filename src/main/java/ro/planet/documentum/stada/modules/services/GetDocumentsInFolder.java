@@ -1,10 +1,17 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
+import ro.planet.documentum.stada.modules.beans.Page;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.KeysetPaging;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.Projection;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -18,37 +25,113 @@ import com.documentum.fc.common.DfLogger;
 public class GetDocumentsInFolder extends DfSingleDocbaseModule {
 
   private static final IDfClientX clientx = new DfClientX();
-  private static final String QUERY_GET_DOCUMENTS_IN_FOLDER = "select r_object_id, object_name, title, r_version_label, dss_language, subject, r_object_type, a_content_type, dss_main_file, dss_filename from bd_document_content where any i_folder_id ='%1' order by 2 asc";
+  private static final String QUERY_GET_DOCUMENTS_IN_FOLDER = "select %2 from bd_document_content where any i_folder_id ='%1'";
+  private static final String ORDER_BY_NAME = " order by object_name asc";
+  // Content fields -> columns; object_name is the sort key
+  private static final Projection COLUMNS = new Projection("r_object_id", "object_name")
+      .field("docId", "r_object_id")
+      .field("docType", "r_object_type")
+      .field("objectName", "object_name")
+      .field("title", "title")
+      .field("versionLabel", "r_version_label")
+      .field("dssLanguage", "dss_language")
+      .field("subject", "subject")
+      .field("docContentType", "a_content_type")
+      .field("mainFile", "dss_main_file")
+      .field("dssFilename", "dss_filename");
+  private static final KeysetPaging PAGING = new KeysetPaging("object_name", "object_name", IQueryBuilder.TYPE_STRING, "r_object_id", "r_object_id", false);
 
   public List<Content> getResults(String folderId) throws DfException {
+    ListConsumer<Content> consumer = new ListConsumer<Content>();
+    query(folderId, null, null, consumer);
+    return consumer.getItems();
+  }
+
+  public Page<Content> getPage(String folderId, PageRequest page) throws DfException {
+    return getPage(folderId, page, null);
+  }
+
+  /**
+   * Paged variant returning only the requested Content fields (docId,
+   * objectName, versionLabel, ...); null or empty means all of them.
+   */
+  public Page<Content> getPage(String folderId, PageRequest page, Set<String> fields) throws DfException {
+    Page<Content> resultPage = new Page<Content>();
+    resultPage.setNextToken(query(folderId, page, fields, new ListConsumer<Content>(resultPage.getItems())));
+    return resultPage;
+  }
+
+  /**
+   * Streaming variant: beans are passed to the consumer as the rows are read.
+   */
+  public void stream(String folderId, RowConsumer<Content> consumer) throws DfException {
+    query(folderId, null, null, consumer);
+  }
+
+  private String query(String folderId, PageRequest page, Set<String> fields, RowConsumer<Content> consumer) throws DfException {
     DfLogger.debug(this, " GetDocumentsInFolder -> Begin", null, null);
-    DfLogger.debug(this, " GetDocumentsInFolder -> Parameters: folderId: " + folderId, null, null);
+    DfLogger.debug(this, " GetDocumentsInFolder -> Parameters: folderId: " + folderId + " fields: " + fields, null, null);
     IDfSession session = null;
     IDfCollection collection = null;
-    List<Content> resultList = new ArrayList<Content>();
+    String nextToken = null;
+    int count = 0;
     try {
       session = getSession();
       IDfQuery query = clientx.getQuery();
       String dql = QueryUtils.toDql(QUERY_GET_DOCUMENTS_IN_FOLDER, new String[] {
-        folderId
+        folderId, COLUMNS.select(fields)
       });
+      if (page != null) {
+        dql = PAGING.apply(dql, page);
+      } else {
+        dql = dql + ORDER_BY_NAME;
+      }
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      String lastToken = null;
       while (collection.next()) {
+        if (page != null && count == page.getPageSize()) {
+          nextToken = lastToken;
+          break;
+        }
         Content result = new Content();
         result.setDocId(collection.getString("r_object_id"));
-        result.setDocType(collection.getString("r_object_type"));
-        result.setObjectName(collection.getString("object_name"));
-        result.setTitle(collection.getString("title"));
-        result.setVersionLabel(collection.getAllRepeatingStrings("r_version_label", ","));
-        result.setDssLanguage(collection.getString("dss_language"));
-        result.setSubject(collection.getString("subject"));
-        result.setDocContentType(collection.getString("a_content_type"));
-        result.setMainFile(collection.getString("dss_main_file"));
-        result.setDssFilename(collection.getString("dss_filename"));
-        resultList.add(result);
+        if (Projection.has(fields, "docType")) {
+          result.setDocType(collection.getString("r_object_type"));
+        }
+        if (Projection.has(fields, "objectName")) {
+          result.setObjectName(collection.getString("object_name"));
+        }
+        if (Projection.has(fields, "title")) {
+          result.setTitle(collection.getString("title"));
+        }
+        if (Projection.has(fields, "versionLabel")) {
+          result.setVersionLabel(collection.getAllRepeatingStrings("r_version_label", ","));
+        }
+        if (Projection.has(fields, "dssLanguage")) {
+          result.setDssLanguage(collection.getString("dss_language"));
+        }
+        if (Projection.has(fields, "subject")) {
+          result.setSubject(collection.getString("subject"));
+        }
+        if (Projection.has(fields, "docContentType")) {
+          result.setDocContentType(collection.getString("a_content_type"));
+        }
+        if (Projection.has(fields, "mainFile")) {
+          result.setMainFile(collection.getString("dss_main_file"));
+        }
+        if (Projection.has(fields, "dssFilename")) {
+          result.setDssFilename(collection.getString("dss_filename"));
+        }
+        count++;
+        if (page != null) {
+          lastToken = PAGING.getToken(collection);
+        }
+        if (!consumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetDocumentsInFolder -> Rezults: " + resultList.size(), null, null);
+      DfLogger.debug(this, " GetDocumentsInFolder -> Rezults: " + count, null, null);
       DfLogger.debug(this, " GetDocumentsInFolder -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " GetDocumentsInFolder -> Error: " + e.getMessage(), null, e);
@@ -58,7 +141,7 @@ public class GetDocumentsInFolder extends DfSingleDocbaseModule {
         collection.close();
       }
     }
-    return resultList;
+    return nextToken;
   }
 
 }
@@ -2,12 +2,20 @@ package ro.planet.documentum.stada.modules.services;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
-import ro.planet.documentum.stada.modules.beans.DmsFolder;
 import ro.planet.documentum.stada.modules.beans.InfoList;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.BeanMappers;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.MainFiles;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.ResultCache;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -18,84 +26,97 @@ import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 
+import framework.ru.documentum.utils.RowMapper.Row;
+
 public class GetInfoList extends DfSingleDocbaseModule {
 
-  private static final String QUERY_GET_MAIN_FILE = "select r_object_id, a_content_type from bd_document_content where any i_folder_id ='%1'and dss_main_file='%2'";
   private static final IDfClientX clientx = new DfClientX();
   private static final String QUERY_GET_INFO_LISTS = "select inf.r_object_id, inf.r_object_type,  inf.dss_instruction, inf.dss_user_name, inf.dsdt_start_date, inf.dsi_day2complete, fld.r_object_id as fldid, fld.dss_document_type, fld.dss_reg_number, fld.dss_status from bd_dms_folder fld, bd_info_list inf, bd_dms_folder_info rel where rel.parent_id=fld.r_object_id and rel.child_id=inf.r_object_id";
+  private static final QueryTemplate INFO_LISTS = QueryTemplate.builder(QUERY_GET_INFO_LISTS, Slot.STRING, Slot.NUMBER)
+      .condition(IQueryBuilder.LOGICAL_AND, "inf.dss_user_name=%1")
+      .optional(" ENABLE (RETURN_TOP %2)").build();
+  // cheap check whether a cached list is still valid
+  private static final QueryTemplate INFO_LISTS_WATERMARK = QueryTemplate.builderWithoutWhere("select count(*) as cnt, max(inf.r_modify_date) as modified from bd_info_list inf", Slot.STRING)
+      .condition(IQueryBuilder.LOGICAL_AND, "inf.dss_user_name=%1").build();
+
+  /**
+   * Served from the ResultCache when it is enabled.
+   */
+  public List<InfoList> getresults(final String dssUserName, final int rowsNr) throws DfException {
+    IDfSession session = null;
+    try {
+      session = getSession();
+      return ResultCache.getInstance().get(session, "GetInfoList", INFO_LISTS_WATERMARK.render(dssUserName), new Object[] {
+          dssUserName, rowsNr
+      }, new ResultCache.Loader<InfoList>() {
+        public List<InfoList> load() throws DfException {
+          ListConsumer<InfoList> consumer = new ListConsumer<InfoList>();
+          stream(dssUserName, rowsNr, consumer);
+          return consumer.getItems();
+        }
+      });
+    } finally {
+      releaseSession(session);
+    }
+  }
 
-  public List<InfoList> getresults(String dssUserName, int rowsNr) throws DfException {
+  /**
+   * Streaming variant of getresults: info lists are passed to the consumer as the rows
+   * are read, main files are loaded per batch.
+   */
+  public void stream(String dssUserName, int rowsNr, RowConsumer<InfoList> consumer) throws DfException {
     DfLogger.debug(this, " GetInfoList -> QUERY_GET_INFO_LISTS[" + QUERY_GET_INFO_LISTS + "]", null, null);
     DfLogger.debug(this, " GetInfoList -> dssUserName[" + dssUserName + "] rowsNr[" + rowsNr + "]", null, null);
     IDfSession session = null;
     IDfCollection collection = null;
-    List<InfoList> resultList = new ArrayList<InfoList>();
+    int count = 0;
     try {
       session = getSession();
+      final IDfSession querySession = session;
+      BatchingConsumer<InfoList> rowConsumer = new BatchingConsumer<InfoList>(consumer) {
+        protected void process(List<InfoList> batch) throws DfException {
+          setMainFileProperties(batch, querySession, "01");
+        }
+      };
       IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_INFO_LISTS;
-      if (!CommonUtils.isEmpty(dssUserName)) {
-        dql = dql + " and inf.dss_user_name='" + dssUserName + "'";
-      }
-      if (0 != rowsNr) {
-        dql = dql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
-      }
+      String dql = INFO_LISTS.render(dssUserName, 0 != rowsNr ? Integer.valueOf(rowsNr) : null);
       DfLogger.debug(this, " GetInfoList -> dql: " + dql, null, null);
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      Row row = BeanMappers.INFO_LIST.bind(collection);
       while (collection.next()) {
-        InfoList result = new InfoList();
-        result.setObjectId(collection.getString("r_object_id"));
-        result.setObjectType(collection.getString("r_object_type"));
-        result.setDssInstruction(collection.getString("dss_instruction"));
-        result.setDssUserName(collection.getString("dss_user_name"));
-        result.setDsdtStartDate(collection.getTime("dsdt_start_date").getDate());
-        result.setDsiDay2Complete(collection.getInt("dsi_day2complete"));
-        DmsFolder dmsFolder = new DmsFolder();
-        dmsFolder.setDssDocumentType(collection.getString("dss_document_type"));
-        dmsFolder.setDssRegNumber(collection.getString("dss_reg_number"));
-        dmsFolder.setDssStatus(collection.getString("dss_status"));
-        dmsFolder.setId(collection.getString("fldid"));
-        result.setFolder(dmsFolder);
-        setMainFileProperties(result, session, "01");
-        resultList.add(result);
+        InfoList result = BeanMappers.INFO_LIST.map(row);
+        count++;
+        if (!rowConsumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetInfoList -> Results: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " GetInfoList -> Results: " + count, null, null);
       DfLogger.debug(this, " GetInfoList -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
+      // a partial or empty list must not reach the caller or the result cache
+      throw e;
     } finally {
       releaseSession(session);
       if (collection != null) {
         collection.close();
       }
     }
-    return resultList;
   }
 
-  private void setMainFileProperties(InfoList result, IDfSession session, String mainFileCondition) throws DfException {
-    if (!CommonUtils.isEmpty(result.getFolder()) && !CommonUtils.isEmpty(result.getFolder().getId())) {
-      IDfCollection collection = null;
-      try {
-        IDfQuery query = clientx.getQuery();
-        String dql = null;
-        dql = QueryUtils.toDql(QUERY_GET_MAIN_FILE, new String[] {
-            result.getFolder().getId(), mainFileCondition
-        });
-        if (dql != null) {
-          query.setDQL(dql);
-          collection = query.execute(session, IDfQuery.DF_READ_QUERY);
-          while (collection.next()) {
-            Content content = new Content();
-            content.setDocContentType(collection.getString("a_content_type"));
-            content.setDocId(collection.getString("r_object_id"));
-            result.getFolder().setContent(content);
-          }
-        }
-      } finally {
-        if (collection != null) {
-          collection.close();
-        }
+  private void setMainFileProperties(List<InfoList> results, IDfSession session, String mainFileCondition) throws DfException {
+    List<String> folderIds = new ArrayList<String>();
+    for (InfoList result : results) {
+      if (!CommonUtils.isEmpty(result.getFolder()) && !CommonUtils.isEmpty(result.getFolder().getId())) {
+        folderIds.add(result.getFolder().getId());
+      }
+    }
+    Map<String, Content> contents = MainFiles.load(session, folderIds, mainFileCondition);
+    for (InfoList result : results) {
+      if (!CommonUtils.isEmpty(result.getFolder()) && contents.containsKey(result.getFolder().getId())) {
+        result.getFolder().setContent(contents.get(result.getFolder().getId()));
       }
     }
   }
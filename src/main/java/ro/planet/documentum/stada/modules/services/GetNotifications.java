@@ -1,12 +1,24 @@
 package ro.planet.documentum.stada.modules.services;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
+import ro.planet.documentum.stada.modules.beans.Delta;
 import ro.planet.documentum.stada.modules.beans.Notification;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.BeanMappers;
+import ro.planet.documentum.stada.modules.services.utils.query.DeltaQuery;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.MainFiles;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.ResultCache;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -17,86 +29,140 @@ import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 
+import framework.ru.documentum.utils.RowMapper.Row;
+
 public class GetNotifications extends DfSingleDocbaseModule {
 
-  private static final String QUERY_GET_MAIN_FILE = "select r_object_id, a_content_type from bd_document_content where any i_folder_id ='%1'and dss_main_file='%2'";
   private static final IDfClientX clientx = new DfClientX();
   private static final String QUERY_GET_NOTIFICATIONS = "select n.dss_notify_type, n.dss_notification, notified.dss_name, n.dsdt_start_date, n.dss_full_message, n.r_object_id, n.r_object_type, n.dss_doc_id from bd_notified notified, bd_notification n left outer join bd_dms_folder d on n.dss_doc_id=d.r_object_id where notified.parent_id=n.r_object_id and DATEDIFF(day,n.dsdt_start_date,DATE(TODAY))<=6";
+  private static final QueryTemplate NOTIFICATIONS = QueryTemplate.builder(QUERY_GET_NOTIFICATIONS, Slot.STRING, Slot.STRING, Slot.NUMBER, Slot.DATETIME)
+      .condition(IQueryBuilder.LOGICAL_AND, "notified.dss_notify_user=%1")
+      .condition(IQueryBuilder.LOGICAL_AND, "n.dss_status=%2 and notified.dss_status=%2")
+      .condition(IQueryBuilder.LOGICAL_AND, "n.r_modify_date >= %4")
+      .optional(" ENABLE (RETURN_TOP %3)").build();
+  // cheap check whether a cached list is still valid
+  private static final QueryTemplate NOTIFICATIONS_WATERMARK = QueryTemplate.builder("select count(*) as cnt, max(n.r_modify_date) as modified from bd_notified notified, bd_notification n where notified.parent_id=n.r_object_id and DATEDIFF(day,n.dsdt_start_date,DATE(TODAY))<=6", Slot.STRING, Slot.STRING)
+      .condition(IQueryBuilder.LOGICAL_AND, "notified.dss_notify_user=%1")
+      .condition(IQueryBuilder.LOGICAL_AND, "n.dss_status=%2 and notified.dss_status=%2").build();
+  // notifications that left the list since the last call: older than the 7 days shown, or with another status
+  private static final QueryTemplate NOTIFICATIONS_EXPIRED = QueryTemplate.builder("select n.r_object_id from bd_notified notified, bd_notification n where notified.parent_id=n.r_object_id and DATEDIFF(day,n.dsdt_start_date,DATE(TODAY))>6 and DATEDIFF(day,n.dsdt_start_date,%2)<=6", Slot.STRING, Slot.DATETIME)
+      .condition(IQueryBuilder.LOGICAL_AND, "notified.dss_notify_user=%1").build();
+  private static final QueryTemplate NOTIFICATIONS_STATUS_CHANGED = QueryTemplate.builder("select n.r_object_id from bd_notified notified, bd_notification n where notified.parent_id=n.r_object_id and n.r_modify_date >= %3 and (n.dss_status<>%2 or notified.dss_status<>%2)", Slot.STRING, Slot.STRING, Slot.DATETIME)
+      .condition(IQueryBuilder.LOGICAL_AND, "notified.dss_notify_user=%1").build();
 
-  public List<Notification> getresults(String dssNotifyUser, String dssStatus, int rowsNr) throws DfException {
+  /**
+   * Served from the ResultCache when it is enabled.
+   */
+  public List<Notification> getresults(final String dssNotifyUser, final String dssStatus, final int rowsNr) throws DfException {
+    IDfSession session = null;
+    try {
+      session = getSession();
+      return ResultCache.getInstance().get(session, "GetNotifications", NOTIFICATIONS_WATERMARK.render(dssNotifyUser, dssStatus), new Object[] {
+          dssNotifyUser, dssStatus, rowsNr
+      }, new ResultCache.Loader<Notification>() {
+        public List<Notification> load() throws DfException {
+          ListConsumer<Notification> consumer = new ListConsumer<Notification>();
+          stream(dssNotifyUser, dssStatus, rowsNr, consumer);
+          return consumer.getItems();
+        }
+      });
+    } finally {
+      releaseSession(session);
+    }
+  }
+
+  /**
+   * Streaming variant of getresults: notifications are passed to the consumer as the rows
+   * are read, main files are loaded per batch.
+   */
+  public void stream(String dssNotifyUser, String dssStatus, int rowsNr, RowConsumer<Notification> consumer) throws DfException {
+    query(dssNotifyUser, dssStatus, rowsNr, null, consumer);
+  }
+
+  /**
+   * Notifications created or modified since changedSince and ids of the
+   * notifications that left the list. Without changedSince all notifications
+   * are returned. The asOf of the result is the changedSince of the next call;
+   * on error nothing is returned.
+   */
+  public Delta<Notification> getChanges(String dssNotifyUser, String dssStatus, Date changedSince) throws DfException {
+    Delta<Notification> delta = new Delta<Notification>();
+    IDfSession session = null;
+    try {
+      session = getSession();
+      // taken before the queries, so changes made meanwhile are returned again next time
+      Date asOf = DeltaQuery.serverTime(session);
+      query(dssNotifyUser, dssStatus, 0, changedSince, new ListConsumer<Notification>(delta.getItems()));
+      if (changedSince != null) {
+        String dql = NOTIFICATIONS_EXPIRED.render(dssNotifyUser, changedSince);
+        DfLogger.debug(this, " GetNotifications -> removed dql: " + dql, null, null);
+        DeltaQuery.readIds(session, dql, "r_object_id", delta.getRemovedIds());
+        if (!CommonUtils.isEmpty(dssStatus)) {
+          dql = NOTIFICATIONS_STATUS_CHANGED.render(dssNotifyUser, dssStatus, changedSince);
+          DfLogger.debug(this, " GetNotifications -> removed dql: " + dql, null, null);
+          DeltaQuery.readIds(session, dql, "r_object_id", delta.getRemovedIds());
+        }
+      }
+      delta.setAsOf(asOf);
+    } finally {
+      releaseSession(session);
+    }
+    return delta;
+  }
+
+  private void query(String dssNotifyUser, String dssStatus, int rowsNr, Date changedSince, RowConsumer<Notification> consumer) throws DfException {
     DfLogger.debug(this, " GetNotifications -> QUERY_GET_NOTIFICATIONS[" + QUERY_GET_NOTIFICATIONS + "]", null, null);
-    DfLogger.debug(this, " GetNotifications -> dssNotifyUser[" + dssNotifyUser + "] dssStatus[" + dssStatus + "] rowsNr[" + rowsNr + "]", null, null);
+    DfLogger.debug(this, " GetNotifications -> dssNotifyUser[" + dssNotifyUser + "] dssStatus[" + dssStatus + "] rowsNr[" + rowsNr + "] changedSince[" + changedSince + "]", null, null);
     IDfSession session = null;
     IDfCollection collection = null;
-    List<Notification> resultList = new ArrayList<Notification>();
+    int count = 0;
     try {
       session = getSession();
+      final IDfSession querySession = session;
+      BatchingConsumer<Notification> rowConsumer = new BatchingConsumer<Notification>(consumer) {
+        protected void process(List<Notification> batch) throws DfException {
+          setMainFileProperties(batch, querySession, "01");
+        }
+      };
       IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_NOTIFICATIONS;
-      if (!CommonUtils.isEmpty(dssNotifyUser)) {
-        dql = dql + " and notified.dss_notify_user='" + dssNotifyUser + "'";
-      }
-      if (!CommonUtils.isEmpty(dssStatus)) {
-        dql = dql + " and n.dss_status='" + dssStatus + "'" + " and notified.dss_status='" + dssStatus + "'";
-      }
-
-      if (0 != rowsNr) {
-        dql = dql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
-      }
+      String dql = NOTIFICATIONS.render(dssNotifyUser, dssStatus, 0 != rowsNr ? Integer.valueOf(rowsNr) : null, changedSince);
       DfLogger.debug(this, " GetNotifications -> dql: " + dql, null, null);
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      Row row = BeanMappers.NOTIFICATION.bind(collection);
       while (collection.next()) {
-        Notification result = new Notification();
-        result.setObjectId(collection.getString("r_object_id"));
-        result.setObjectType(collection.getString("r_object_type"));
-        result.setDssNotification(collection.getString("dss_notification"));
-        result.setDssName(collection.getString("dss_name"));
-        result.setDsdtStartDate(collection.getTime("dsdt_start_date").getDate());
-        result.setDssFullMessage(collection.getString("dss_full_message"));
-        result.setDssDocId(collection.getString("dss_doc_id"));
-        result.setDssNotifyType(collection.getString("dss_notify_type"));
-        setMainFileProperties(result, session, "01");
-        resultList.add(result);
+        Notification result = BeanMappers.NOTIFICATION.map(row);
+        count++;
+        if (!rowConsumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetNotifications -> Results: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " GetNotifications -> Results: " + count, null, null);
       DfLogger.debug(this, " GetNotifications -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
+      // a partial or empty list must not reach the caller or the result cache
+      throw e;
     } finally {
       releaseSession(session);
       if (collection != null) {
         collection.close();
       }
     }
-    return resultList;
   }
 
-  private void setMainFileProperties(Notification result, IDfSession session, String mainFileCondition) throws DfException {
-    if (!CommonUtils.isEmpty(result.getDssDocId())) {
-      IDfCollection collection = null;
-      try {
-        IDfQuery query = clientx.getQuery();
-        String dql = null;
-        if ("BaseDoc".equals(result.getDssNotifyType())) {
-          dql = QueryUtils.toDql(QUERY_GET_MAIN_FILE, new String[] {
-              result.getDssDocId(), mainFileCondition
-          });
-        }
-        if (dql != null) {
-          query.setDQL(dql);
-          collection = query.execute(session, IDfQuery.DF_READ_QUERY);
-          while (collection.next()) {
-            Content content = new Content();
-            content.setDocContentType(collection.getString("a_content_type"));
-            content.setDocId(collection.getString("r_object_id"));
-            result.setContent(content);
-          }
-        }
-      } finally {
-        if (collection != null) {
-          collection.close();
-        }
+  private void setMainFileProperties(List<Notification> results, IDfSession session, String mainFileCondition) throws DfException {
+    List<String> folderIds = new ArrayList<String>();
+    for (Notification result : results) {
+      if (!CommonUtils.isEmpty(result.getDssDocId()) && "BaseDoc".equals(result.getDssNotifyType())) {
+        folderIds.add(result.getDssDocId());
+      }
+    }
+    Map<String, Content> contents = MainFiles.load(session, folderIds, mainFileCondition);
+    for (Notification result : results) {
+      if ("BaseDoc".equals(result.getDssNotifyType()) && contents.containsKey(result.getDssDocId())) {
+        result.setContent(contents.get(result.getDssDocId()));
       }
     }
   }
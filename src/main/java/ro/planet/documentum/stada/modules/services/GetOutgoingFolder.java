@@ -1,16 +1,23 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
 import ro.planet.documentum.stada.modules.beans.OutgoingFolder;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.PositionNames;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryGroup;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -19,7 +26,6 @@ import com.documentum.fc.client.IDfCollection;
 import com.documentum.fc.client.IDfQuery;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
-import com.documentum.fc.common.DfId;
 import com.documentum.fc.common.DfLogger;
 
 public class GetOutgoingFolder extends DfSingleDocbaseModule {
@@ -30,128 +36,128 @@ public class GetOutgoingFolder extends DfSingleDocbaseModule {
   private static final String COORDINATOR_TYPE = "bd_dms_folder_ph_coord";
   private static final String CORESPONDENT_TYPE = "bd_dms_folder_ph_addre";
   private static final String REGISTRAR_TYPE = "bd_dms_folder_ph_regis";
-  private static final String QUERY_GET_DSS_NAME = "select pos.dss_name from %1, bd_position_history pos,io_outgoing_folder iof where parent_id=iof.r_object_id and child_id=pos.r_object_id and parent_id='%2'";
   private static final String QUERY_GET_OUTGOING_FOLDERS = "select iof.r_object_id as fld_id,iof.r_object_type, iof.dss_document_type,iof.dss_invoice_number, iof.dss_status,iof.dsdt_reg_date,iof.title ,iof.dss_reg_number, iof.r_modify_date, iof.dss_description, iof.dss_uid, iof.dss_branch,iof.dsi_version, doc.r_object_id, doc.a_content_type from io_outgoing_folder iof left join (Select i_folder_id, r_object_id, a_content_type, dss_main_file  from bd_document_content Where dss_main_file ='01') doc ON  doc.i_folder_id = iof.r_object_id where 1=1 ";
-
-  private String filterDays(String dql, int days) {
-    DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+  private static final QueryTemplate OUTGOING_FOLDERS = QueryTemplate.builder(QUERY_GET_OUTGOING_FOLDERS, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.CONTAINS, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.DATE, Slot.DATE, Slot.DATE,
+      Slot.DATE, Slot.DATE, Slot.DATE, Slot.CONTAINS, Slot.DATE, Slot.NUMBER)
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_coord where parent_id=iof.r_object_id and dss_user_name=%1) or exists (select child_id from bd_dms_folder_ph_initi where parent_id=iof.r_object_id and dss_user_name=%1))")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_coord, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code=%2))")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_initi, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code=%3))")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_document_type=%4")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_status=%5")
+      .condition(IQueryBuilder.LOGICAL_AND, "LOWER(iof.title) like %6")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_branch =%7")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_uid =%8")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_index =%9")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_reg_number =%10")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_addre, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code=%11))")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_regis, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code=%12))")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dsdt_reg_date >= %13")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dsdt_reg_date <= %14")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.r_modify_date >= %15")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.r_modify_date <= %16")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dsdt_sending_date >= %17")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dsdt_sending_date <= %18")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.dss_invoice_number like %19")
+      .condition(IQueryBuilder.LOGICAL_AND, "iof.r_modify_date >= %20")
+      .optional(" ENABLE (RETURN_TOP %21)")
+      .dateFormat(DATE_FORMAT).build();
+
+  private Date daysAgo(int days) {
     Calendar cal = Calendar.getInstance();
     cal.add(Calendar.DATE, days);
-    dql = dql + " and iof.r_modify_date >= DATE('" + dateFormat.format(cal.getTime()) + "','" + DATE_FORMAT + "')";
-    return dql;
+    return cal.getTime();
   }
 
-  private String getDssName(String type, String id, IDfSession session) throws DfException {
-    String dssName = null;
-    String dql = QUERY_GET_DSS_NAME;
-    dql = QueryUtils.toDql(dql, new String[] {
-        type, id
-    });
-    dssName = QueryUtils.getFirstString(session, dql);
-    return dssName;
+  private Date getModifiedSince(String selectorModifiedDate) {
+    if (CommonUtils.isEmpty(selectorModifiedDate)) {
+      return null;
+    }
+    if ("Today".equals(selectorModifiedDate)) {
+      return daysAgo(-1);
+    } else if ("Last 7 days".equals(selectorModifiedDate)) {
+      return daysAgo(-7);
+    } else if ("Last 15 days".equals(selectorModifiedDate)) {
+      return daysAgo(-16);
+    } else if ("Last 30 days".equals(selectorModifiedDate)) {
+      return daysAgo(-31);
+    } else if ("Last 90 days".equals(selectorModifiedDate)) {
+      return daysAgo(-91);
+    } else if ("Last half a year".equals(selectorModifiedDate)) {
+      return daysAgo(-182);
+    } else if ("Last year".equals(selectorModifiedDate)) {
+      return daysAgo(-365);
+    }
+    return daysAgo(-7);
+  }
+
+  private void fillDssNames(IDfSession session, List<OutgoingFolder> folders) throws DfException {
+    List<String> folderIds = new ArrayList<String>();
+    for (OutgoingFolder folder : folders) {
+      folderIds.add(folder.getId());
+    }
+    QueryGroup group = new QueryGroup(session);
+    Future<Map<String, String>> initiatorsResult = group.add(PositionNames.step(INITIATOR_TYPE, folderIds));
+    Future<Map<String, String>> coordinatorsResult = group.add(PositionNames.step(COORDINATOR_TYPE, folderIds));
+    Future<Map<String, String>> correspondentsResult = group.add(PositionNames.step(CORESPONDENT_TYPE, folderIds));
+    Future<Map<String, String>> registratorsResult = group.add(PositionNames.step(REGISTRAR_TYPE, folderIds));
+    group.join();
+    Map<String, String> initiators = QueryGroup.get(initiatorsResult);
+    Map<String, String> coordinators = QueryGroup.get(coordinatorsResult);
+    Map<String, String> correspondents = QueryGroup.get(correspondentsResult);
+    Map<String, String> registrators = QueryGroup.get(registratorsResult);
+    for (OutgoingFolder result : folders) {
+      String initiator = initiators.get(result.getId());
+      if (!CommonUtils.isEmpty(initiator)) {
+        result.setInitiatorName(initiator);
+      }
+      String coordinator = coordinators.get(result.getId());
+      if (!CommonUtils.isEmpty(coordinator)) {
+        result.setCoordinatorName(coordinator);
+      }
+      String correspondent = correspondents.get(result.getId());
+      if (!CommonUtils.isEmpty(correspondent)) {
+        result.setDestination(correspondent);
+      }
+      String registrator = registrators.get(result.getId());
+      if (!CommonUtils.isEmpty(registrator)) {
+        result.setRecorder(registrator);
+      }
+    }
   }
 
   public List<OutgoingFolder> getresults(String userName, String dssBranch, String dssIndex, String correspondentDssCode, String dssDocumentType, String dssDescription, String dssUid, String registrarDssCode, String dssRegNumber, Date dsdtRegDateFrom, Date dsdtRegDateTo, Date modifiedDateFrom, Date modifiedDateTo, String initiatorDssCode, String coordinatorDssCode, Date dispatchDateFrom,
       Date dispatchDateTo, String shippingMethod, String invoiceNumber, String dssStatus, String selectorModifiedDate, int rowsNr) throws DfException {
+    ListConsumer<OutgoingFolder> consumer = new ListConsumer<OutgoingFolder>();
+    stream(userName, dssBranch, dssIndex, correspondentDssCode, dssDocumentType, dssDescription, dssUid, registrarDssCode, dssRegNumber, dsdtRegDateFrom, dsdtRegDateTo, modifiedDateFrom, modifiedDateTo, initiatorDssCode, coordinatorDssCode, dispatchDateFrom, dispatchDateTo, shippingMethod, invoiceNumber, dssStatus, selectorModifiedDate, rowsNr, consumer);
+    return consumer.getItems();
+  }
+
+  /**
+   * Streaming variant of getresults: folders are passed to the consumer as the rows are
+   * read, position names are loaded per batch.
+   */
+  public void stream(String userName, String dssBranch, String dssIndex, String correspondentDssCode, String dssDocumentType, String dssDescription, String dssUid, String registrarDssCode, String dssRegNumber, Date dsdtRegDateFrom, Date dsdtRegDateTo, Date modifiedDateFrom, Date modifiedDateTo, String initiatorDssCode, String coordinatorDssCode, Date dispatchDateFrom,
+      Date dispatchDateTo, String shippingMethod, String invoiceNumber, String dssStatus, String selectorModifiedDate, int rowsNr, RowConsumer<OutgoingFolder> consumer) throws DfException {
     DfLogger.debug(this, " GetOutgoingFolder -> Begin", null, null);
     DfLogger.debug(this, " GetOutgoingFolder -> dssBranch[" + dssBranch + "] dssIndex[" + dssIndex + "] correspondentDssCode[" + correspondentDssCode + "] dssDocumentType[" + dssDocumentType + "] dssDescription[" + dssDescription + "] dssUid[" + dssUid + "] registrarDssCode[" + registrarDssCode + "] dssRegNumber[" + dssRegNumber + "] dsdtRegDateFrom[" + dsdtRegDateFrom + "] dsdtRegDateTo["
         + dsdtRegDateTo + "] modifiedDateFrom[" + modifiedDateFrom + "] modifiedDateTo[" + modifiedDateTo + "] initiatorDssName[" + initiatorDssCode + "] coordinatorDssName[" + coordinatorDssCode + "] dispatchDateFrom[" + dispatchDateFrom + "] dispatchDateTo[" + dispatchDateTo + "] shippingMethod[" + shippingMethod + "] dssStatus[" + dssStatus + "] selectorModifiedDate[" + selectorModifiedDate
         + "]", null, null);
     IDfSession session = getSession();
+    final IDfSession querySession = session;
+    BatchingConsumer<OutgoingFolder> rowConsumer = new BatchingConsumer<OutgoingFolder>(consumer) {
+      protected void process(List<OutgoingFolder> batch) throws DfException {
+        fillDssNames(querySession, batch);
+      }
+    };
     IDfCollection collection = null;
-    List<OutgoingFolder> resultList = new ArrayList<OutgoingFolder>();
+    int count = 0;
     try {
 
       IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_OUTGOING_FOLDERS;
-      if (!CommonUtils.isEmpty(userName)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_coord where parent_id=iof.r_object_id and dss_user_name='" + userName + "')" + " or exists (select child_id from bd_dms_folder_ph_initi where parent_id=iof.r_object_id and dss_user_name='" + userName + "'))";
-      }
-      if (!CommonUtils.isEmpty(coordinatorDssCode) && !DfId.DF_NULLID_STR.equals(coordinatorDssCode)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_coord, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code='" + coordinatorDssCode + "'))";
-      }
-      if (!CommonUtils.isEmpty(initiatorDssCode) && !DfId.DF_NULLID_STR.equals(initiatorDssCode)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_initi, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code='" + initiatorDssCode + "'))";
-      }
-
-      if (!CommonUtils.isEmpty(dssDocumentType)) {
-        dql = dql + " and iof.dss_document_type='" + dssDocumentType + "'";
-      }
-      if (!CommonUtils.isEmpty(dssStatus)) {
-        dql = dql + " and iof.dss_status='" + dssStatus + "'";
-      }
-      if (!CommonUtils.isEmpty(dssDescription)) {
-        dql = dql + " and LOWER(iof.title) like '%" + dssDescription.toLowerCase() + "%'";
-      }
-      if (!CommonUtils.isEmpty(dssBranch)) {
-        dql = dql + " and iof.dss_branch ='" + dssBranch + "'";
-      }
-      if (!CommonUtils.isEmpty(dssUid)) {
-        dql = dql + " and iof.dss_uid ='" + dssUid + "'";
-      }
-      if (!CommonUtils.isEmpty(dssIndex)) {
-        dql = dql + " and iof.dss_index ='" + dssIndex + "'";
-      }
-      if (!CommonUtils.isEmpty(dssRegNumber)) {
-        dql = dql + " and iof.dss_reg_number ='" + dssRegNumber + "'";
-      }
-      if (!CommonUtils.isEmpty(correspondentDssCode) && !DfId.DF_NULLID_STR.equals(correspondentDssCode)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_addre, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code='" + correspondentDssCode + "'))";
-      }
-      if (!CommonUtils.isEmpty(registrarDssCode) && !DfId.DF_NULLID_STR.equals(registrarDssCode)) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_regis, bd_position_history pos where parent_id=iof.r_object_id and child_id=pos.r_object_id and pos.dss_code='" + registrarDssCode + "'))";
-      }
-
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      if (!CommonUtils.isEmpty(dsdtRegDateFrom)) {
-        dql = dql + " and iof.dsdt_reg_date >= DATE('" + format.format(dsdtRegDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(dsdtRegDateTo)) {
-        dql = dql + " and iof.dsdt_reg_date <= DATE('" + format.format(dsdtRegDateTo) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(modifiedDateFrom)) {
-        dql = dql + " and iof.r_modify_date >= DATE('" + format.format(modifiedDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(modifiedDateTo)) {
-        dql = dql + " and iof.r_modify_date <= DATE('" + format.format(modifiedDateTo) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(dispatchDateFrom)) {
-        dql = dql + " and iof.dsdt_sending_date >= DATE('" + format.format(dispatchDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(dispatchDateTo)) {
-        dql = dql + " and iof.dsdt_sending_date <= DATE('" + format.format(dispatchDateTo) + "','" + DATE_FORMAT + "')";
-      }
-      // if (!CommonUtils.isEmpty(shippingMethod)) {
-      // dql = dql + " and shippingmethod ='" + shippingMethod + "'";
-      // }
-
-      if (!CommonUtils.isEmpty(invoiceNumber)) {
-        dql = dql + " and iof.dss_invoice_number like '%" + invoiceNumber + "%'";
-      }
-      if (!CommonUtils.isEmpty(selectorModifiedDate)) {
-        if ("Today".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -1);
-        } else if ("Last 7 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -7);
-        } else if ("Last 15 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -16);
-        } else if ("Last 30 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -31);
-        } else if ("Last 90 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -91);
-        } else if ("Last half a year".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -182);
-        } else if ("Last year".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -365);
-        } else {
-          dql = filterDays(dql, -7);
-        }
-
-      }
-
-      if (0 != rowsNr) {
-        dql = dql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
-      }
+      String dql = OUTGOING_FOLDERS.render(userName, QueryTemplate.skipNullId(coordinatorDssCode), QueryTemplate.skipNullId(initiatorDssCode), dssDocumentType, dssStatus, dssDescription == null ? null : dssDescription.toLowerCase(), dssBranch, dssUid, dssIndex, dssRegNumber,
+          QueryTemplate.skipNullId(correspondentDssCode), QueryTemplate.skipNullId(registrarDssCode), dsdtRegDateFrom, dsdtRegDateTo, modifiedDateFrom, modifiedDateTo, dispatchDateFrom, dispatchDateTo, invoiceNumber, getModifiedSince(selectorModifiedDate),
+          0 != rowsNr ? Integer.valueOf(rowsNr) : null);
+      // shippingMethod is not filtered
 
       DfLogger.debug(this, " GetOutgoingFolder -> dql: " + dql, null, null);
       query.setDQL(dql);
@@ -166,30 +172,17 @@ public class GetOutgoingFolder extends DfSingleDocbaseModule {
         result.setDssRegNumber(collection.getString("dss_reg_number"));
         result.setDsdtRegDate(collection.getTime("dsdt_reg_date").getDate());
         result.setDssStatus(collection.getString("dss_status"));
-        String initiator = getDssName(INITIATOR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(initiator)) {
-          result.setInitiatorName(initiator);
-        }
-        String coordinator = getDssName(COORDINATOR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(coordinator)) {
-          result.setCoordinatorName(coordinator);
-        }
-        String correspondent = getDssName(CORESPONDENT_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(correspondent)) {
-          result.setDestination(correspondent);
-        }
-        // result.setDiscussions(discussions);
-        String registrator = getDssName(REGISTRAR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(registrator)) {
-          result.setRecorder(registrator);
-        }
         Content content = new Content();
         content.setDocContentType(collection.getString("a_content_type"));
         content.setDocId(collection.getString("r_object_id"));
         result.setContent(content);
-        resultList.add(result);
+        count++;
+        if (!rowConsumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetOutgoingFolder -> Results: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " GetOutgoingFolder -> Results: " + count, null, null);
       DfLogger.debug(this, " GetOutgoingFolder -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
@@ -200,6 +193,5 @@ public class GetOutgoingFolder extends DfSingleDocbaseModule {
         collection.close();
       }
     }
-    return resultList;
   }
 }
@@ -1,16 +1,23 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
 import ro.planet.documentum.stada.modules.beans.PosFolder;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.PositionNames;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryGroup;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -19,7 +26,6 @@ import com.documentum.fc.client.IDfCollection;
 import com.documentum.fc.client.IDfQuery;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
-import com.documentum.fc.common.DfId;
 import com.documentum.fc.common.DfLogger;
 
 public class GetPosFolders extends DfSingleDocbaseModule {
@@ -30,120 +36,120 @@ public class GetPosFolders extends DfSingleDocbaseModule {
   private static final String COORDINATOR_TYPE = "bd_dms_folder_ph_coord";
   private static final String CORESPONDENT_TYPE = " bd_dms_folder_ph_addre";
   private static final String REGISTRAR_TYPE = "bd_dms_folder_ph_regis";
-  private static final String QUERY_GET_DSS_NAME = "select pos.dss_name from %1, bd_position_history pos,od_pos_material_folder pmf where parent_id=pmf.r_object_id and child_id=pos.r_object_id and parent_id='%2'";
   private static final String QUERY_GET_POS_FOLDERS = "select pmf.r_object_id as fld_id, pmf.dss_document_type,pmf.dss_medicine_name,pmf.dss_ext_executor, pmf.dss_status, pmf.dsdt_reg_date, pmf.dss_reg_number,doc.r_object_id, doc.a_content_type from od_pos_material_folder pmf left join (Select i_folder_id, r_object_id, a_content_type, dss_main_file  from bd_document_content Where dss_main_file ='01') doc ON  doc.i_folder_id = pmf.r_object_id where 1=1 ";
-
-  private String filterDays(String dql, int days) {
-    DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+  private static final QueryTemplate POS_FOLDERS = QueryTemplate.builder(QUERY_GET_POS_FOLDERS, Slot.STRING, Slot.STRING, Slot.STRING, Slot.PREFIX, Slot.PREFIX, Slot.PREFIX, Slot.PREFIX, Slot.PREFIX, Slot.PREFIX, Slot.DATE, Slot.DATE, Slot.DATE, Slot.DATE, Slot.PREFIX, Slot.PREFIX,
+      Slot.STRING, Slot.DATE)
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_branch =%1")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_document_type=%2")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_medicine_name=%3")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dsdt_run_year like %4")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_ext_executor like %5")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_addre, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like %6))")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_uid like %7")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_regis, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like %8))")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_reg_number like %9")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dsdt_reg_date >= %10")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dsdt_reg_date <= %11")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.r_modify_date >= %12")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.r_modify_date <= %13")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_initi, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like %14))")
+      .condition(IQueryBuilder.LOGICAL_AND, "(exists (select child_id from bd_dms_folder_ph_coord, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like %15))")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.dss_status=%16")
+      .condition(IQueryBuilder.LOGICAL_AND, "pmf.r_modify_date >= %17")
+      .dateFormat(DATE_FORMAT).build();
+
+  private Date daysAgo(int days) {
     Calendar cal = Calendar.getInstance();
     cal.add(Calendar.DATE, days);
-    dql = dql + " and pmf.r_modify_date >= DATE('" + dateFormat.format(cal.getTime()) + "','" + DATE_FORMAT + "')";
-    return dql;
+    return cal.getTime();
+  }
+
+  private Date getModifiedSince(String selectorModifiedDate) {
+    if ("Today".equals(selectorModifiedDate)) {
+      return daysAgo(-1);
+    } else if ("Last 7 days".equals(selectorModifiedDate)) {
+      return daysAgo(-7);
+    } else if ("Last 15 days".equals(selectorModifiedDate)) {
+      return daysAgo(-16);
+    } else if ("Last 30 days".equals(selectorModifiedDate)) {
+      return daysAgo(-31);
+    } else if ("Last 90 days".equals(selectorModifiedDate)) {
+      return daysAgo(-91);
+    } else if ("Last half a year".equals(selectorModifiedDate)) {
+      return daysAgo(-182);
+    } else if ("Last year".equals(selectorModifiedDate)) {
+      return daysAgo(-365);
+    }
+    return null;
   }
 
-  private String getDssName(String type, String id, IDfSession session) throws DfException {
-    String dssName = null;
-    String dql = QUERY_GET_DSS_NAME;
-    dql = QueryUtils.toDql(dql, new String[] {
-        type, id
-    });
-    dssName = QueryUtils.getFirstString(session, dql);
-    return dssName;
+  private void fillDssNames(IDfSession session, List<PosFolder> folders, List<String> folderIds) throws DfException {
+    QueryGroup group = new QueryGroup(session);
+    Future<Map<String, String>> initiatorsResult = group.add(PositionNames.step(INITIATOR_TYPE, folderIds));
+    Future<Map<String, String>> coordinatorsResult = group.add(PositionNames.step(COORDINATOR_TYPE, folderIds));
+    Future<Map<String, String>> correspondentsResult = group.add(PositionNames.step(CORESPONDENT_TYPE, folderIds));
+    Future<Map<String, String>> registrarsResult = group.add(PositionNames.step(REGISTRAR_TYPE, folderIds));
+    group.join();
+    Map<String, String> initiators = QueryGroup.get(initiatorsResult);
+    Map<String, String> coordinators = QueryGroup.get(coordinatorsResult);
+    Map<String, String> correspondents = QueryGroup.get(correspondentsResult);
+    Map<String, String> registrars = QueryGroup.get(registrarsResult);
+    for (int i = 0; i < folders.size(); i++) {
+      PosFolder result = folders.get(i);
+      String objectId = folderIds.get(i);
+      String initiator = initiators.get(objectId);
+      if (!CommonUtils.isEmpty(initiator)) {
+        result.setInitiatorDssName(initiator);
+      }
+      String coordinator = coordinators.get(objectId);
+      if (!CommonUtils.isEmpty(coordinator)) {
+        result.setCoordDssName(coordinator);
+      }
+      String correspondent = correspondents.get(objectId);
+      if (!CommonUtils.isEmpty(correspondent)) {
+        result.setCorrespondentDssName(correspondent);
+      }
+      String registrar = registrars.get(objectId);
+      if (!CommonUtils.isEmpty(registrar)) {
+        result.setRegistrarDssName(registrar);
+      }
+    }
   }
 
   public List<PosFolder> getPosResults(String dssBranch, String dssDocumentType, String medicine, Date runYear, String dssExtExecutor, String correspondentDssCode, String dssUid, String registrarDssCode, String dssRegNumber, Date dsdtRegDateFrom, Date dsdtRegDateTo, Date modifiedDateFrom, Date modifiedDateTo, String initiatorDssCode, String coordinatorDssCode, String dssStatus,
       String selectorModifiedDate) throws DfException {
+    ListConsumer<PosFolder> consumer = new ListConsumer<PosFolder>();
+    stream(dssBranch, dssDocumentType, medicine, runYear, dssExtExecutor, correspondentDssCode, dssUid, registrarDssCode, dssRegNumber, dsdtRegDateFrom, dsdtRegDateTo, modifiedDateFrom, modifiedDateTo, initiatorDssCode, coordinatorDssCode, dssStatus, selectorModifiedDate, consumer);
+    return consumer.getItems();
+  }
+
+  /**
+   * Streaming variant of getPosResults: folders are passed to the consumer as the rows
+   * are read, position names are loaded per batch.
+   */
+  public void stream(String dssBranch, String dssDocumentType, String medicine, Date runYear, String dssExtExecutor, String correspondentDssCode, String dssUid, String registrarDssCode, String dssRegNumber, Date dsdtRegDateFrom, Date dsdtRegDateTo, Date modifiedDateFrom, Date modifiedDateTo, String initiatorDssCode, String coordinatorDssCode, String dssStatus,
+      String selectorModifiedDate, RowConsumer<PosFolder> consumer) throws DfException {
     DfLogger.debug(this, " Get POS Material Folder -> Begin", null, null);
     DfLogger.debug(this, " Get POS Material Folder -> dssBranch[" + dssBranch + "] correspondentDssCode[" + correspondentDssCode + "] dssDocumentType[" + dssDocumentType + "] dssUid[" + dssUid + "]" + "] registrarDssCode[" + registrarDssCode + "]" + "] dssRegNumber[" + dssRegNumber + "]" + "] dsdtRegDateFrom[" + dsdtRegDateFrom + "]" + "] dsdtRegDateTo[" + dsdtRegDateTo + "]"
         + "] modifiedDateFrom[" + modifiedDateFrom + "] modifiedDateTo[" + modifiedDateTo + "]" + "] initiatorDssName[" + initiatorDssCode + "]" + "] coordinatorDssName[" + coordinatorDssCode + "]" + "]" + "] dssStatus[" + dssStatus + "]" + "] selectorModifiedDate[" + selectorModifiedDate + "]", null, null);
     IDfSession session = null;
     session = getSession();
+    final IDfSession querySession = session;
+    // ids of the buffered folders, in the order of the batch
+    final List<String> folderIds = new ArrayList<String>();
+    BatchingConsumer<PosFolder> rowConsumer = new BatchingConsumer<PosFolder>(consumer) {
+      protected void process(List<PosFolder> batch) throws DfException {
+        fillDssNames(querySession, batch, folderIds);
+        folderIds.clear();
+      }
+    };
     IDfCollection collection = null;
-    List<PosFolder> resultList = new ArrayList<PosFolder>();
+    int count = 0;
     try {
 
       IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_POS_FOLDERS;
-
-      if (!CommonUtils.isEmpty(dssBranch)) {
-        dql = dql + " and pmf.dss_branch ='" + dssBranch + "'";
-      }
-
-      if (!CommonUtils.isEmpty(dssDocumentType)) {
-        dql = dql + " and pmf.dss_document_type='" + dssDocumentType + "'";
-      }
-
-      if (!CommonUtils.isEmpty(medicine)) {
-        dql = dql + " and pmf.dss_medicine_name='" + medicine + "'";
-      }
-      if (!CommonUtils.isEmpty(runYear)) {
-        dql = dql + " and pmf.dsdt_run_year like '" + runYear + "%'";
-      }
-
-      if (!CommonUtils.isEmpty(dssExtExecutor)) {
-        dql = dql + " and pmf.dss_ext_executor like '" + dssExtExecutor + "%'";
-      }
-
-      if (!CommonUtils.isEmpty(correspondentDssCode) && !DfId.DF_NULLID_STR.equals(correspondentDssCode) && !correspondentDssCode.equals("0000000000000000")) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_addre, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like '" + correspondentDssCode + "%'))";
-      }
-
-      if (!CommonUtils.isEmpty(dssUid)) {
-        dql = dql + " and pmf.dss_uid like '" + dssUid + "%'";
-      }
-
-      if (!CommonUtils.isEmpty(registrarDssCode) && !DfId.DF_NULLID_STR.equals(registrarDssCode) && !registrarDssCode.equals("0000000000000000")) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_regis, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like '" + registrarDssCode + "%'))";
-      }
-
-      if (!CommonUtils.isEmpty(dssRegNumber)) {
-        dql = dql + " and pmf.dss_reg_number like '" + dssRegNumber + "%'";
-      }
-
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      if (!CommonUtils.isEmpty(dsdtRegDateFrom)) {
-        dql = dql + " and pmf.dsdt_reg_date >= DATE('" + format.format(dsdtRegDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(dsdtRegDateTo)) {
-        dql = dql + " and pmf.dsdt_reg_date <= DATE('" + format.format(dsdtRegDateTo) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(modifiedDateFrom)) {
-        dql = dql + " and pmf.r_modify_date >= DATE('" + format.format(modifiedDateFrom) + "','" + DATE_FORMAT + "')";
-      }
-      if (!CommonUtils.isEmpty(modifiedDateTo)) {
-        dql = dql + " and pmf.r_modify_date <= DATE('" + format.format(modifiedDateTo) + "','" + DATE_FORMAT + "')";
-      }
-
-      if (!CommonUtils.isEmpty(initiatorDssCode) && !DfId.DF_NULLID_STR.equals(initiatorDssCode) && !initiatorDssCode.equals("0000000000000000")) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_initi, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like '" + initiatorDssCode + "%'))";
-      }
-
-      if (!CommonUtils.isEmpty(coordinatorDssCode) && !DfId.DF_NULLID_STR.equals(coordinatorDssCode) && !coordinatorDssCode.equals("0000000000000000")) {
-        dql = dql + " and (exists (select child_id from bd_dms_folder_ph_coord, bd_position_history pos where parent_id=pmf.r_object_id and child_id=pos.r_object_id and pos.dss_code like '" + coordinatorDssCode + "%'))";
-      }
-
-      if (!CommonUtils.isEmpty(dssStatus)) {
-        dql = dql + " and pmf.dss_status='" + dssStatus + "'";
-      }
-
-      if (!CommonUtils.isEmpty(selectorModifiedDate)) {
-        if ("Today".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -1);
-        } else if ("Last 7 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -7);
-        } else if ("Last 15 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -16);
-        } else if ("Last 30 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -31);
-        } else if ("Last 90 days".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -91);
-        } else if ("Last half a year".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -182);
-        } else if ("Last year".equals(selectorModifiedDate)) {
-          dql = filterDays(dql, -365);
-        }
-
-      }
+      String dql = POS_FOLDERS.render(dssBranch, dssDocumentType, medicine, runYear == null ? null : runYear.toString(), dssExtExecutor, QueryTemplate.skipNullId(correspondentDssCode), dssUid, QueryTemplate.skipNullId(registrarDssCode), dssRegNumber, dsdtRegDateFrom, dsdtRegDateTo,
+          modifiedDateFrom, modifiedDateTo, QueryTemplate.skipNullId(initiatorDssCode), QueryTemplate.skipNullId(coordinatorDssCode), dssStatus, getModifiedSince(selectorModifiedDate));
 
       DfLogger.debug(this, " Get POS Material Folder -> dql: " + dql, null, null);
       query.setDQL(dql);
@@ -158,30 +164,18 @@ public class GetPosFolders extends DfSingleDocbaseModule {
         result.setDssStatus(collection.getString("dss_status"));
         result.setDssRegNumber(collection.getString("dss_reg_number"));
         result.setDsdtRegDate(collection.getTime("dsdt_reg_date").getDate());
-        String initiator = getDssName(INITIATOR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(initiator)) {
-          result.setInitiatorDssName(initiator);
-        }
-        String coordinator = getDssName(COORDINATOR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(coordinator)) {
-          result.setCoordDssName(coordinator);
-        }
-        String correspondent = getDssName(CORESPONDENT_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(correspondent)) {
-          result.setCorrespondentDssName(correspondent);
-        }
-        // result.setDiscussions(discussions);
-        String registrar = getDssName(REGISTRAR_TYPE, objectId, session);
-        if (!CommonUtils.isEmpty(registrar)) {
-          result.setRegistrarDssName(registrar);
-        }
         Content content = new Content();
         content.setDocContentType(collection.getString("a_content_type"));
         content.setDocId(collection.getString("r_object_id"));
         result.setContent(content);
-        resultList.add(result);
+        folderIds.add(objectId);
+        count++;
+        if (!rowConsumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " Get POS Material Folder -> Results: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " Get POS Material Folder -> Results: " + count, null, null);
       DfLogger.debug(this, " Get POS Material Folder -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
@@ -192,7 +186,6 @@ public class GetPosFolders extends DfSingleDocbaseModule {
         collection.close();
       }
     }
-    return resultList;
   }
 
 }
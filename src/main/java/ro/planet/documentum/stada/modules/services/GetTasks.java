@@ -1,16 +1,31 @@
 package ro.planet.documentum.stada.modules.services;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ro.planet.documentum.stada.common.utils.common.CommonUtils;
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.beans.Content;
+import ro.planet.documentum.stada.modules.beans.Delta;
 import ro.planet.documentum.stada.modules.beans.DmsFolder;
+import ro.planet.documentum.stada.modules.beans.Page;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
 import ro.planet.documentum.stada.modules.beans.ProcStep;
 import ro.planet.documentum.stada.modules.beans.Task;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.BatchingConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.DeltaQuery;
+import ro.planet.documentum.stada.modules.services.utils.query.KeysetPaging;
+import ro.planet.documentum.stada.modules.services.utils.query.ListConsumer;
+import ro.planet.documentum.stada.modules.services.utils.query.MainFiles;
+import ro.planet.documentum.stada.modules.services.utils.query.Projection;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+import ro.planet.documentum.stada.modules.services.utils.query.ResultCache;
+import ro.planet.documentum.stada.modules.services.utils.query.RowConsumer;
 
 import com.documentum.com.DfClientX;
 import com.documentum.com.IDfClientX;
@@ -19,102 +34,235 @@ import com.documentum.fc.client.IDfCollection;
 import com.documentum.fc.client.IDfQuery;
 import com.documentum.fc.client.IDfSession;
 import com.documentum.fc.common.DfException;
-import com.documentum.fc.common.DfId;
 import com.documentum.fc.common.DfLogger;
 
 public class GetTasks extends DfSingleDocbaseModule {
 
   private static final String DATE_FORMAT = "dd/MM/yyyy";
-  private static final String QUERY_GET_MAIN_FILE = "select r_object_id, a_content_type from bd_document_content where any i_folder_id ='%1'and dss_main_file='%2'";
   private static final IDfClientX clientx = new DfClientX();
-  private static final String QUERY_GET_ALL_TASKS = "select ps.r_object_id as procstepid, f.r_object_id as fldid, w.r_object_id, w.r_runtime_state as taskstate, ps.dsdt_start_date, ps.dsi_day2complete, ps.dss_status,ps.dss_user_name as performer, ps.dss_task_name4user, f.dss_reg_number, f.dss_document_type, q.r_object_id as id_quitm, q.sent_by as sender, q.date_sent, q.dequeued_by as dequeuedby ,q.dequeued_date, w.r_performer_name from  dmi_workitem w, dmi_queue_item q, dmi_package pa, dm_process po, dm_workflow wf , %1 f, dmi_package paproc, bd_proc_step ps where any pa.r_component_id=f.r_object_id and pa.r_package_name='dms_folder' and pa.r_workflow_id=q.router_id and pa.r_act_seqno=w.r_act_seqno and any paproc.r_component_id=ps.r_object_id and paproc.r_package_name='proc_step' and paproc.r_workflow_id=q.router_id and paproc.r_act_seqno=w.r_act_seqno and q.router_id = wf.r_object_id and w.r_object_id = q.item_id and wf.process_id =po.r_object_id  and po.object_name ='Single Performer'";
+  private static final String QUERY_GET_ALL_TASKS = "select %12 from  dmi_workitem w, dmi_queue_item q, dmi_package pa, dm_process po, dm_workflow wf , %1 f, dmi_package paproc, bd_proc_step ps where any pa.r_component_id=f.r_object_id and pa.r_package_name='dms_folder' and pa.r_workflow_id=q.router_id and pa.r_act_seqno=w.r_act_seqno and any paproc.r_component_id=ps.r_object_id and paproc.r_package_name='proc_step' and paproc.r_workflow_id=q.router_id and paproc.r_act_seqno=w.r_act_seqno and q.router_id = wf.r_object_id and w.r_object_id = q.item_id and wf.process_id =po.r_object_id  and po.object_name ='Single Performer'";
   private static final String DEFAULT_FOLDER = "bd_dms_folder";
+  // Task fields -> columns; w.r_object_id and q.date_sent are the keyset keys
+  private static final Projection COLUMNS = new Projection("w.r_object_id", "q.date_sent")
+      .field("workItemId", "w.r_object_id")
+      .field("queueItemId", "q.r_object_id as id_quitm")
+      .field("workitemState", "w.r_runtime_state as taskstate")
+      .field("sender", "q.sent_by as sender")
+      .field("dateSent", "q.date_sent")
+      .field("dequeuedBy", "q.dequeued_by as dequeuedby")
+      .field("dequeuedDate", "q.dequeued_date")
+      .field("workitemPerformer", "w.r_performer_name")
+      .field("dmsFolder", "f.r_object_id as fldid", "f.dss_reg_number", "f.dss_document_type")
+      .field("dmsFolder.content", "f.r_object_id as fldid")
+      .field("procStep", "ps.r_object_id as procstepid", "ps.dsdt_start_date", "ps.dsi_day2complete", "ps.dss_status", "ps.dss_user_name as performer", "ps.dss_task_name4user");
+  private static final KeysetPaging PAGING = new KeysetPaging("q.date_sent", "date_sent", IQueryBuilder.TYPE_DATE, "w.r_object_id", "r_object_id", true);
+  private static final QueryTemplate TASKS = QueryTemplate.builder(QUERY_GET_ALL_TASKS, Slot.NAME, Slot.STRING, Slot.STRING, Slot.STRING, Slot.STRING, Slot.CONTAINS, Slot.STRING, Slot.DATE, Slot.DATE, Slot.NUMBER, Slot.DATETIME, Slot.DQL)
+      .condition(IQueryBuilder.LOGICAL_AND, "w.r_performer_name=%2")
+      .condition(IQueryBuilder.LOGICAL_AND, "q.sent_by=%3")
+      .condition(IQueryBuilder.LOGICAL_AND, "ps.dss_task_name4user=%4")
+      .condition(IQueryBuilder.LOGICAL_AND, "fd.dss_document_type=%5")
+      .condition(IQueryBuilder.LOGICAL_AND, "fd.dss_reg_number like %6")
+      .condition(IQueryBuilder.LOGICAL_AND, "ps.dss_status=%7")
+      .condition(IQueryBuilder.LOGICAL_AND, "ps.dsdt_start_date >= %8")
+      .condition(IQueryBuilder.LOGICAL_AND, "ps.dsdt_start_date <= %9")
+      .condition(IQueryBuilder.LOGICAL_AND, "(q.date_sent >= %11 or ps.r_modify_date >= %11 or f.r_modify_date >= %11)")
+      .optional(" ENABLE (RETURN_TOP %10)")
+      .dateFormat(DATE_FORMAT).build();
+  // cheap check whether a cached list is still valid: TASKS with the same filter, aggregated over queue items, proc steps and folders
+  private static final String WATERMARK_COLUMNS = "count(*) as cnt, max(q.date_sent) as sent, max(q.dequeued_date) as dequeued, max(ps.r_modify_date) as step_modified, max(f.r_modify_date) as folder_modified";
+  // tasks completed, delegated or otherwise dequeued since the last call
+  private static final QueryTemplate TASKS_REMOVED = QueryTemplate.builder("select r_object_id from dmi_queue_item where dequeued_date >= %3", Slot.STRING, Slot.STRING, Slot.DATETIME)
+      .condition(IQueryBuilder.LOGICAL_AND, "name=%1")
+      .condition(IQueryBuilder.LOGICAL_AND, "sent_by=%2").build();
 
-  public List<Task> getResults(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, int rowsNr) throws DfException {
-    DfLogger.debug(this, " GetTasks -> QUERY_GET_ALL_TASKS[" + QUERY_GET_ALL_TASKS + "]", null, null);
-    DfLogger.debug(this, " GetTasks -> performer[" + performer + "] taskName[" + taskName + "] docType[" + docType + "] documentKind[" + documentKind + "] regNumber[" + regNumber + "] dssStatus[" + dssStatus + "] dsdtStartDateFrom[" + dsdtStartDateFrom + "] dsdtStartDateTo[" + dsdtStartDateTo + "] sender[" + sender + "] rowsNr[" + rowsNr + "]", null, null);
-    List<Task> resultList = new ArrayList<Task>();
+  /**
+   * Served from the ResultCache when it is enabled.
+   */
+  public List<Task> getResults(final String performer, final String taskName, final String docType, final String documentKind, final String regNumber, final String dssStatus, final Date dsdtStartDateFrom, final Date dsdtStartDateTo, final String sender, final int rowsNr) throws DfException {
     IDfSession session = null;
-    IDfCollection collection = null;
     try {
       session = getSession();
-      IDfQuery query = clientx.getQuery();
-      String dql = QUERY_GET_ALL_TASKS;
-      String type = DEFAULT_FOLDER;
-      if (!CommonUtils.isEmpty(docType)) {
-        type = docType;
-      }
-      dql = QueryUtils.toDql(dql, new String[] {
-        type
+      String watermark = TASKS.render(getFolderType(docType), QueryTemplate.skipNullId(performer), QueryTemplate.skipNullId(sender), taskName, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, null, null, WATERMARK_COLUMNS);
+      return ResultCache.getInstance().get(session, "GetTasks", watermark, new Object[] {
+          performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, rowsNr
+      }, new ResultCache.Loader<Task>() {
+        public List<Task> load() throws DfException {
+          ListConsumer<Task> consumer = new ListConsumer<Task>();
+          query(performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, rowsNr, null, null, null, consumer);
+          return consumer.getItems();
+        }
       });
-      if (!CommonUtils.isEmpty(performer) && !DfId.DF_NULLID_STR.equals(performer)) {
-        dql = dql + " and w.r_performer_name='" + performer + "'";
-      }
+    } finally {
+      releaseSession(session);
+    }
+  }
 
-      if (!CommonUtils.isEmpty(sender) && !DfId.DF_NULLID_STR.equals(sender)) {
-        dql = dql + " and q.sent_by='" + sender + "'";
-      }
+  public Page<Task> getPage(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, PageRequest page) throws DfException {
+    return getPage(performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, page, null);
+  }
 
-      if (!CommonUtils.isEmpty(taskName)) {
-        dql = dql + " and ps.dss_task_name4user='" + taskName + "'";
-      }
-      if (!CommonUtils.isEmpty(documentKind)) {
-        dql = dql + " and fd.dss_document_type='" + documentKind + "'";
-      }
-      if (!CommonUtils.isEmpty(regNumber)) {
-        dql = dql + " and fd.dss_reg_number like '%" + regNumber + "%'";
-      }
-      if (!CommonUtils.isEmpty(dssStatus)) {
-        dql = dql + " and ps.dss_status='" + dssStatus + "'";
-      }
+  /**
+   * Paged variant returning only the requested Task fields (queueItemId,
+   * procStep, dmsFolder, dmsFolder.content, ...); null or empty means all of
+   * them. Main files are only loaded for dmsFolder.content.
+   */
+  public Page<Task> getPage(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, PageRequest page, Set<String> fields) throws DfException {
+    Page<Task> resultPage = new Page<Task>();
+    resultPage.setNextToken(query(performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, 0, page, null, fields, new ListConsumer<Task>(resultPage.getItems())));
+    return resultPage;
+  }
+
+  /**
+   * Streaming variant: tasks are passed to the consumer as the rows are read,
+   * main files are loaded per batch.
+   */
+  public void stream(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, RowConsumer<Task> consumer) throws DfException {
+    query(performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, 0, null, null, null, consumer);
+  }
 
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      if (!CommonUtils.isEmpty(dsdtStartDateFrom)) {
-        dql = dql + " and ps.dsdt_start_date >= DATE('" + format.format(dsdtStartDateFrom) + "','" + DATE_FORMAT + "')";
+  /**
+   * Tasks created or modified since changedSince and queue item ids of the
+   * tasks that left the list: dequeued ones and, when the list is filtered
+   * by task, document or proc step attributes, tasks whose proc step or
+   * folder changed so that they no longer match. The latter may include ids
+   * of new tasks that never matched. Without changedSince all tasks are
+   * returned. The asOf of the result is the changedSince of the next call;
+   * on error nothing is returned.
+   */
+  public Delta<Task> getChanges(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, Date changedSince) throws DfException {
+    Delta<Task> delta = new Delta<Task>();
+    IDfSession session = null;
+    try {
+      session = getSession();
+      // taken before the queries, so changes made meanwhile are returned again next time
+      Date asOf = DeltaQuery.serverTime(session);
+      query(performer, taskName, docType, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, sender, 0, null, changedSince, null, new ListConsumer<Task>(delta.getItems()));
+      if (changedSince != null) {
+        String dql = TASKS_REMOVED.render(QueryTemplate.skipNullId(performer), QueryTemplate.skipNullId(sender), changedSince);
+        DfLogger.debug(this, " GetTasks -> removed dql: " + dql, null, null);
+        DeltaQuery.readIds(session, dql, "r_object_id", delta.getRemovedIds());
+        if (!CommonUtils.isEmpty(taskName) || !CommonUtils.isEmpty(documentKind) || !CommonUtils.isEmpty(regNumber) || !CommonUtils.isEmpty(dssStatus) || dsdtStartDateFrom != null || dsdtStartDateTo != null) {
+          addFilteredOut(session, performer, docType, sender, changedSince, delta);
+        }
       }
-      if (!CommonUtils.isEmpty(dsdtStartDateTo)) {
-        dql = dql + " and ps.dsdt_start_date <= DATE('" + format.format(dsdtStartDateTo) + "','" + DATE_FORMAT + "')";
+      delta.setAsOf(asOf);
+    } finally {
+      releaseSession(session);
+    }
+    return delta;
+  }
+
+  /**
+   * Adds the tasks of the performer changed since changedSince which are not
+   * among the changed tasks matching the filter.
+   */
+  private void addFilteredOut(IDfSession session, String performer, String docType, String sender, Date changedSince, Delta<Task> delta) throws DfException {
+    String dql = TASKS.render(getFolderType(docType), QueryTemplate.skipNullId(performer), QueryTemplate.skipNullId(sender), null, null, null, null, null, null, null, changedSince, "q.r_object_id as id_quitm");
+    DfLogger.debug(this, " GetTasks -> filtered out dql: " + dql, null, null);
+    List<String> changed = new ArrayList<String>();
+    DeltaQuery.readIds(session, dql, "id_quitm", changed);
+    Set<String> matching = new HashSet<String>();
+    for (Task task : delta.getItems()) {
+      matching.add(task.getQueueItemId());
+    }
+    for (String id : changed) {
+      if (!matching.contains(id) && !delta.getRemovedIds().contains(id)) {
+        delta.getRemovedIds().add(id);
       }
+    }
+  }
 
-      if (0 != rowsNr) {
-        dql = dql + " ENABLE (RETURN_TOP " + Integer.toString(rowsNr) + ")";
+  private String query(String performer, String taskName, String docType, String documentKind, String regNumber, String dssStatus, Date dsdtStartDateFrom, Date dsdtStartDateTo, String sender, int rowsNr, PageRequest page, Date changedSince, final Set<String> fields, RowConsumer<Task> consumer) throws DfException {
+    DfLogger.debug(this, " GetTasks -> QUERY_GET_ALL_TASKS[" + QUERY_GET_ALL_TASKS + "]", null, null);
+    DfLogger.debug(this, " GetTasks -> performer[" + performer + "] taskName[" + taskName + "] docType[" + docType + "] documentKind[" + documentKind + "] regNumber[" + regNumber + "] dssStatus[" + dssStatus + "] dsdtStartDateFrom[" + dsdtStartDateFrom + "] dsdtStartDateTo[" + dsdtStartDateTo + "] sender[" + sender + "] rowsNr[" + rowsNr + "] changedSince[" + changedSince + "] fields[" + fields + "]", null, null);
+    String nextToken = null;
+    int count = 0;
+    IDfSession session = null;
+    IDfCollection collection = null;
+    try {
+      session = getSession();
+      final IDfSession querySession = session;
+      BatchingConsumer<Task> rowConsumer = new BatchingConsumer<Task>(consumer) {
+        protected void process(List<Task> batch) throws DfException {
+          if (Projection.has(fields, "dmsFolder.content")) {
+            setMainFileProperties(batch, querySession, "01");
+          }
+        }
+      };
+      IDfQuery query = clientx.getQuery();
+      String dql = TASKS.render(getFolderType(docType), QueryTemplate.skipNullId(performer), QueryTemplate.skipNullId(sender), taskName, documentKind, regNumber, dssStatus, dsdtStartDateFrom, dsdtStartDateTo, page == null && 0 != rowsNr ? Integer.valueOf(rowsNr) : null, changedSince, COLUMNS.select(fields));
+      if (page != null) {
+        dql = PAGING.apply(dql, page);
       }
       DfLogger.debug(this, " GetTasks -> dql: " + dql, null, null);
       query.setDQL(dql);
       collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+      String lastToken = null;
       while (collection.next()) {
+        if (page != null && count == page.getPageSize()) {
+          nextToken = lastToken;
+          break;
+        }
         Task result = new Task();
         DmsFolder dmsFolder = new DmsFolder();
         ProcStep procStep = new ProcStep();
         result.setProcStep(procStep);
         result.setDmsFolder(dmsFolder);
-        result.setDateSent(collection.getTime("date_sent").getDate());
-        result.setDequeuedBy(collection.getString("dequeuedby"));
-        result.setDequeuedDate(collection.getTime("dequeued_date").getDate());
-        result.setQueueItemId(collection.getString("id_quitm"));
-        result.setSender(collection.getString("sender"));
         result.setWorkItemId(collection.getString("r_object_id"));
-        result.setWorkitemPerformer(collection.getString("r_performer_name"));
-        result.setWorkitemState(collection.getInt("taskstate"));
-
-        dmsFolder.setId(collection.getString("fldid"));
-        dmsFolder.setDssRegNumber(collection.getString("dss_reg_number"));
-        dmsFolder.setDssDocumentType(collection.getString("dss_document_type"));
-
-        procStep.setObjectId(collection.getString("procstepid"));
-        procStep.setDsdtStartDate(collection.getTime("dsdt_start_date").getDate());
-        procStep.setDsiDay2Complete(collection.getInt("dsi_day2complete"));
-        procStep.setDssStatus(collection.getString("dss_status"));
-        procStep.setDssUserName(collection.getString("performer"));
-        procStep.setDssTaskName4User(collection.getString("dss_task_name4user"));
-
-        setMainFileProperties(result, session, "01");
-        resultList.add(result);
+        if (Projection.has(fields, "dateSent")) {
+          result.setDateSent(collection.getTime("date_sent").getDate());
+        }
+        if (Projection.has(fields, "dequeuedBy")) {
+          result.setDequeuedBy(collection.getString("dequeuedby"));
+        }
+        if (Projection.has(fields, "dequeuedDate")) {
+          result.setDequeuedDate(collection.getTime("dequeued_date").getDate());
+        }
+        if (Projection.has(fields, "queueItemId")) {
+          result.setQueueItemId(collection.getString("id_quitm"));
+        }
+        if (Projection.has(fields, "sender")) {
+          result.setSender(collection.getString("sender"));
+        }
+        if (Projection.has(fields, "workitemPerformer")) {
+          result.setWorkitemPerformer(collection.getString("r_performer_name"));
+        }
+        if (Projection.has(fields, "workitemState")) {
+          result.setWorkitemState(collection.getInt("taskstate"));
+        }
+
+        if (Projection.has(fields, "dmsFolder") || Projection.has(fields, "dmsFolder.content")) {
+          dmsFolder.setId(collection.getString("fldid"));
+        }
+        if (Projection.has(fields, "dmsFolder")) {
+          dmsFolder.setDssRegNumber(collection.getString("dss_reg_number"));
+          dmsFolder.setDssDocumentType(collection.getString("dss_document_type"));
+        }
+
+        if (Projection.has(fields, "procStep")) {
+          procStep.setObjectId(collection.getString("procstepid"));
+          procStep.setDsdtStartDate(collection.getTime("dsdt_start_date").getDate());
+          procStep.setDsiDay2Complete(collection.getInt("dsi_day2complete"));
+          procStep.setDssStatus(collection.getString("dss_status"));
+          procStep.setDssUserName(collection.getString("performer"));
+          procStep.setDssTaskName4User(collection.getString("dss_task_name4user"));
+        }
+
+        count++;
+        if (page != null) {
+          lastToken = PAGING.getToken(collection);
+        }
+        if (!rowConsumer.accept(result)) {
+          break;
+        }
       }
-      DfLogger.debug(this, " GetTasks -> Results: " + resultList.size(), null, null);
+      rowConsumer.flush();
+      DfLogger.debug(this, " GetTasks -> Results: " + count, null, null);
       DfLogger.debug(this, " GetTasks -> End", null, null);
     } catch (DfException e) {
       DfLogger.error(this, " executeStatement -> Error: " + e.getMessage(), null, e);
+      // a partial or empty list must not reach the caller or the result cache
+      throw e;
     } finally {
       releaseSession(session);
       if (collection != null) {
@@ -122,29 +270,24 @@ public class GetTasks extends DfSingleDocbaseModule {
       }
     }
 
-    return resultList;
+    return nextToken;
   }
 
-  private void setMainFileProperties(Task result, IDfSession session, String mainFileCondition) throws DfException {
-    if (!CommonUtils.isEmpty(result.getDmsFolder()) && !CommonUtils.isEmpty(result.getDmsFolder().getId())) {
-      IDfCollection collection = null;
-      try {
-        IDfQuery query = clientx.getQuery();
-        String dql = QueryUtils.toDql(QUERY_GET_MAIN_FILE, new String[] {
-            result.getDmsFolder().getId(), mainFileCondition
-        });
-        query.setDQL(dql);
-        collection = query.execute(session, IDfQuery.DF_READ_QUERY);
-        while (collection.next()) {
-          Content content = new Content();
-          content.setDocContentType(collection.getString("a_content_type"));
-          content.setDocId(collection.getString("r_object_id"));
-          result.getDmsFolder().setContent(content);
-        }
-      } finally {
-        if (collection != null) {
-          collection.close();
-        }
+  private static String getFolderType(String docType) {
+    return CommonUtils.isEmpty(docType) ? DEFAULT_FOLDER : docType;
+  }
+
+  private void setMainFileProperties(List<Task> results, IDfSession session, String mainFileCondition) throws DfException {
+    List<String> folderIds = new ArrayList<String>();
+    for (Task result : results) {
+      if (!CommonUtils.isEmpty(result.getDmsFolder()) && !CommonUtils.isEmpty(result.getDmsFolder().getId())) {
+        folderIds.add(result.getDmsFolder().getId());
+      }
+    }
+    Map<String, Content> contents = MainFiles.load(session, folderIds, mainFileCondition);
+    for (Task result : results) {
+      if (!CommonUtils.isEmpty(result.getDmsFolder()) && contents.containsKey(result.getDmsFolder().getId())) {
+        result.getDmsFolder().setContent(contents.get(result.getDmsFolder().getId()));
       }
     }
   }
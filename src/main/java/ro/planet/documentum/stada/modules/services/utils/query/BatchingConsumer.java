@@ -0,0 +1,62 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.documentum.fc.common.DfException;
+
+/**
+ * Buffers beans into batches, completes each batch with batched queries
+ * (names, main files, ...) and passes it on to the target consumer. Keeps the
+ * number of additional queries per row constant while streaming. flush must
+ * be called after the last row.
+ */
+public abstract class BatchingConsumer<T> implements RowConsumer<T> {
+
+    private final RowConsumer<T> target;
+    private final int batchSize;
+    private final List<T> batch = new ArrayList<T>();
+    private boolean stopped;
+
+    public BatchingConsumer(RowConsumer<T> target) {
+        this(target, InListQuery.DEFAULT_CHUNK_SIZE);
+    }
+
+    public BatchingConsumer(RowConsumer<T> target, int batchSize) {
+        this.target = target;
+        this.batchSize = batchSize;
+    }
+
+    public boolean accept(T item) throws DfException {
+        batch.add(item);
+        if (batch.size() >= batchSize) {
+            return flush();
+        }
+        return true;
+    }
+
+    /**
+     * Completes and passes on the buffered beans.
+     *
+     * @return false if the target consumer stopped
+     */
+    public boolean flush() throws DfException {
+        if (stopped || batch.isEmpty()) {
+            return !stopped;
+        }
+        try {
+            process(batch);
+            for (T item : batch) {
+                if (!target.accept(item)) {
+                    stopped = true;
+                    break;
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+        return !stopped;
+    }
+
+    protected abstract void process(List<T> batch) throws DfException;
+}
@@ -0,0 +1,145 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import ro.planet.documentum.stada.modules.beans.CaseDocumentsAndMainFile;
+import ro.planet.documentum.stada.modules.beans.Content;
+import ro.planet.documentum.stada.modules.beans.DmsFolder;
+import ro.planet.documentum.stada.modules.beans.InfoList;
+import ro.planet.documentum.stada.modules.beans.Notification;
+import ro.planet.documentum.stada.modules.beans.Resolution;
+
+import com.documentum.fc.common.DfException;
+
+import framework.ru.documentum.utils.RowMapper;
+import framework.ru.documentum.utils.RowMapper.Row;
+
+/**
+ * Row mappers of the beans shared by the list services. Column indexes are
+ * resolved once per collection:
+ *
+ * <pre>
+ * Row row = BeanMappers.DMS_FOLDER.bind(collection);
+ * while (collection.next()) {
+ *     DmsFolder folder = BeanMappers.DMS_FOLDER.map(row);
+ * }
+ * </pre>
+ *
+ * Columns missing from the select list leave their bean fields unset.
+ */
+public final class BeanMappers {
+
+    /**
+     * Folder of a dms folder query with its main file joined in
+     * (r_object_id, a_content_type of the content).
+     */
+    public static final RowMapper<DmsFolder> DMS_FOLDER = new RowMapper<DmsFolder>("fld_id", "r_object_type", "dss_description", "dss_document_type",
+            "dss_reg_number", "r_modify_date", "dss_status", "a_content_type", "r_object_id") {
+        public DmsFolder map(Row row) throws DfException {
+            DmsFolder result = new DmsFolder();
+            result.setId(row.getString(0));
+            result.setType(row.getString(1));
+            result.setDssDescription(row.getString(2));
+            result.setDssDocumentType(row.getString(3));
+            result.setDssRegNumber(row.getString(4));
+            result.setModifiedDate(row.getDate(5));
+            result.setDssStatus(row.getString(6));
+            if (row.has(7)) {
+                Content content = new Content();
+                content.setDocContentType(row.getString(7));
+                content.setDocId(row.getString(8));
+                result.setContent(content);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Main file content; column 2 is the repeating i_folder_id.
+     */
+    public static final RowMapper<Content> CONTENT = new RowMapper<Content>("r_object_id", "a_content_type", "i_folder_id") {
+        public Content map(Row row) throws DfException {
+            Content content = new Content();
+            content.setDocId(row.getString(0));
+            content.setDocContentType(row.getString(1));
+            return content;
+        }
+    };
+
+    /**
+     * Info list with its folder (fldid and the folder attributes).
+     */
+    public static final RowMapper<InfoList> INFO_LIST = new RowMapper<InfoList>("r_object_id", "r_object_type", "dss_instruction", "dss_user_name",
+            "dsdt_start_date", "dsi_day2complete", "fldid", "dss_document_type", "dss_reg_number", "dss_status") {
+        public InfoList map(Row row) throws DfException {
+            InfoList result = new InfoList();
+            result.setObjectId(row.getString(0));
+            result.setObjectType(row.getString(1));
+            result.setDssInstruction(row.getString(2));
+            result.setDssUserName(row.getString(3));
+            result.setDsdtStartDate(row.getDate(4));
+            result.setDsiDay2Complete(row.getInt(5));
+            DmsFolder dmsFolder = new DmsFolder();
+            dmsFolder.setId(row.getString(6));
+            dmsFolder.setDssDocumentType(row.getString(7));
+            dmsFolder.setDssRegNumber(row.getString(8));
+            dmsFolder.setDssStatus(row.getString(9));
+            result.setFolder(dmsFolder);
+            return result;
+        }
+    };
+
+    public static final RowMapper<Notification> NOTIFICATION = new RowMapper<Notification>("r_object_id", "r_object_type", "dss_notification", "dss_name",
+            "dsdt_start_date", "dss_full_message", "dss_doc_id", "dss_notify_type") {
+        public Notification map(Row row) throws DfException {
+            Notification result = new Notification();
+            result.setObjectId(row.getString(0));
+            result.setObjectType(row.getString(1));
+            result.setDssNotification(row.getString(2));
+            result.setDssName(row.getString(3));
+            result.setDsdtStartDate(row.getDate(4));
+            result.setDssFullMessage(row.getString(5));
+            result.setDssDocId(row.getString(6));
+            result.setDssNotifyType(row.getString(7));
+            return result;
+        }
+    };
+
+    public static final RowMapper<Resolution> RESOLUTION = new RowMapper<Resolution>("r_object_id", "r_object_type", "dss_description", "dss_reg_number",
+            "dsdt_creation_date", "dsdt_sent_to_exct", "dsdt_exp_finish_date", "author", "performer", "controller", "dss_status", "fldid") {
+        public Resolution map(Row row) throws DfException {
+            Resolution result = new Resolution();
+            result.setId(row.getString(0));
+            result.setType(row.getString(1));
+            result.setDssDescription(row.getString(2));
+            result.setFldDssRegNumber(row.getString(3));
+            result.setDsdtCreationDate(row.getDate(4));
+            result.setDsdtSentToExct(row.getDate(5));
+            result.setDsdtExpFinishDate(row.getDate(6));
+            result.setAuthor(row.getString(7));
+            result.setPerformer(row.getString(8));
+            result.setController(row.getString(9));
+            result.setDssStatus(row.getString(10));
+            result.setFolderId(row.getString(11));
+            return result;
+        }
+    };
+
+    public static final RowMapper<CaseDocumentsAndMainFile> CASE_DOCUMENT = new RowMapper<CaseDocumentsAndMainFile>("r_object_id", "r_object_type",
+            "dss_child_folder", "dss_parent_folder", "dss_comment", "dss_document_type", "dsdt_modify", "dss_modify_by", "dss_reg_number") {
+        public CaseDocumentsAndMainFile map(Row row) throws DfException {
+            CaseDocumentsAndMainFile result = new CaseDocumentsAndMainFile();
+            result.setCaseDocId(row.getString(0));
+            result.setCaseDocObjectType(row.getString(1));
+            result.setChildFolder(row.getString(2));
+            result.setParentFolder(row.getString(3));
+            result.setComment(row.getString(4));
+            result.setDocument_type(row.getString(5));
+            result.setModify(row.getDate(6));
+            result.setModifyBy(row.getString(7));
+            result.setRegistationNumber(row.getString(8));
+            return result;
+        }
+    };
+
+    private BeanMappers() {
+    }
+}
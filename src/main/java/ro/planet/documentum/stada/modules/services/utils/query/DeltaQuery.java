@@ -0,0 +1,65 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.Collection;
+import java.util.Date;
+
+import com.documentum.com.DfClientX;
+import com.documentum.com.IDfClientX;
+import com.documentum.fc.client.IDfCollection;
+import com.documentum.fc.client.IDfQuery;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+
+/**
+ * Helpers of the "changed since" service methods.
+ */
+public class DeltaQuery {
+
+    private static final IDfClientX clientx = new DfClientX();
+    private static final String QUERY_GET_SERVER_TIME = "select DATE(NOW) as now from dm_docbase_config";
+
+    /**
+     * Current time of the content server, so that the next changedSince does
+     * not depend on the client clock.
+     */
+    public static Date serverTime(IDfSession session) throws DfException {
+        IDfCollection collection = null;
+        try {
+            collection = execute(session, QUERY_GET_SERVER_TIME);
+            if (!collection.next()) {
+                throw new DfException("Cannot read the server time");
+            }
+            return collection.getTime("now").getDate();
+        } finally {
+            if (collection != null) {
+                collection.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the values of the attribute from all rows of the query to ids.
+     */
+    public static void readIds(IDfSession session, String dql, String attribute, Collection<String> ids) throws DfException {
+        IDfCollection collection = null;
+        try {
+            collection = execute(session, dql);
+            while (collection.next()) {
+                String id = collection.getString(attribute);
+                if (!ids.contains(id)) {
+                    ids.add(id);
+                }
+            }
+        } finally {
+            if (collection != null) {
+                collection.close();
+            }
+        }
+    }
+
+    private static IDfCollection execute(IDfSession session, String dql) throws DfException {
+        IDfQuery query = clientx.getQuery();
+        query.setDQL(dql);
+        return query.execute(session, IDfQuery.DF_READ_QUERY);
+    }
+}
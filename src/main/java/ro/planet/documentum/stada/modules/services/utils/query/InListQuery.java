@@ -0,0 +1,54 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import ro.planet.documentum.stada.common.utils.query.QueryUtils;
+import ro.planet.documentum.stada.common.utils.query.RowHandler;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+
+/**
+ * Runs a query for a set of values passed as an IN list. The list is split
+ * into chunks so that a single statement stays within the server limits.
+ * The query must contain the %ids placeholder, e.g.
+ * "select ... where parent_id in (%ids)".
+ */
+public class InListQuery {
+
+    public static final String IDS_PLACEHOLDER = "%ids";
+    public static final int DEFAULT_CHUNK_SIZE = 250;
+
+    public static void execute(IDfSession session, String dql, Collection<String> values, RowHandler handler) throws DfException {
+        execute(session, dql, values, DEFAULT_CHUNK_SIZE, handler);
+    }
+
+    public static void execute(IDfSession session, String dql, Collection<String> values, int chunkSize, RowHandler handler) throws DfException {
+        int placeholder = dql.indexOf(IDS_PLACEHOLDER);
+        if (placeholder == -1) {
+            throw new DfException("Query has no " + IDS_PLACEHOLDER + " placeholder: " + dql);
+        }
+        // only the first occurrence: literals after it may contain the same text
+        String head = dql.substring(0, placeholder);
+        String tail = dql.substring(placeholder + IDS_PLACEHOLDER.length());
+        List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(values));
+        for (int from = 0; from < distinct.size(); from += chunkSize) {
+            List<String> chunk = distinct.subList(from, Math.min(from + chunkSize, distinct.size()));
+            QueryUtils.executeQuery(session, head + toInList(chunk) + tail, handler);
+        }
+    }
+
+    public static String toInList(Collection<String> values) {
+        StringBuilder list = new StringBuilder();
+        for (String value : values) {
+            if (list.length() > 0) {
+                list.append(",");
+            }
+            list.append("'").append(QueryUtils.toDqlToken(value)).append("'");
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,201 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+
+import ro.planet.documentum.stada.common.utils.query.QueryUtils;
+import ro.planet.documentum.stada.modules.beans.PageRequest;
+import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+
+import com.documentum.fc.client.IDfTypedObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfId;
+import com.documentum.fc.common.DfTime;
+import com.documentum.fc.common.IDfTime;
+
+/**
+ * Keyset paging for list queries. Rows are ordered by a sort attribute and
+ * r_object_id; the continuation token holds both values of the last row of
+ * the previous page and is turned into a "after this row" predicate, so every
+ * page costs the same as the first one regardless of its depth.
+ * The sort attribute must not be empty (e.g. r_modify_date, object_name).
+ * <p>
+ * When a join returns several rows per object (folder left join its main
+ * files), the key is made unique with a tie-breaker id of the joined object.
+ * It may be null only for an object that has a single row.
+ */
+public class KeysetPaging {
+
+    public static final String TIME_PATTERN = "yyyy/mm/dd hh:mi:ss";
+
+    private static final String ENCODING = "UTF-8";
+    private static final char SEPARATOR = '\n';
+
+    private final String sortAttribute;
+    private final String sortColumn;
+    private final String sortType;
+    private final String idAttribute;
+    private final String idColumn;
+    private final String tieAttribute;
+    private final String tieColumn;
+    private final boolean descending;
+
+    /**
+     * @param sortAttribute
+     *            sort attribute as used in the query, e.g. bdf.r_modify_date
+     * @param sortColumn
+     *            name of the sort attribute in the result, e.g. r_modify_date
+     * @param sortType
+     *            IQueryBuilder.TYPE_DATE or IQueryBuilder.TYPE_STRING
+     * @param idAttribute
+     *            id attribute as used in the query, e.g. bdf.r_object_id
+     * @param idColumn
+     *            name of the id attribute in the result, e.g. fld_id
+     * @param descending
+     *            sort order
+     */
+    public KeysetPaging(String sortAttribute, String sortColumn, String sortType, String idAttribute, String idColumn, boolean descending) {
+        this(sortAttribute, sortColumn, sortType, idAttribute, idColumn, null, null, descending);
+    }
+
+    /**
+     * @param tieAttribute
+     *            id of the joined object as used in the query, e.g.
+     *            doc.r_object_id
+     * @param tieColumn
+     *            name of that id in the result, e.g. r_object_id
+     */
+    public KeysetPaging(String sortAttribute, String sortColumn, String sortType, String idAttribute, String idColumn, String tieAttribute, String tieColumn,
+            boolean descending) {
+        this.sortAttribute = sortAttribute;
+        this.sortColumn = sortColumn;
+        this.sortType = sortType;
+        this.idAttribute = idAttribute;
+        this.idColumn = idColumn;
+        this.tieAttribute = tieAttribute;
+        this.tieColumn = tieColumn;
+        this.descending = descending;
+    }
+
+    /**
+     * Adds the keyset predicate (for a page after the first one), the order
+     * by clause and RETURN_TOP to a query ending with its where clause.
+     */
+    public String apply(String dql, PageRequest page) throws DfException {
+        String predicate = getPredicate(page);
+        return (predicate == null ? dql : dql + " and " + predicate) + getSuffix(page);
+    }
+
+    /**
+     * Returns the "after the last row of the previous page" condition or null
+     * for the first page.
+     */
+    public String getPredicate(PageRequest page) throws DfException {
+        String token = page.getContinuationToken();
+        if (token == null || token.length() == 0) {
+            return null;
+        }
+        String[] key = decode(token);
+        String sortValue;
+        if (IQueryBuilder.TYPE_DATE.equals(sortType)) {
+            sortValue = "DATE('" + QueryUtils.toDqlToken(key[0]) + "','" + TIME_PATTERN + "')";
+        } else {
+            sortValue = "'" + QueryUtils.toDqlToken(key[0]) + "'";
+        }
+        String id = "'" + key[1] + "'";
+        String operator = descending ? "<" : ">";
+        String afterId = idAttribute + operator + id;
+        if (tieAttribute != null && key[2].length() > 0) {
+            // rows of the same object after the last joined row
+            afterId = "(" + afterId + " or (" + idAttribute + "=" + id + " and " + tieAttribute + operator + "'" + key[2] + "'))";
+        }
+        return "(" + sortAttribute + operator + sortValue + " or (" + sortAttribute + "=" + sortValue + " and " + afterId + "))";
+    }
+
+    /**
+     * Returns the order by clause and RETURN_TOP. One row more than the page
+     * size is requested to find out whether there is a next page.
+     */
+    public String getSuffix(PageRequest page) throws DfException {
+        String order = descending ? " desc" : " asc";
+        String tie = tieAttribute == null ? "" : ", " + tieAttribute + order;
+        return " order by " + sortAttribute + order + ", " + idAttribute + order + tie + " ENABLE (RETURN_TOP " + (getPageSize(page) + 1) + ")";
+    }
+
+    /**
+     * Returns the token pointing after the current row.
+     */
+    public String getToken(IDfTypedObject row) throws DfException {
+        String sortValue;
+        if (IQueryBuilder.TYPE_DATE.equals(sortType)) {
+            sortValue = row.getTime(sortColumn).asString(TIME_PATTERN);
+        } else {
+            sortValue = row.getString(sortColumn);
+        }
+        return encode(sortValue, row.getString(idColumn), tieColumn == null ? null : row.getString(tieColumn));
+    }
+
+    /**
+     * Returns the token pointing after a row with the given date sort value.
+     */
+    public String getToken(Date sortValue, String id) throws DfException {
+        return getToken(sortValue, id, null);
+    }
+
+    /**
+     * Returns the token pointing after a row with the given date sort value
+     * and tie-breaker id (null or empty if the row has no joined object).
+     */
+    public String getToken(Date sortValue, String id, String tieId) throws DfException {
+        return encode(new DfTime(sortValue).asString(TIME_PATTERN), id, tieColumn == null ? null : tieId);
+    }
+
+    public static int getPageSize(PageRequest page) throws DfException {
+        if (page.getPageSize() <= 0) {
+            throw new DfException("Page size must be positive: " + page.getPageSize());
+        }
+        return page.getPageSize();
+    }
+
+    private String encode(String sortValue, String id, String tieId) throws DfException {
+        String value = sortValue + SEPARATOR + id;
+        if (tieAttribute != null) {
+            value += SEPARATOR + (tieId == null ? "" : tieId);
+        }
+        try {
+            return DatatypeConverter.printBase64Binary(value.getBytes(ENCODING));
+        } catch (UnsupportedEncodingException ex) {
+            throw new DfException(ex.getMessage());
+        }
+    }
+
+    private String[] decode(String token) throws DfException {
+        String value;
+        try {
+            value = new String(DatatypeConverter.parseBase64Binary(token), ENCODING);
+        } catch (UnsupportedEncodingException ex) {
+            throw new DfException(ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            throw new DfException("Invalid continuation token: " + token);
+        }
+        String tieId = "";
+        if (tieAttribute != null) {
+            int index = value.lastIndexOf(SEPARATOR);
+            tieId = index == -1 ? null : value.substring(index + 1);
+            if (tieId == null || (tieId.length() > 0 && !DfId.isObjectId(tieId))) {
+                throw new DfException("Invalid continuation token: " + token);
+            }
+            value = value.substring(0, index);
+        }
+        int index = value.lastIndexOf(SEPARATOR);
+        String id = index == -1 ? null : value.substring(index + 1);
+        if (id == null || !DfId.isObjectId(id)) {
+            throw new DfException("Invalid continuation token: " + token);
+        }
+        return new String[] {
+            value.substring(0, index), id, tieId
+        };
+    }
+}
@@ -0,0 +1,29 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects all beans into a list; used by the non-streaming service methods.
+ */
+public class ListConsumer<T> implements RowConsumer<T> {
+
+    private final List<T> items;
+
+    public ListConsumer() {
+        this(new ArrayList<T>());
+    }
+
+    public ListConsumer(List<T> items) {
+        this.items = items;
+    }
+
+    public boolean accept(T item) {
+        items.add(item);
+        return true;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+}
@@ -0,0 +1,66 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ro.planet.documentum.stada.common.utils.query.QueryUtils;
+import ro.planet.documentum.stada.common.utils.query.RowHandler;
+import ro.planet.documentum.stada.modules.beans.Content;
+
+import com.documentum.fc.client.IDfCollection;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+
+import framework.ru.documentum.utils.RowMapper.Row;
+
+/**
+ * Loads the main file (bd_document_content with the given dss_main_file) of
+ * many folders at once instead of one query per folder.
+ */
+public class MainFiles {
+
+    public static final String MAIN_FILE = "01";
+
+    private static final String QUERY_GET_MAIN_FILES = "select r_object_id, a_content_type, i_folder_id from bd_document_content where any i_folder_id in (%ids) and dss_main_file='%1'";
+
+    /**
+     * Returns folder id -> main file content. If a folder has several main
+     * files the last one returned is kept, as the single-folder lookup did.
+     */
+    public static Map<String, Content> load(IDfSession session, Collection<String> folderIds, String mainFileCondition) throws DfException {
+        final Map<String, Content> contents = new HashMap<String, Content>();
+        final Set<String> requested = new HashSet<String>();
+        for (String folderId : folderIds) {
+            if (folderId != null && folderId.length() > 0) {
+                requested.add(folderId);
+            }
+        }
+        if (requested.isEmpty()) {
+            return contents;
+        }
+        String dql = QueryUtils.toDql(QUERY_GET_MAIN_FILES, new String[] {
+            mainFileCondition
+        });
+        InListQuery.execute(session, dql, requested, new RowHandler() {
+            private Row row;
+
+            public void process(IDfCollection collection) throws DfException {
+                if (row == null || row.getObject() != collection) {
+                    row = BeanMappers.CONTENT.bind(collection);
+                }
+                Content content = BeanMappers.CONTENT.map(row);
+                int count = row.getValueCount(2);
+                for (int i = 0; i < count; i++) {
+                    String folderId = row.getRepeatingString(2, i);
+                    if (requested.contains(folderId)) {
+                        contents.put(folderId, content);
+                    }
+                }
+            }
+        });
+        return contents;
+    }
+}
@@ -0,0 +1,73 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import ro.planet.documentum.stada.common.utils.query.RowHandler;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
+
+import com.documentum.fc.client.IDfCollection;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+
+/**
+ * Resolves bd_position_history names linked to folders through a relation
+ * type (bd_dms_folder_ph_initi, bd_dms_folder_ph_coord, ...) for a whole
+ * result page at once instead of one query per folder.
+ */
+public class PositionNames {
+
+    private static final QueryTemplate QUERY_GET_DSS_NAMES = QueryTemplate.builder(
+            "select rel.parent_id, pos.dss_name from %1 rel, bd_position_history pos where rel.child_id=pos.r_object_id and rel.parent_id in (" + InListQuery.IDS_PLACEHOLDER + ")",
+            Slot.NAME, Slot.STRING).condition("and", "pos.dss_code=%2").build();
+
+    /**
+     * Returns folder id -> dss_name. When several positions are linked to a
+     * folder the first one returned is kept, as the single-row lookup did.
+     */
+    public static Map<String, String> load(IDfSession session, String relationType, Collection<String> folderIds) throws DfException {
+        return load(session, relationType, folderIds, null);
+    }
+
+    /**
+     * Same as {@link #load(IDfSession, String, Collection)}, but only
+     * positions with the given dss_code are returned (if it is not empty).
+     */
+    public static Map<String, String> load(IDfSession session, String relationType, Collection<String> folderIds, String dssCode) throws DfException {
+        final Map<String, String> names = new HashMap<String, String>();
+        if (folderIds.isEmpty()) {
+            return names;
+        }
+        String dql = QUERY_GET_DSS_NAMES.render(relationType.trim(), dssCode);
+        InListQuery.execute(session, dql, folderIds, new RowHandler() {
+            public void process(IDfCollection collection) throws DfException {
+                String parentId = collection.getString("parent_id");
+                if (!names.containsKey(parentId)) {
+                    names.put(parentId, collection.getString("dss_name"));
+                }
+            }
+        });
+        return names;
+    }
+
+    /**
+     * {@link #load(IDfSession, String, Collection)} as a step of a
+     * {@link QueryGroup}.
+     */
+    public static QueryGroup.Step<Map<String, String>> step(String relationType, Collection<String> folderIds) {
+        return step(relationType, folderIds, null);
+    }
+
+    /**
+     * {@link #load(IDfSession, String, Collection, String)} as a step of a
+     * {@link QueryGroup}.
+     */
+    public static QueryGroup.Step<Map<String, String>> step(final String relationType, final Collection<String> folderIds, final String dssCode) {
+        return new QueryGroup.Step<Map<String, String>>() {
+            public Map<String, String> execute(IDfSession session) throws DfException {
+                return load(session, relationType, folderIds, dssCode);
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.documentum.fc.common.DfException;
+
+/**
+ * Select list of a list service built from the bean fields requested by the
+ * caller. Each field maps to the columns needed to fill it; key columns (ids,
+ * keyset sort attributes) are always selected. An empty or null field set
+ * means all fields.
+ *
+ * <pre>
+ * private static final Projection COLUMNS = new Projection("r_object_id")
+ *     .field("objectName", "object_name")
+ *     .field("versionLabel", "r_version_label");
+ * </pre>
+ */
+public class Projection {
+
+    private final String[] keys;
+    private final Map<String, String[]> fields = new LinkedHashMap<String, String[]>();
+
+    public Projection(String... keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Declares a bean field and its columns. Only used while building the
+     * constant, the projection is not modified afterwards.
+     */
+    public Projection field(String field, String... columns) {
+        fields.put(field, columns);
+        return this;
+    }
+
+    /**
+     * Returns the select list for the requested fields, in declaration
+     * order and without duplicate columns.
+     */
+    public String select(Set<String> requested) throws DfException {
+        if (!isAll(requested)) {
+            for (String field : requested) {
+                if (!fields.containsKey(field)) {
+                    throw new DfException("Unknown field: " + field);
+                }
+            }
+        }
+        List<String> columns = new ArrayList<String>();
+        for (String key : keys) {
+            columns.add(key);
+        }
+        for (Map.Entry<String, String[]> field : fields.entrySet()) {
+            if (!has(requested, field.getKey())) {
+                continue;
+            }
+            for (String column : field.getValue()) {
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+        }
+        StringBuilder select = new StringBuilder();
+        for (String column : columns) {
+            if (select.length() > 0) {
+                select.append(", ");
+            }
+            select.append(column);
+        }
+        return select.toString();
+    }
+
+    /**
+     * Returns true if the field is to be filled.
+     */
+    public static boolean has(Set<String> requested, String field) {
+        return isAll(requested) || requested.contains(field);
+    }
+
+    private static boolean isAll(Set<String> requested) {
+        return requested == null || requested.isEmpty();
+    }
+}
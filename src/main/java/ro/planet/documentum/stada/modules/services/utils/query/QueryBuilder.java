@@ -4,9 +4,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import ro.planet.documentum.stada.common.utils.query.QueryUtils;
 import ro.planet.documentum.stada.modules.services.utils.IQueryBuilder;
+import ro.planet.documentum.stada.modules.services.utils.query.QueryTemplate.Slot;
 
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.IDfId;
@@ -17,10 +19,14 @@ public class QueryBuilder implements IQueryBuilder {
     private static final String FROM_CLAUSE = "from";
     private static final String SELECT_CLAUSE = "select";
     private static final String WHERE_CLAUSE = "where";
+    private static final Pattern FROM_PATTERN = Pattern.compile("\\bfrom\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHERE_PATTERN = Pattern.compile("\\bwhere\\b", Pattern.CASE_INSENSITIVE);
 
     private List<String> selectedAttributesList;
     private List<Pair<String, String>> clauseList;
     private List<String> selectedTypes;
+    private final List<Pair<String, String>> conditionList = new ArrayList<Pair<String, String>>();
+    private final List<String> optionalList = new ArrayList<String>();
 
     private String dql;
 
@@ -73,13 +79,11 @@ public class QueryBuilder implements IQueryBuilder {
 
     public void addClause(String logicalOpertaor, String attribute, String value, String operator) {
         if (value != null && value.length() > 0) {
-            StringBuffer clause = new StringBuffer();
+            StringBuilder clause = new StringBuilder();
             clause.append(" ");
             clause.append(attribute);
             clause.append(operator);
-            clause.append("'");
-            clause.append(value);
-            clause.append("'");
+            QueryTemplate.appendLiteral(clause, "", value, "");
             clauseList.add(new Pair<String, String>(logicalOpertaor, clause.toString()));
         }
 
@@ -87,7 +91,7 @@ public class QueryBuilder implements IQueryBuilder {
 
     public void addClause(String logicalOpertaor, String attribute, Number value, String operator) {
         if (value != null) {
-            StringBuffer clause = new StringBuffer();
+            StringBuilder clause = new StringBuilder();
             clause.append(" ");
             clause.append(attribute);
             clause.append(operator);
@@ -99,7 +103,7 @@ public class QueryBuilder implements IQueryBuilder {
 
     public void addClause(String logicalOpertaor, String attribute, IDfId value) {
         if (value != null && value.getId().length() > 0 && !value.isNull()) {
-            StringBuffer clause = new StringBuffer();
+            StringBuilder clause = new StringBuilder();
             clause.append(" ");
             clause.append(attribute);
             clause.append("=");
@@ -114,7 +118,7 @@ public class QueryBuilder implements IQueryBuilder {
     public void addClause(String logicalOpertaor, String attribute, Date value, String format, String operator) {
         if (value != null) {
             String date = formatDate(value, format);
-            StringBuffer clause = new StringBuffer();
+            StringBuilder clause = new StringBuilder();
             clause.append(" ");
             clause.append(attribute);
             clause.append(operator);
@@ -130,39 +134,70 @@ public class QueryBuilder implements IQueryBuilder {
     }
 
     public void addClause(String logicalOpertaor, String clause, String[] values) {
-        boolean addClause = true;
-        if (values != null && values.length > 0) {
-            for (int i = 0; i < values.length; i++) {
-                if (values[i] != null && values[i].length() > 0) {
-                    String placeholder = "%" + String.valueOf(i + 1);
-                    clause = clause.replaceAll(placeholder, QueryUtils.toDqlToken(values[i]));
-                } else {
-                    addClause = false;
+        if (values != null) {
+            for (String value : values) {
+                if (value == null || value.length() == 0) {
+                    return;
                 }
             }
         }
-        if (addClause) {
-            clauseList.add(new Pair<String, String>(logicalOpertaor, clause));
-        }
+        clauseList.add(new Pair<String, String>(logicalOpertaor, substitute(clause, values)));
     }
 
     public void addClause(String logicalOpertaor, String clause) {
         clauseList.add(new Pair<String, String>(logicalOpertaor, clause));
     }
 
+    /**
+     * Adds a condition with typed slots (%1, %2, ...) for compile. It is
+     * rendered only when its slots have values.
+     */
+    public void addCondition(String logicalOpertaor, String condition) {
+        conditionList.add(new Pair<String, String>(logicalOpertaor, condition));
+    }
+
+    /**
+     * Adds text appended after the conditions by compile (order by, ENABLE
+     * hints), rendered only when its slots have values.
+     */
+    public void addOptional(String text) {
+        optionalList.add(text);
+    }
+
+    /**
+     * Compiles the query shape into a reusable template. Selected attributes,
+     * types and clauses added with addClause form the base text and must not
+     * contain values with %; conditions and optional text keep their slots.
+     */
+    public QueryTemplate compile(Slot... slots) throws DfException {
+        return compile(QueryTemplate.DEFAULT_DATE_FORMAT, slots);
+    }
+
+    public QueryTemplate compile(String dateFormat, Slot... slots) throws DfException {
+        String base = getDql();
+        QueryTemplate.Builder builder = clauseList.isEmpty() ? QueryTemplate.builderWithoutWhere(base, slots) : QueryTemplate.builder(base, slots);
+        for (Pair<String, String> condition : conditionList) {
+            builder.condition(condition.first(), condition.second());
+        }
+        for (String text : optionalList) {
+            builder.optional(text);
+        }
+        return builder.dateFormat(dateFormat).build();
+    }
+
     public List<String> getSelectedAttributesList() {
         return selectedAttributesList;
     }
 
     private void buildDQL() throws DfException {
-        StringBuffer dqlBuilder = new StringBuffer();
+        StringBuilder dqlBuilder = new StringBuilder();
         addSelect(dqlBuilder);
         addFrom(dqlBuilder);
         addWhere(dqlBuilder);
         dql = dqlBuilder.toString();
     }
 
-    private void addWhere(StringBuffer dqlBuilder) {
+    private void addWhere(StringBuilder dqlBuilder) {
         if (clauseList.size() > 0) {
             int i = 0;
             for (Pair<String, String> clause : clauseList) {
@@ -176,7 +211,7 @@ public class QueryBuilder implements IQueryBuilder {
         }
     }
 
-    private void addFrom(StringBuffer dqlBuilder) {
+    private void addFrom(StringBuilder dqlBuilder) {
         dqlBuilder.append(FROM_CLAUSE);
         dqlBuilder.append(" ");
         for (String selectedType : selectedTypes) {
@@ -189,7 +224,7 @@ public class QueryBuilder implements IQueryBuilder {
 
     }
 
-    private void addSelect(StringBuffer dqlBuilder) throws DfException {
+    private void addSelect(StringBuilder dqlBuilder) throws DfException {
         dqlBuilder.append(SELECT_CLAUSE);
         dqlBuilder.append(" ");
 
@@ -212,47 +247,69 @@ public class QueryBuilder implements IQueryBuilder {
         this.clauseList = getInitialClause();
     }
 
+    /**
+     * Replaces %1, %2, ... with the values in one pass. Quotes of the values
+     * are doubled, the clause provides the surrounding quotes.
+     */
+    private static String substitute(String clause, String[] values) {
+        if (values == null || values.length == 0) {
+            return clause;
+        }
+        StringBuilder result = new StringBuilder(clause.length() + values.length * 16);
+        int i = 0;
+        while (i < clause.length()) {
+            char c = clause.charAt(i);
+            int end = i + 1;
+            while (c == '%' && end < clause.length() && Character.isDigit(clause.charAt(end))) {
+                end++;
+            }
+            int index = end > i + 1 ? Integer.parseInt(clause.substring(i + 1, end)) - 1 : -1;
+            if (index < 0 || index >= values.length) {
+                result.append(c);
+                i++;
+                continue;
+            }
+            String value = values[index];
+            for (int j = 0; j < value.length(); j++) {
+                if (value.charAt(j) == '\'') {
+                    result.append('\'');
+                }
+                result.append(value.charAt(j));
+            }
+            i = end;
+        }
+        return result.toString();
+    }
+
     private List<Pair<String, String>> getInitialClause() {
+        List<Pair<String, String>> clauses = new ArrayList<Pair<String, String>>();
         if (dql != null && dql.length() > 0) {
-            int whereIndex = dql.indexOf(WHERE_CLAUSE);
-            if (whereIndex != -1) {
-                String clauses = dql.substring(whereIndex + WHERE_CLAUSE.length() + 1, dql.length());
-                clauseList = new ArrayList<Pair<String, String>>();
-                int andIndex = 0;
-                int orIndex = 0;
-
-                String operator = "";
-
-                do {
-                    andIndex = clauses.indexOf("and");
-                    orIndex = clauses.indexOf("or");
-                    String clause = "";
-                    if ((andIndex != -1 && andIndex < orIndex) || (andIndex != -1) && orIndex == -1) {
-                        clause = clauses.substring(0, andIndex);
-                        clauseList.add(new Pair<String, String>(operator, clause));
-                        clauses = clauses.substring(clause.length() + 1 + LOGICAL_AND.length());
-                        operator = LOGICAL_AND;
-                    } else if (orIndex != -1) {
-                        clause = clauses.substring(0, orIndex);
-                        clauseList.add(new Pair<String, String>(operator, clause));
-                        clauses = clauses.substring(clause.length() + 1 + LOGICAL_OR.length());
-                        operator = LOGICAL_OR;
-                    }
-                } while (andIndex != -1 || orIndex != -1);
-
-                clauseList.add(new Pair<String, String>(operator, clauses));
-                return clauseList;
-            } else {
-                return new ArrayList<Pair<String, String>>();
+            Matcher where = WHERE_PATTERN.matcher(dql);
+            if (where.find()) {
+                // The conditions of the base query are kept as one clause:
+                // splitting them on "and"/"or" breaks on names like
+                // coordinator and changes the precedence of or.
+                clauses.add(new Pair<String, String>("", "(" + dql.substring(where.end()).trim() + ")"));
             }
-        } else {
-            return new ArrayList<Pair<String, String>>();
         }
-
+        return clauses;
     }
 
     private List<String> getSelectedType() {
-        return new ArrayList<String>();
+        List<String> types = new ArrayList<String>();
+        if (dql != null && dql.length() > 0) {
+            Matcher from = FROM_PATTERN.matcher(dql);
+            if (from.find()) {
+                Matcher where = WHERE_PATTERN.matcher(dql);
+                int end = where.find(from.end()) ? where.start() : dql.length();
+                for (String type : dql.substring(from.end(), end).split(",")) {
+                    if (type.trim().length() > 0) {
+                        types.add(type.trim());
+                    }
+                }
+            }
+        }
+        return types;
     }
 
     private List<String> getInitialAttributes() {
@@ -0,0 +1,167 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSessionManager;
+import com.documentum.fc.common.DfException;
+
+/**
+ * Runs independent queries of one service call concurrently and joins their
+ * results, so a composite result takes about as long as its slowest query.
+ * <p>
+ * The first step runs in the calling thread on the caller's session, the
+ * others on a shared pool, each on its own session of the caller's session
+ * manager (same user, pooled by DFC). When the pool is busy, steps run in the
+ * calling thread one after another. Steps only read: the parallel sessions do
+ * not see uncommitted changes of the caller's transaction.
+ *
+ * <pre>
+ * QueryGroup group = new QueryGroup(session);
+ * Future&lt;Map&lt;String, String&gt;&gt; initiators = group.add(...);
+ * Future&lt;Map&lt;String, String&gt;&gt; coordinators = group.add(...);
+ * group.join();
+ * </pre>
+ */
+public class QueryGroup {
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 16, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "query-group-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final IDfSession session;
+    private final IDfSessionManager sessionManager;
+    private final String docbase;
+    private final List<FutureTask<?>> tasks = new ArrayList<FutureTask<?>>();
+
+    /**
+     * One query (or a few dependent ones) of the group.
+     */
+    public interface Step<T> {
+        T execute(IDfSession session) throws DfException;
+    }
+
+    public QueryGroup(IDfSession session) throws DfException {
+        this.session = session;
+        this.sessionManager = session.getSessionManager();
+        this.docbase = session.getDocbaseName();
+    }
+
+    /**
+     * Adds a step. Steps after the first one are started at once; the first
+     * one runs in join.
+     *
+     * @return the result of the step, available after join
+     */
+    public <T> Future<T> add(final Step<T> step) {
+        FutureTask<T> task;
+        if (tasks.isEmpty()) {
+            task = new FutureTask<T>(new Callable<T>() {
+                public T call() throws Exception {
+                    return step.execute(session);
+                }
+            });
+        } else {
+            task = new FutureTask<T>(new Callable<T>() {
+                public T call() throws Exception {
+                    IDfSession stepSession = sessionManager.getSession(docbase);
+                    try {
+                        return step.execute(stepSession);
+                    } finally {
+                        sessionManager.release(stepSession);
+                    }
+                }
+            });
+            executor.execute(task);
+        }
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs the first step and waits for all the others. Throws the first
+     * error after all steps have finished, so no session stays in use.
+     */
+    public void join() throws DfException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        tasks.get(0).run();
+        Throwable error = null;
+        boolean interrupted = false;
+        for (FutureTask<?> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error instanceof DfException) {
+            throw (DfException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new DfException(error);
+        }
+    }
+
+    /**
+     * Returns the result of a step after join.
+     */
+    public static <T> T get(Future<T> result) throws DfException {
+        if (!result.isDone()) {
+            throw new DfException("Query group is not joined");
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new DfException(e);
+        } catch (ExecutionException e) {
+            throw new DfException(e.getCause());
+        }
+    }
+
+    public static int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Maximum number of pool threads (and additional sessions) of all groups.
+     */
+    public static void setMaxThreads(int maxThreads) {
+        executor.setMaximumPoolSize(maxThreads);
+    }
+
+    public static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
@@ -0,0 +1,352 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfId;
+
+/**
+ * DQL query compiled once from its text into literal fragments and typed
+ * slots (%1, %2, ...). Values are escaped here according to the slot type,
+ * so the query text never contains quotes around placeholders, e.g.
+ * "dss_status=%2" or "dss_description like %3" (CONTAINS).
+ * <p>
+ * Besides the required base text a template has optional sections. A section
+ * is rendered only when all the slots it references have a value (not null,
+ * not an empty string or collection), which replaces the "if not empty then
+ * append" code of the services. Conditions get "where" or their logical
+ * operator depending on what was rendered before them. Rendering is a single
+ * pass into a builder sized from the compiled text. Templates are immutable
+ * and can be shared as constants.
+ */
+public class QueryTemplate {
+
+    public enum Slot {
+        /** Quoted string literal. */
+        STRING,
+        /** Quoted literal for like, '%value%'. */
+        CONTAINS,
+        /** Quoted literal for like, 'value%'. */
+        PREFIX,
+        /** Quoted object id, checked with DfId.isObjectId. */
+        ID,
+        /** Comma separated quoted object ids from a collection. */
+        ID_LIST,
+        /** Comma separated quoted string literals from a collection. */
+        STRING_LIST,
+        /** DATE('value','format') with the date format of the template. */
+        DATE,
+        /** DATE('value','dd/mm/yyyy hh:mi:ss'), to the second (changed since). */
+        DATETIME,
+        /** Number, unquoted. */
+        NUMBER,
+        /** Type or attribute name: letters, digits, _ and . only, unquoted. */
+        NAME,
+        /** DQL fragment built by code (e.g. KeysetPaging), inserted as is. Never user input. */
+        DQL
+    }
+
+    public static final String DEFAULT_DATE_FORMAT = "dd/MM/yyyy";
+
+    private static final String DATETIME_FORMAT = "dd/MM/yyyy HH:mm:ss";
+    private static final String DQL_DATETIME_FORMAT = "dd/mm/yyyy hh:mi:ss";
+
+    private static final int SLOT_SIZE = 24;
+
+    private static final ThreadLocal<SimpleDateFormat> DEFAULT_DATE_FORMATTER = formatter(DEFAULT_DATE_FORMAT);
+    private static final ThreadLocal<SimpleDateFormat> DATETIME_FORMATTER = formatter(DATETIME_FORMAT);
+
+    private final Slot[] slots;
+    private final String dateFormat;
+    private final ThreadLocal<SimpleDateFormat> dateFormatter;
+    private final boolean whereOpen;
+    private final Section[] sections;
+    private final int capacity;
+
+    /**
+     * Compiled part of the template: fragments[0] %a fragments[1] %b ...
+     */
+    private static class Section {
+        private final String operator;
+        private final boolean optional;
+        private final String[] fragments;
+        private final int[] refs;
+
+        private Section(String operator, boolean optional, String[] fragments, int[] refs) {
+            this.operator = operator;
+            this.optional = optional;
+            this.fragments = fragments;
+            this.refs = refs;
+        }
+    }
+
+    public static class Builder {
+        private final Slot[] slots;
+        private final boolean whereOpen;
+        private final List<Section> sections = new ArrayList<Section>();
+        private String dateFormat = DEFAULT_DATE_FORMAT;
+
+        private Builder(String text, boolean whereOpen, Slot[] slots) {
+            this.slots = slots;
+            this.whereOpen = whereOpen;
+            sections.add(compile(null, false, text));
+        }
+
+        /**
+         * Optional condition, rendered as "where text" if it is the first one
+         * and the base text has no where clause, otherwise as "operator text".
+         */
+        public Builder condition(String operator, String text) {
+            sections.add(compile(operator, true, text));
+            return this;
+        }
+
+        /**
+         * Optional text appended as is (order by, ENABLE hints).
+         */
+        public Builder optional(String text) {
+            sections.add(compile(null, true, text));
+            return this;
+        }
+
+        public Builder dateFormat(String dateFormat) {
+            this.dateFormat = dateFormat;
+            return this;
+        }
+
+        public QueryTemplate build() {
+            return new QueryTemplate(slots, dateFormat, whereOpen, sections.toArray(new Section[sections.size()]));
+        }
+
+        private Section compile(String operator, boolean optional, String text) {
+            List<String> fragments = new ArrayList<String>();
+            List<Integer> refs = new ArrayList<Integer>();
+            int start = 0;
+            int i = 0;
+            while (i < text.length()) {
+                int end = i + 1;
+                while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                    end++;
+                }
+                if (text.charAt(i) != '%' || end == i + 1) {
+                    i++;
+                    continue;
+                }
+                int slot = Integer.parseInt(text.substring(i + 1, end));
+                if (slot < 1 || slot > slots.length) {
+                    throw new IllegalArgumentException("Unknown slot %" + slot + " in: " + text);
+                }
+                fragments.add(text.substring(start, i));
+                refs.add(slot - 1);
+                start = end;
+                i = end;
+            }
+            fragments.add(text.substring(start));
+            int[] slotRefs = new int[refs.size()];
+            for (int j = 0; j < slotRefs.length; j++) {
+                slotRefs[j] = refs.get(j);
+            }
+            return new Section(operator, optional, fragments.toArray(new String[fragments.size()]), slotRefs);
+        }
+    }
+
+    private QueryTemplate(Slot[] slots, String dateFormat, boolean whereOpen, Section[] sections) {
+        this.slots = slots;
+        this.dateFormat = dateFormat;
+        this.dateFormatter = DEFAULT_DATE_FORMAT.equals(dateFormat) ? DEFAULT_DATE_FORMATTER : formatter(dateFormat);
+        this.whereOpen = whereOpen;
+        this.sections = sections;
+        int size = 0;
+        for (Section section : sections) {
+            size += section.refs.length * SLOT_SIZE + (section.operator == null ? 0 : section.operator.length() + 2);
+            for (String fragment : section.fragments) {
+                size += fragment.length();
+            }
+        }
+        this.capacity = size;
+    }
+
+    /**
+     * Starts a template. The base text is complete DQL with its where clause,
+     * conditions are appended with their operator.
+     */
+    public static Builder builder(String text, Slot... slots) {
+        return new Builder(text, false, slots);
+    }
+
+    /**
+     * Starts a template whose base text has no where clause yet.
+     */
+    public static Builder builderWithoutWhere(String text, Slot... slots) {
+        return new Builder(text, true, slots);
+    }
+
+    /**
+     * Renders the query. Values are given in slot order; an empty value
+     * skips the optional sections using it and is an error in the base text.
+     */
+    public String render(Object... values) throws DfException {
+        if (values.length != slots.length) {
+            throw new DfException("Expected " + slots.length + " query parameters, got " + values.length);
+        }
+        StringBuilder dql = new StringBuilder(capacity);
+        boolean whereNeeded = whereOpen;
+        for (Section section : sections) {
+            if (!isComplete(section, values)) {
+                if (!section.optional) {
+                    throw new DfException("Required query parameter is empty: " + section.fragments[0]);
+                }
+                continue;
+            }
+            if (section.operator != null) {
+                dql.append(' ').append(whereNeeded ? "where" : section.operator).append(' ');
+                whereNeeded = false;
+            }
+            String[] fragments = section.fragments;
+            int[] refs = section.refs;
+            for (int i = 0; i < refs.length; i++) {
+                dql.append(fragments[i]);
+                append(dql, slots[refs[i]], values[refs[i]]);
+            }
+            dql.append(fragments[refs.length]);
+        }
+        return dql.toString();
+    }
+
+    private static boolean isComplete(Section section, Object[] values) {
+        for (int ref : section.refs) {
+            if (isEmpty(values[ref])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(Object value) {
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof String) {
+            return ((String) value).length() == 0;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).isEmpty();
+        }
+        return false;
+    }
+
+    private void append(StringBuilder dql, Slot slot, Object value) throws DfException {
+        switch (slot) {
+        case STRING:
+            appendLiteral(dql, "", toString(slot, value), "");
+            break;
+        case CONTAINS:
+            appendLiteral(dql, "%", toString(slot, value), "%");
+            break;
+        case PREFIX:
+            appendLiteral(dql, "", toString(slot, value), "%");
+            break;
+        case ID:
+            appendId(dql, toString(slot, value));
+            break;
+        case ID_LIST:
+        case STRING_LIST:
+            if (!(value instanceof Collection)) {
+                throw new DfException("Collection expected for " + slot + ": " + value);
+            }
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    dql.append(',');
+                }
+                if (slot == Slot.ID_LIST) {
+                    appendId(dql, toString(slot, item));
+                } else {
+                    appendLiteral(dql, "", toString(slot, item), "");
+                }
+                first = false;
+            }
+            break;
+        case DATE:
+        case DATETIME:
+            if (!(value instanceof Date)) {
+                throw new DfException("Date expected for " + slot + ": " + value);
+            }
+            SimpleDateFormat format = (slot == Slot.DATE ? dateFormatter : DATETIME_FORMATTER).get();
+            dql.append("DATE('").append(format.format((Date) value)).append("','").append(slot == Slot.DATE ? dateFormat : DQL_DATETIME_FORMAT).append("')");
+            break;
+        case NUMBER:
+            if (!(value instanceof Number)) {
+                throw new DfException("Number expected for " + slot + ": " + value);
+            }
+            dql.append(value);
+            break;
+        case NAME:
+            String name = toString(slot, value);
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+                    throw new DfException("Invalid name: " + name);
+                }
+            }
+            dql.append(name);
+            break;
+        default:
+            dql.append(toString(slot, value));
+        }
+    }
+
+    /**
+     * SimpleDateFormat is not thread safe and templates are shared constants,
+     * so every thread gets its own formatter built once per pattern.
+     */
+    private static ThreadLocal<SimpleDateFormat> formatter(final String pattern) {
+        return new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat(pattern);
+            }
+        };
+    }
+
+    private static String toString(Slot slot, Object value) throws DfException {
+        if (!(value instanceof String)) {
+            throw new DfException("String expected for " + slot + ": " + value);
+        }
+        return (String) value;
+    }
+
+    private static void appendId(StringBuilder dql, String id) throws DfException {
+        if (!DfId.isObjectId(id)) {
+            throw new DfException("Invalid object id: " + id);
+        }
+        dql.append('\'').append(id).append('\'');
+    }
+
+    /**
+     * Appends a quoted literal, doubling the quotes of the value.
+     */
+    public static void appendLiteral(StringBuilder dql, String prefix, String value, String suffix) {
+        dql.append('\'').append(prefix);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'') {
+                dql.append('\'');
+            }
+            dql.append(c);
+        }
+        dql.append(suffix).append('\'');
+    }
+
+    /**
+     * Returns null for an empty or null object id, so that the sections using
+     * it are skipped.
+     */
+    public static String skipNullId(String id) {
+        return id == null || DfId.DF_NULLID_STR.equals(id) ? null : id;
+    }
+}
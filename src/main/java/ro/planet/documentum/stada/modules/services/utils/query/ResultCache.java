@@ -0,0 +1,314 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.documentum.com.DfClientX;
+import com.documentum.com.IDfClientX;
+import com.documentum.fc.client.IDfCollection;
+import com.documentum.fc.client.IDfQuery;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfLogger;
+
+/**
+ * Short-lived cache of list service results for polling clients. Disabled
+ * by default.
+ * <p>
+ * An entry is keyed by service, docbase, login user (results depend on the
+ * user's permissions) and the service parameters, where null and "" are the
+ * same. Before a cached list is served, the service's watermark query is run:
+ * a one-row aggregate over the underlying type, e.g. count(*) and
+ * max(r_modify_date) for the user. If the watermark differs from the one
+ * stored with the entry, the list is loaded again. Changes the watermark
+ * cannot see (e.g. attributes of joined objects) are picked up when the entry
+ * expires after timeToLive.
+ * <p>
+ * Cached beans are shared between callers and must not be modified.
+ * <p>
+ * The cache is configured by objects in /dmsConfig/Configuration whose title
+ * holds the value: result_cache_enabled (true/false), result_cache_ttl (ms)
+ * and result_cache_max_entries. They are read again every configTTL ms;
+ * missing objects keep the current settings. A failed load is never cached.
+ */
+public class ResultCache {
+
+    private static final ResultCache instance = new ResultCache();
+    private static final IDfClientX clientx = new DfClientX();
+    private static final char SEPARATOR = '\u0001';
+    private static final String CONFIG_QUERY = "select object_name, title from dm_sysobject where FOLDER('/dmsConfig/Configuration')"
+            + " and object_name in ('result_cache_enabled', 'result_cache_ttl', 'result_cache_max_entries')";
+
+    private volatile boolean enabled;
+    private volatile long timeToLive = 5 * 60 * 1000;
+    private volatile int maxEntries = 1000;
+    private volatile long configTTL = 5 * 60 * 1000;
+    private volatile long configLoadedAt;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Loads the list when it is not cached or is out of date.
+     */
+    public interface Loader<T> {
+        List<T> load() throws DfException;
+    }
+
+    private static class Entry {
+        private final List<?> items;
+        private final String watermark;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Entry(List<?> items, String watermark) {
+            this.items = items;
+            this.watermark = watermark;
+        }
+    }
+
+    public static ResultCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the cached list if its watermark is unchanged, otherwise loads
+     * it and caches it with the current watermark. Without caching enabled
+     * the loader is called directly.
+     *
+     * @param service
+     *            service name, part of the key
+     * @param watermark
+     *            rendered watermark query, returning one row
+     * @param parameters
+     *            service parameters, part of the key
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(IDfSession session, String service, String watermark, Object[] parameters, Loader<T> loader) throws DfException {
+        configure(session);
+        if (!enabled) {
+            return loader.load();
+        }
+        String key = getKey(session, service, parameters);
+        // read before loading, so changes made during the load invalidate the entry
+        String current;
+        try {
+            current = readWatermark(session, watermark);
+        } catch (DfException e) {
+            DfLogger.warn(this, " ResultCache -> watermark failed for " + service + ": " + e.getMessage(), null, e);
+            return loader.load();
+        }
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (System.currentTimeMillis() - entry.loadedAt < timeToLive && entry.watermark.equals(current)) {
+                hits.incrementAndGet();
+                return new ArrayList<T>((List<T>) entry.items);
+            }
+            invalidations.incrementAndGet();
+        }
+        misses.incrementAndGet();
+
+        List<T> items = loader.load();
+        synchronized (entries) {
+            entries.put(key, new Entry(new ArrayList<T>(items), current));
+        }
+        return items;
+    }
+
+    /**
+     * Reads the settings from /dmsConfig/Configuration when they are older
+     * than configTTL.
+     */
+    private void configure(IDfSession session) {
+        long now = System.currentTimeMillis();
+        if (now - configLoadedAt < configTTL) {
+            return;
+        }
+        synchronized (this) {
+            if (now - configLoadedAt < configTTL) {
+                return;
+            }
+            configLoadedAt = now;
+        }
+        IDfCollection collection = null;
+        try {
+            IDfQuery query = clientx.getQuery();
+            query.setDQL(CONFIG_QUERY);
+            collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+            while (collection.next()) {
+                String name = collection.getString("object_name");
+                String value = collection.getString("title").trim();
+                if (value.length() == 0) {
+                    continue;
+                }
+                try {
+                    if ("result_cache_enabled".equals(name)) {
+                        boolean configured = Boolean.parseBoolean(value);
+                        if (configured != enabled) {
+                            setEnabled(configured);
+                        }
+                    } else if ("result_cache_ttl".equals(name)) {
+                        setTimeToLive(Long.parseLong(value));
+                    } else if ("result_cache_max_entries".equals(name)) {
+                        setMaxEntries(Integer.parseInt(value));
+                    }
+                } catch (NumberFormatException e) {
+                    DfLogger.warn(this, " ResultCache -> invalid " + name + ": " + value, null, null);
+                }
+            }
+        } catch (DfException e) {
+            DfLogger.warn(this, " ResultCache -> cannot read configuration: " + e.getMessage(), null, e);
+        } finally {
+            if (collection != null) {
+                try {
+                    collection.close();
+                } catch (DfException e) {
+                    DfLogger.warn(this, " ResultCache -> cannot close collection: " + e.getMessage(), null, e);
+                }
+            }
+        }
+    }
+
+    private static String getKey(IDfSession session, String service, Object[] parameters) throws DfException {
+        StringBuilder key = new StringBuilder(service);
+        key.append(SEPARATOR).append(session.getDocbaseName());
+        key.append(SEPARATOR).append(session.getLoginUserName());
+        for (Object parameter : parameters) {
+            key.append(SEPARATOR);
+            if (parameter instanceof Date) {
+                key.append(((Date) parameter).getTime());
+            } else if (parameter != null) {
+                key.append(parameter);
+            }
+        }
+        return key.toString();
+    }
+
+    private static String readWatermark(IDfSession session, String dql) throws DfException {
+        IDfCollection collection = null;
+        try {
+            IDfQuery query = clientx.getQuery();
+            query.setDQL(dql);
+            collection = query.execute(session, IDfQuery.DF_READ_QUERY);
+            StringBuilder watermark = new StringBuilder();
+            if (collection.next()) {
+                for (int i = 0; i < collection.getAttrCount(); i++) {
+                    watermark.append(collection.getString(collection.getAttr(i).getName())).append(SEPARATOR);
+                }
+            }
+            return watermark.toString();
+        } finally {
+            if (collection != null) {
+                collection.close();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of entries reloaded because their watermark changed or they
+     * expired.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("Result cache: entries {0}, hits {1}, misses {2}, invalidations {3}, evictions {4}, hit ratio {5,number,percent}", size(),
+                getHitCount(), getMissCount(), getInvalidationCount(), getEvictionCount(), getHitRatio());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Maximum age of an entry, ms.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getConfigTTL() {
+        return configTTL;
+    }
+
+    /**
+     * How often the settings are read from /dmsConfig/Configuration, ms.
+     */
+    public void setConfigTTL(long configTTL) {
+        this.configTTL = configTTL;
+        configLoadedAt = 0;
+    }
+}
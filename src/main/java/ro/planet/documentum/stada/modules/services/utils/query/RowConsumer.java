@@ -0,0 +1,17 @@
+package ro.planet.documentum.stada.modules.services.utils.query;
+
+import com.documentum.fc.common.DfException;
+
+/**
+ * Receives the beans of a list service one by one, as the rows are read.
+ * The next row is read only after accept returns, so a slow consumer slows
+ * down reading instead of filling the heap.
+ */
+public interface RowConsumer<T> {
+
+    /**
+     * @return false to stop reading; the query is closed and no more beans
+     *         are passed.
+     */
+    boolean accept(T item) throws DfException;
+}
@@ -0,0 +1,305 @@
+package ro.planet.documentum.stada.modules.word;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Загрузка изображений с сервлета штрихкодов. <br>
+ *
+ * Соединения открываются с таймаутами и переиспользуются (keep-alive
+ * HttpURLConnection, поэтому ответ всегда дочитывается до конца). Число
+ * одновременных запросов ограничено. Для каждого адреса сервлета работает
+ * автоматический выключатель: после failureThreshold ошибок подряд запросы на
+ * этот адрес не выполняются в течение openInterval, затем пропускается один
+ * пробный запрос.
+ */
+public class BarcodeHttpClient {
+
+    private static final BarcodeHttpClient instance = new BarcodeHttpClient();
+
+    private int connectTimeout = 5000;
+    private int readTimeout = 15000;
+    private long acquireTimeout = 5000;
+    private int maxConcurrent = 8;
+    private int failureThreshold = 5;
+    private long openInterval = 30000;
+
+    private final Permits permits = new Permits(maxConcurrent);
+    private final Map<String, Breaker> breakers = new HashMap<String, Breaker>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Семафор, число разрешений которого можно уменьшить без ожидания.
+     */
+    private static class Permits extends Semaphore {
+	private static final long serialVersionUID = 1L;
+
+	private Permits(int permits) {
+	    super(permits);
+	}
+
+	private void resize(int delta) {
+	    if (delta > 0) {
+		release(delta);
+	    } else if (delta < 0) {
+		reducePermits(-delta);
+	    }
+	}
+    }
+
+    /**
+     * Состояние выключателя для одного адреса.
+     */
+    private static class Breaker {
+	private int failures;
+	private long openedAt;
+	private boolean probing;
+    }
+
+    public static BarcodeHttpClient getInstance() {
+	return instance;
+    }
+
+    /**
+     * Возвращает адрес сервлета (протокол, сервер и путь без параметров
+     * запроса), по которому ведется учет ошибок.
+     */
+    public static String getEndpoint(String urlText) {
+	try {
+	    URL url = new URL(urlText);
+	    return new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getPath()).toString();
+	} catch (MalformedURLException ex) {
+	    int index = urlText.indexOf('?');
+	    return index == -1 ? urlText : urlText.substring(0, index);
+	}
+    }
+
+    /**
+     * Загружает содержимое по адресу.
+     *
+     * @param endpoint
+     *            Адрес сервлета, для которого ведется учет ошибок.
+     * @param urlText
+     *            Полный адрес запроса.
+     * @return Содержимое ответа.
+     */
+    public byte[] get(String endpoint, String urlText) throws IOException {
+	if (!allow(endpoint)) {
+	    rejected.incrementAndGet();
+	    throw new IOException("Circuit is open for " + endpoint);
+	}
+	boolean acquired;
+	try {
+	    acquired = permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while waiting for connection to " + endpoint);
+	}
+	if (!acquired) {
+	    // перегружены мы, а не сервлет: выключатель не меняется
+	    rejected.incrementAndGet();
+	    cancelProbe(endpoint);
+	    throw new IOException("Too many concurrent requests to " + endpoint);
+	}
+
+	long start = System.currentTimeMillis();
+	boolean success = false;
+	try {
+	    requests.incrementAndGet();
+	    byte[] result = download(urlText);
+	    success = true;
+	    return result;
+	} finally {
+	    permits.release();
+	    long latency = System.currentTimeMillis() - start;
+	    totalLatency.addAndGet(latency);
+	    long max = maxLatency.get();
+	    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+		max = maxLatency.get();
+	    }
+	    if (!success) {
+		failures.incrementAndGet();
+	    }
+	    release(endpoint, success);
+	}
+    }
+
+    private byte[] download(String urlText) throws IOException {
+	HttpURLConnection connection = (HttpURLConnection) new URL(urlText).openConnection();
+	connection.setConnectTimeout(connectTimeout);
+	connection.setReadTimeout(readTimeout);
+	connection.setUseCaches(false);
+	int code = connection.getResponseCode();
+	InputStream is = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+	ByteArrayOutputStream str = new ByteArrayOutputStream();
+	if (is != null) {
+	    try {
+		byte[] buffer = new byte[1024 * 4];
+		int len;
+		while ((len = is.read(buffer)) > 0) {
+		    str.write(buffer, 0, len);
+		}
+	    } finally {
+		is.close();
+	    }
+	}
+	if (code >= 400) {
+	    throw new IOException(MessageFormat.format("HTTP {0} from {1}", code, urlText));
+	}
+	return str.toByteArray();
+    }
+
+    private boolean allow(String endpoint) {
+	synchronized (breakers) {
+	    Breaker breaker = breakers.get(endpoint);
+	    if (breaker == null || breaker.failures < failureThreshold) {
+		return true;
+	    }
+	    if (breaker.probing || System.currentTimeMillis() - breaker.openedAt < openInterval) {
+		return false;
+	    }
+	    breaker.probing = true;
+	    return true;
+	}
+    }
+
+    /**
+     * Снимает признак пробного запроса, если запрос не был выполнен.
+     */
+    private void cancelProbe(String endpoint) {
+	synchronized (breakers) {
+	    Breaker breaker = breakers.get(endpoint);
+	    if (breaker != null) {
+		breaker.probing = false;
+	    }
+	}
+    }
+
+    private void release(String endpoint, boolean success) {
+	synchronized (breakers) {
+	    Breaker breaker = breakers.get(endpoint);
+	    if (breaker == null) {
+		if (success) {
+		    return;
+		}
+		breaker = new Breaker();
+		breakers.put(endpoint, breaker);
+	    }
+	    breaker.probing = false;
+	    if (success) {
+		breaker.failures = 0;
+		return;
+	    }
+	    breaker.failures++;
+	    if (breaker.failures >= failureThreshold) {
+		breaker.openedAt = System.currentTimeMillis();
+	    }
+	}
+    }
+
+    /**
+     * Возвращает true, если запросы на адрес временно не выполняются.
+     */
+    public boolean isOpen(String endpoint) {
+	synchronized (breakers) {
+	    Breaker breaker = breakers.get(endpoint);
+	    return breaker != null && breaker.failures >= failureThreshold;
+	}
+    }
+
+    public long getRequestCount() {
+	return requests.get();
+    }
+
+    public long getFailureCount() {
+	return failures.get();
+    }
+
+    public long getRejectedCount() {
+	return rejected.get();
+    }
+
+    public long getAverageLatency() {
+	long count = requests.get();
+	return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    public long getMaxLatency() {
+	return maxLatency.get();
+    }
+
+    @Override
+    public String toString() {
+	return MessageFormat.format("Barcode HTTP: requests {0}, failures {1}, rejected {2}, latency avg {3} ms, max {4} ms",
+		getRequestCount(), getFailureCount(), getRejectedCount(), getAverageLatency(), getMaxLatency());
+    }
+
+    public int getConnectTimeout() {
+	return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+	this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+	return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+	this.readTimeout = readTimeout;
+    }
+
+    public long getAcquireTimeout() {
+	return acquireTimeout;
+    }
+
+    public void setAcquireTimeout(long acquireTimeout) {
+	this.acquireTimeout = acquireTimeout;
+    }
+
+    public int getMaxConcurrent() {
+	return maxConcurrent;
+    }
+
+    /**
+     * Меняет ограничение без ожидания: при уменьшении выполняющиеся запросы
+     * завершаются, новые ждут, пока их станет меньше нового ограничения.
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+	int delta = maxConcurrent - this.maxConcurrent;
+	this.maxConcurrent = maxConcurrent;
+	permits.resize(delta);
+    }
+
+    public int getFailureThreshold() {
+	return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+	this.failureThreshold = failureThreshold;
+    }
+
+    public long getOpenInterval() {
+	return openInterval;
+    }
+
+    public void setOpenInterval(long openInterval) {
+	this.openInterval = openInterval;
+    }
+}
@@ -0,0 +1,243 @@
+package ro.planet.documentum.stada.modules.word;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import com.documentum.fc.common.DfException;
+import com.lowagie.text.pdf.Barcode;
+import com.lowagie.text.pdf.Barcode128;
+import com.lowagie.text.pdf.BarcodeDatamatrix;
+
+/**
+ * Формирование изображения штрихкода без обращения к сервлету. <br>
+ *
+ * Кодирование выполняется классами iText (Barcode128, BarcodeDatamatrix),
+ * изображение масштабируется до заданного размера, под линейным штрихкодом
+ * печатается текст кода, как это делает сервлет imageBarcode. Последние
+ * сформированные изображения хранятся в кэше.
+ */
+public class BarcodeRenderer {
+
+    public static final String CODE128 = "code128";
+    public static final String DATAMATRIX = "datamatrix";
+
+    private static int maxCacheSize = 256;
+
+    private static final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+	    return size() > maxCacheSize;
+	}
+    };
+
+    private String type = CODE128;
+    private int width = 400;
+    private int height = 100;
+    private String imageFormat = "jpeg";
+    private boolean showText = true;
+
+    public BarcodeRenderer() {
+    }
+
+    public BarcodeRenderer(String type) {
+	if (type != null && type.trim().length() > 0) {
+	    this.type = type.trim().toLowerCase();
+	}
+    }
+
+    /**
+     * Возвращает изображение штрихкода.
+     *
+     * @param code
+     *            Кодируемая строка.
+     * @return Изображение в формате imageFormat.
+     */
+    public byte[] render(String code) throws Exception {
+	String key = MessageFormat.format("{0}/{1}x{2}/{3}/{4}/{5}", type, width, height, imageFormat, showText, code);
+	synchronized (cache) {
+	    byte[] image = cache.get(key);
+	    if (image != null) {
+		return image;
+	    }
+	}
+
+	BufferedImage image;
+	if (DATAMATRIX.equals(type)) {
+	    image = renderDatamatrix(code);
+	} else if (CODE128.equals(type)) {
+	    image = renderCode128(code);
+	} else {
+	    throw new DfException("Unsupported barcode type: " + type);
+	}
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	if (!ImageIO.write(image, imageFormat, out)) {
+	    throw new DfException("Unsupported image format: " + imageFormat);
+	}
+	byte[] result = out.toByteArray();
+	synchronized (cache) {
+	    cache.put(key, result);
+	}
+	return result;
+    }
+
+    private BufferedImage renderCode128(String code) throws DfException {
+	Barcode128 barcode = new Barcode128();
+	barcode.setCodeType(Barcode.CODE128);
+	barcode.setCode(code);
+	Image bars = barcode.createAwtImage(Color.BLACK, Color.WHITE);
+	// Модуль штрихкода - целое число пикселов, по краям тихая зона.
+	int modules = bars.getWidth(null);
+	int quiet = 10;
+	if (modules + 2 * quiet > width) {
+	    throw new DfException(MessageFormat.format("Barcode width {0} is too small for code {1}, at least {2} pixels required",
+		    width, code, modules + 2 * quiet));
+	}
+
+	BufferedImage image = newImage();
+	Graphics2D g = image.createGraphics();
+	try {
+	    int textHeight = 0;
+	    if (showText) {
+		Font font = new Font(Font.SANS_SERIF, Font.PLAIN, Math.max(10, height / 6));
+		g.setFont(font);
+		FontMetrics metrics = g.getFontMetrics();
+		textHeight = metrics.getHeight();
+		g.setColor(Color.BLACK);
+		g.drawString(code, (width - metrics.stringWidth(code)) / 2, height - metrics.getDescent());
+	    }
+	    int scale = width / (modules + 2 * quiet);
+	    int barsWidth = modules * scale;
+	    g.drawImage(bars, (width - barsWidth) / 2, 0, barsWidth, height - textHeight, null);
+	} finally {
+	    g.dispose();
+	}
+	return image;
+    }
+
+    private BufferedImage renderDatamatrix(String code) throws Exception {
+	BarcodeDatamatrix barcode = new BarcodeDatamatrix();
+	barcode.setOptions(BarcodeDatamatrix.DM_AUTO);
+	int status = barcode.generate(code);
+	if (status != BarcodeDatamatrix.DM_NO_ERROR) {
+	    throw new DfException("Cannot encode DataMatrix, status " + status);
+	}
+	Image matrix = barcode.createAwtImage(Color.BLACK, Color.WHITE);
+	int modules = Math.max(matrix.getWidth(null), matrix.getHeight(null));
+	if (modules > Math.min(width, height)) {
+	    throw new DfException(MessageFormat.format("Barcode size {0}x{1} is too small for code {2}, at least {3}x{3} pixels required",
+		    width, height, code, modules));
+	}
+
+	BufferedImage image = newImage();
+	Graphics2D g = image.createGraphics();
+	try {
+	    int scale = Math.min(width, height) / modules;
+	    int w = matrix.getWidth(null) * scale;
+	    int h = matrix.getHeight(null) * scale;
+	    g.drawImage(matrix, (width - w) / 2, (height - h) / 2, w, h, null);
+	} finally {
+	    g.dispose();
+	}
+	return image;
+    }
+
+    private BufferedImage newImage() {
+	BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	Graphics2D g = image.createGraphics();
+	try {
+	    g.setColor(Color.WHITE);
+	    g.fillRect(0, 0, width, height);
+	} finally {
+	    g.dispose();
+	}
+	return image;
+    }
+
+    /**
+     * Задает размер изображения в виде "ширинаxвысота", например 400x100.
+     * Пустое значение оставляет размер по умолчанию.
+     *
+     * @throws DfException
+     *             если значение задано неверно.
+     */
+    public void setSize(String size) throws DfException {
+	if (size == null || size.trim().length() == 0) {
+	    return;
+	}
+	String[] parts = size.toLowerCase().split("x");
+	int w = 0;
+	int h = 0;
+	if (parts.length == 2) {
+	    try {
+		w = Integer.parseInt(parts[0].trim());
+		h = Integer.parseInt(parts[1].trim());
+	    } catch (NumberFormatException ex) {
+		w = 0;
+	    }
+	}
+	if (w <= 0 || h <= 0) {
+	    throw new DfException("Invalid barcode_size " + size + ", expected widthxheight, e.g. 400x100");
+	}
+	width = w;
+	height = h;
+    }
+
+    public String getType() {
+	return type;
+    }
+
+    public int getWidth() {
+	return width;
+    }
+
+    public void setWidth(int width) {
+	this.width = width;
+    }
+
+    public int getHeight() {
+	return height;
+    }
+
+    public void setHeight(int height) {
+	this.height = height;
+    }
+
+    public String getImageFormat() {
+	return imageFormat;
+    }
+
+    public void setImageFormat(String imageFormat) {
+	this.imageFormat = imageFormat;
+    }
+
+    public boolean isShowText() {
+	return showText;
+    }
+
+    public void setShowText(boolean showText) {
+	this.showText = showText;
+    }
+
+    public static void setMaxCacheSize(int size) {
+	maxCacheSize = size;
+    }
+
+    public static void clearCache() {
+	synchronized (cache) {
+	    cache.clear();
+	}
+    }
+}
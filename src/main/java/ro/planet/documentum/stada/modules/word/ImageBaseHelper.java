@@ -1,13 +1,12 @@
 package ro.planet.documentum.stada.modules.word;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import com.documentum.fc.client.DfQuery;
@@ -20,6 +19,23 @@ import com.documentum.fc.common.DfLogger;
 
 public class ImageBaseHelper {
 
+    public static final String MODE_LOCAL = "local";
+
+    private static long configTTL = 5 * 60 * 1000;
+    private static final Map<String, Map<String, List<String>>> configCache = new HashMap<String, Map<String, List<String>>>();
+    private static final Map<String, Long> configLoadedAt = new HashMap<String, Long>();
+
+    public static void setConfigTTL(long ttl) {
+	configTTL = ttl;
+    }
+
+    public static void clearConfigCache() {
+	synchronized (configCache) {
+	    configCache.clear();
+	    configLoadedAt.clear();
+	}
+    }
+
     public String getImageURL(String baseURL, String ID) {
 	String result = baseURL;
 	result += MessageFormat.format("imageBarcode?action=generate_jpeg&footer={0}&id={0}", ID);
@@ -39,33 +55,91 @@ public class ImageBaseHelper {
     }
 
     public byte[] downloadFromUrl(String urlText) throws IOException {
-	InputStream is = null;
-	try {
-	    URL url = new URL(urlText);
-	    URLConnection urlConn = url.openConnection();// connect
-	    ByteArrayOutputStream str = new ByteArrayOutputStream();
-
-	    is = urlConn.getInputStream();
+	return BarcodeHttpClient.getInstance().get(BarcodeHttpClient.getEndpoint(urlText), urlText);
+    }
 
-	    byte[] buffer = new byte[1024 * 4];
-	    int len;
+    /**
+     * Возвращает изображение штрихкода. По умолчанию изображение загружается
+     * с сервлета barcode_url. Локальное формирование (BarcodeRenderer)
+     * включается, если в /dmsConfig/Configuration объект barcode_mode имеет
+     * title = local; тогда объекты barcode_type (code128, datamatrix) и
+     * barcode_size (например, 400x100) задают вид штрихкода и должны
+     * соответствовать изображениям сервлета.
+     */
+    public byte[] downloadBarcode(String urlParam, IDfSession session) throws Exception {
+	Map<String, List<String>> config = getBarcodeConfig(session);
+	if (!MODE_LOCAL.equalsIgnoreCase(getFirst(config, "barcode_mode"))) {
+	    return downloadFromUrl(getList(config, "barcode_url"), urlParam);
+	}
+	BarcodeRenderer renderer = new BarcodeRenderer(getFirst(config, "barcode_type"));
+	renderer.setSize(getFirst(config, "barcode_size"));
+	debug("Render {0} barcode {1}", renderer.getType(), urlParam);
+	return renderer.render(urlParam);
+    }
 
-	    while ((len = is.read(buffer)) > 0) {
-		str.write(buffer, 0, len);
+    /**
+     * Возвращает настройки штрихкода. Настройки кэшируются на configTTL мс.
+     */
+    public Map<String, List<String>> getBarcodeConfig(IDfSession session) throws DfException {
+	String docbase = session.getDocbaseName();
+	synchronized (configCache) {
+	    Long loadedAt = configLoadedAt.get(docbase);
+	    if (loadedAt != null && System.currentTimeMillis() - loadedAt.longValue() < configTTL) {
+		return configCache.get(docbase);
 	    }
+	}
+	Map<String, List<String>> result = queryBarcodeConfig(session);
+	synchronized (configCache) {
+	    configCache.put(docbase, result);
+	    configLoadedAt.put(docbase, Long.valueOf(System.currentTimeMillis()));
+	}
+	return result;
+    }
 
-	    return str.toByteArray();
+    private Map<String, List<String>> queryBarcodeConfig(IDfSession session) throws DfException {
+	Map<String, List<String>> result = new HashMap<String, List<String>>();
+	String query = "select object_name, title from dm_sysobject where FOLDER('/dmsConfig/Configuration')"
+		+ " and object_name in ('barcode_url', 'barcode_mode', 'barcode_type', 'barcode_size')";
+	DfQuery dfquery = new DfQuery();
+	dfquery.setDQL(query);
+	IDfCollection coll = null;
+	try {
+	    coll = dfquery.execute(session, IDfQuery.DF_QUERY);
+	    while (coll.next()) {
+		String value = coll.getString("title");
+		if (value == null || value.length() == 0) {
+		    continue;
+		}
+		String name = coll.getString("object_name");
+		List<String> values = result.get(name);
+		if (values == null) {
+		    values = new ArrayList<String>();
+		    result.put(name, values);
+		}
+		values.add(value);
+	    }
+	} catch (DfException x) {
+	    DfLogger.error(this, "Cannot perform query {0}", new String[] { query }, x);
+	    throw x;
 	} finally {
-
-	    if (is != null) {
-		is.close();
+	    try {
+		if (coll != null)
+		    coll.close();
+	    } catch (DfException ex) {
+		DfLogger.error(this, "Error while release session", null, ex);
 	    }
-
 	}
+	return result;
     }
 
-    public byte[] downloadBarcode(String urlParam, IDfSession session) throws Exception {
-	return downloadFromUrl(getBarcodeURL(session), urlParam);
+    private List<String> getList(Map<String, List<String>> config, String name) {
+	List<String> values = config.get(name);
+	return values == null ? new ArrayList<String>() : values;
+    }
+
+    private String getFirst(Map<String, List<String>> config, String name) {
+	List<String> values = config.get(name);
+	return values == null ? null : values.get(0);
     }
 
     public byte[] downloadFromUrl(List<String> urlText, String urlParam) throws Exception {
@@ -78,7 +152,7 @@ public class ImageBaseHelper {
 	    try {
 		String imageURL = getImageURL(url, urlParam);
 		debug("Download from URL {0}", imageURL);
-		byte[] result = downloadFromUrl(imageURL);
+		byte[] result = BarcodeHttpClient.getInstance().get(url, imageURL);
 		if (result.length > 0) {
 		    return result;
 		}
@@ -90,10 +164,7 @@ public class ImageBaseHelper {
     }
 
     public List<String> getBarcodeURL(IDfSession session) throws DfException {
-	List<String> urls = performStringQuery(
-		"select title from dm_sysobject where FOLDER('/dmsConfig/Configuration') and object_name = 'barcode_url'",
-		session);
-	return urls;
+	return getList(getBarcodeConfig(session), "barcode_url");
     }
 
     public final List<String> performStringQuery(String query, IDfSession session) throws DfException {
@@ -1,18 +1,31 @@
 package ro.planet.documentum.stada.modules.word;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
 
 import org.docx4j.XmlUtils;
 import org.docx4j.dml.wordprocessingDrawing.Inline;
 import org.docx4j.jaxb.Context;
+import org.docx4j.dml.picture.Pic;
 import org.docx4j.model.structure.HeaderFooterPolicy;
+import org.docx4j.model.structure.PageDimensions;
 import org.docx4j.model.structure.SectionWrapper;
 import org.docx4j.openpackaging.exceptions.InvalidFormatException;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
@@ -21,6 +34,8 @@ import org.docx4j.openpackaging.parts.PartName;
 import org.docx4j.openpackaging.parts.WordprocessingML.BinaryPartAbstractImage;
 import org.docx4j.openpackaging.parts.WordprocessingML.FooterPart;
 import org.docx4j.openpackaging.parts.WordprocessingML.HeaderPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.ImageJpegPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.ImagePngPart;
 import org.docx4j.openpackaging.parts.relationships.RelationshipsPart;
 import org.docx4j.openpackaging.parts.relationships.RelationshipsPart.AddPartBehaviour;
 import org.docx4j.relationships.Relationship;
@@ -44,9 +59,22 @@ import org.docx4j.wml.R;
 import org.docx4j.wml.STBrType;
 import org.docx4j.wml.SectPr;
 import org.docx4j.wml.Text;
+import org.w3c.dom.NodeList;
 
 public class WordFooterHelper {
 
+    private static int maxInlineCacheSize = 64;
+
+    private static final Map<String, Inline> inlineCache = new LinkedHashMap<String, Inline>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Inline> eldest) {
+	    return size() > maxInlineCacheSize;
+	}
+    };
+    private static final AtomicLong imageCounter = new AtomicLong();
+
     private WordprocessingMLPackage template;
     private static ObjectFactory factory;
     private List<HeaderPart> headers = new ArrayList<HeaderPart>();
@@ -352,8 +380,7 @@ public class WordFooterHelper {
 
     public org.docx4j.wml.P newImage(Part sourcePart, byte[] bytes, String filenameHint, String altText, int id1,
 	    int id2) throws Exception {
-	BinaryPartAbstractImage imagePart = BinaryPartAbstractImage.createImagePart(template, sourcePart, bytes);
-	Inline inline = imagePart.createImageInline(filenameHint, altText, id1, id2, false);
+	Inline inline = createInline(sourcePart, bytes, filenameHint, altText, id1, id2);
 	// Now add the inline in w:p/w:r/w:drawing
 	P p = factory.createP();
 	R run = factory.createR();
@@ -364,6 +391,132 @@ public class WordFooterHelper {
 	return p;
     }
 
+    /**
+     * Создает часть с изображением и разметку inline. Для PNG и JPEG разметка
+     * строится один раз для каждой ширины страницы шаблона, размера и
+     * разрешения изображения и затем копируется, меняются только
+     * идентификаторы и ссылка на часть с изображением. Так не нужно каждый
+     * раз анализировать изображение в BinaryPartAbstractImage.createImagePart.
+     */
+    private Inline createInline(Part sourcePart, byte[] bytes, String filenameHint, String altText, int id1,
+	    int id2) throws Exception {
+	String imageKey = getImageKey(bytes);
+	String key = null;
+	if (imageKey != null) {
+	    key = getLayoutKey() + "/" + imageKey;
+	}
+	Inline skeleton = null;
+	if (key != null) {
+	    synchronized (inlineCache) {
+		skeleton = inlineCache.get(key);
+	    }
+	}
+	if (skeleton != null) {
+	    debug("Inline for {0} obtained from cache", key);
+	    BinaryPartAbstractImage imagePart;
+	    // ключ изображения начинается с формата: png/... или jpeg/...
+	    if (imageKey.startsWith("png/")) {
+		imagePart = new ImagePngPart(newImagePartName("png"));
+	    } else {
+		imagePart = new ImageJpegPart(newImagePartName("jpeg"));
+	    }
+	    imagePart.setBinaryData(bytes);
+	    Relationship relationship = sourcePart.addTargetPart(imagePart);
+
+	    Inline inline = (Inline) XmlUtils.deepCopy(skeleton);
+	    inline.getDocPr().setId(id1);
+	    inline.getDocPr().setName(filenameHint);
+	    inline.getDocPr().setDescr(altText);
+	    Pic pic = inline.getGraphic().getGraphicData().getPic();
+	    pic.getNvPicPr().getCNvPr().setId(id2);
+	    pic.getNvPicPr().getCNvPr().setName(filenameHint);
+	    pic.getBlipFill().getBlip().setEmbed(relationship.getId());
+	    return inline;
+	}
+
+	BinaryPartAbstractImage imagePart = BinaryPartAbstractImage.createImagePart(template, sourcePart, bytes);
+	Inline inline = imagePart.createImageInline(filenameHint, altText, id1, id2, false);
+	if (key != null) {
+	    synchronized (inlineCache) {
+		inlineCache.put(key, (Inline) XmlUtils.deepCopy(inline));
+	    }
+	}
+	return inline;
+    }
+
+    /**
+     * Ширина области текста последнего раздела шаблона, по которой
+     * createImageInline ограничивает размер изображения.
+     */
+    private String getLayoutKey() {
+	List<SectionWrapper> sections = template.getDocumentModel().getSections();
+	PageDimensions page = sections.get(sections.size() - 1).getPageDimensions();
+	return page == null ? "default" : String.valueOf(page.getWritableWidthTwips());
+    }
+
+    /**
+     * Возвращает формат, размер и разрешение изображения
+     * (png/400x100/0.2646,0.2646). Читается только заголовок изображения. Для
+     * других форматов возвращает null.
+     */
+    private String getImageKey(byte[] bytes) {
+	try {
+	    ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+	    try {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+		    return null;
+		}
+		ImageReader reader = readers.next();
+		try {
+		    reader.setInput(in);
+		    String format = reader.getFormatName().toLowerCase();
+		    if (!"png".equals(format) && !"jpeg".equals(format)) {
+			return null;
+		    }
+		    return format + "/" + reader.getWidth(0) + "x" + reader.getHeight(0) + "/"
+			    + getPixelSize(reader.getImageMetadata(0));
+		} finally {
+		    reader.dispose();
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (Exception ex) {
+	    debug("Cannot read image header: {0}", ex.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Размер пикселя (мм) из стандартных метаданных, от него зависит размер
+     * изображения в документе.
+     */
+    private String getPixelSize(IIOMetadata metadata) {
+	if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+	    return "";
+	}
+	IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+	return getAttribute(root, "HorizontalPixelSize") + "," + getAttribute(root, "VerticalPixelSize");
+    }
+
+    private String getAttribute(IIOMetadataNode root, String name) {
+	NodeList nodes = root.getElementsByTagName(name);
+	return nodes.getLength() == 0 ? "" : ((IIOMetadataNode) nodes.item(0)).getAttribute("value");
+    }
+
+    public static void setMaxInlineCacheSize(int size) {
+	maxInlineCacheSize = size;
+    }
+
+    private PartName newImagePartName(String ext) throws Exception {
+	PartName name;
+	do {
+	    name = new PartName("/word/media/barcode" + imageCounter.incrementAndGet() + "." + ext);
+	} while (template.getParts().get(name) != null);
+	return name;
+    }
+
     protected void debug(String message, Object... params) {
 	String string = MessageFormat.format(message, params);
 	System.out.println(string);
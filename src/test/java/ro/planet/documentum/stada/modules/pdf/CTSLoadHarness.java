@@ -0,0 +1,265 @@
+package ro.planet.documentum.stada.modules.pdf;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.documentum.fc.client.DfClient;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSessionManager;
+import com.documentum.fc.client.IDfSysObject;
+import com.documentum.fc.common.DfId;
+import com.documentum.fc.common.DfLoginInfo;
+import com.documentum.fc.common.IDfLoginInfo;
+import com.documentum.fc.impl.util.RegistryPasswordUtils;
+import com.documentum.services.dam.df.transform.ICTSService;
+
+/**
+ * Нагрузочная проверка ConvertPDFModule и MergePdfExtModule с LocalCTSService
+ * вместо сервера CTS. <br>
+ *
+ * Модули вызываются через executeWithSession, то есть тем же кодом, что и
+ * execute/executeQueued; подменяется только сервис CTS (getCTSService,
+ * getService очереди). Нужен репозиторий с профилями CTS (поиск профилей,
+ * dm_transform_request), сам сервер CTS не нужен. <br>
+ *
+ * Параметры передаются в виде key=value: docbase, user, password, source (id
+ * документа), rootPath, appendPath, requests, threads, mode (sync - convert,
+ * merge и шифрование; queued - постановка в CTSSubmissionQueue и ожидание
+ * ее опустошения), latency, jitter, failureRate, maxConcurrent, pages, seed.
+ * Запуск: gradlew ctsLoadHarness -PharnessArgs="docbase=... user=...".
+ */
+public class CTSLoadHarness {
+
+	private static final String OWNER_PASSWORD = "owner";
+
+	private final Map<String, String> params;
+	private final String docbase;
+	private final int requests;
+	private final int threads;
+	private final boolean queued;
+
+	private final LocalCTSService cts;
+	private final CTSSubmissionQueue queue;
+	private final IDfSessionManager sessionManager;
+
+	private final long[] convertTimes;
+	private final long[] mergeTimes;
+	private final long[] totalTimes;
+	private final AtomicInteger index = new AtomicInteger();
+	private final AtomicLong errors = new AtomicLong();
+	private final List<String> created = Collections.synchronizedList(new ArrayList<String>());
+
+	public CTSLoadHarness(Map<String, String> params) throws Exception {
+		this.params = params;
+		docbase = require("docbase");
+		requests = Integer.parseInt(get("requests", "100"));
+		threads = Integer.parseInt(get("threads", "8"));
+		queued = "queued".equals(get("mode", "sync"));
+
+		cts = new LocalCTSService(Long.parseLong(get("seed", "0")));
+		cts.setLatency(Long.parseLong(get("latency", "200")));
+		cts.setLatencyJitter(Long.parseLong(get("jitter", "100")));
+		cts.setFailureRate(Double.parseDouble(get("failureRate", "0")));
+		cts.setMaxConcurrent(Integer.parseInt(get("maxConcurrent", "4")));
+		cts.setPageCount(Integer.parseInt(get("pages", "3")));
+
+		queue = new CTSSubmissionQueue() {
+			@Override
+			protected ICTSService getService(IDfSession session) {
+				return cts.getService();
+			}
+		};
+
+		IDfLoginInfo login = new DfLoginInfo();
+		login.setUser(require("user"));
+		login.setPassword(require("password"));
+		sessionManager = DfClient.getLocalClient().newSessionManager();
+		sessionManager.setIdentity(docbase, login);
+
+		convertTimes = new long[requests];
+		mergeTimes = new long[requests];
+		totalTimes = new long[requests];
+	}
+
+	private class LocalConvertPDFModule extends ConvertPDFModule {
+		@Override
+		protected ICTSService getCTSService(IDfSession session) {
+			return cts.getService();
+		}
+
+		@Override
+		protected CTSSubmissionQueue getSubmissionQueue() {
+			return queue;
+		}
+	}
+
+	private class LocalMergePdfExtModule extends MergePdfExtModule {
+		@Override
+		protected ICTSService getCTSService(IDfSession session) {
+			return cts.getService();
+		}
+	}
+
+	/**
+	 * Выполняет все запросы и возвращает отчет.
+	 */
+	public String run() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch done = new CountDownLatch(requests);
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						runOne();
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+						ex.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		pool.shutdown();
+		long submittedAt = System.nanoTime();
+		if (queued) {
+			while (queue.getCompletedCount() + queue.getFailedCount() < queue.getSubmittedCount()) {
+				Thread.sleep(100);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long drain = System.nanoTime() - submittedAt;
+		cleanup();
+		return report(elapsed, drain);
+	}
+
+	/**
+	 * Удаляет созданные проверкой объекты.
+	 */
+	private void cleanup() throws Exception {
+		IDfSession session = sessionManager.getSession(docbase);
+		try {
+			synchronized (created) {
+				for (String id : created) {
+					try {
+						((IDfSysObject) session.getObject(new DfId(id))).destroy();
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+						ex.printStackTrace();
+					}
+				}
+				created.clear();
+			}
+		} finally {
+			sessionManager.release(session);
+		}
+	}
+
+	private void runOne() throws Exception {
+		String source = require("source");
+		String rootPath = require("rootPath");
+		String appendPath = get("appendPath", "");
+		IDfSession session = sessionManager.getSession(docbase);
+		try {
+			long t0 = System.nanoTime();
+			ConvertPDFModule convert = new LocalConvertPDFModule();
+			ConvertPDFModule.Result converted = convert.executeWithSession(session, source, true, "", "", rootPath,
+					appendPath, "dm_folder", !queued, queued);
+			if (converted.getNewObjectId() != null && converted.getNewObjectId().length() > 0) {
+				// удаляется после опустошения очереди, когда CTS его уже не изменяет
+				created.add(converted.getNewObjectId());
+			}
+			if (!converted.getSuccess()) {
+				throw new Exception("Conversion failed: " + converted.getErrorMessage());
+			}
+			long t1 = System.nanoTime();
+			long t2 = t1;
+			if (!queued) {
+				MergePdfExtModule merge = new LocalMergePdfExtModule();
+				MergePdfExtModule.Result merged = merge.executeWithSession(session, source, converted.getNewObjectId(),
+						"", "", rootPath, appendPath, "dm_folder", RegistryPasswordUtils.encrypt(OWNER_PASSWORD));
+				if (!merged.getSuccess()) {
+					throw new Exception("Merge failed: " + merged.getErrorMessage());
+				}
+				t2 = System.nanoTime();
+				created.add(merged.getNewObjectId());
+			}
+			int i = index.getAndIncrement();
+			convertTimes[i] = t1 - t0;
+			mergeTimes[i] = t2 - t1;
+			totalTimes[i] = t2 - t0;
+		} finally {
+			sessionManager.release(session);
+		}
+	}
+
+	private String report(long elapsed, long drain) {
+		int count = index.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append(MessageFormat.format("mode {0}, requests {1}, completed {2}, errors {3}, threads {4}, elapsed {5} ms, throughput {6} req/s\n",
+				queued ? "queued" : "sync", requests, count, errors.get(), threads, elapsed / 1000000,
+				String.format(Locale.US, "%.2f", count * 1e9 / Math.max(elapsed, 1))));
+		if (queued) {
+			sb.append(MessageFormat.format("queue drained in {0} ms, {1}\n", drain / 1000000, queue));
+			sb.append(percentiles("submit", convertTimes, count));
+		} else {
+			sb.append(percentiles("convert", convertTimes, count));
+			sb.append(percentiles("merge", mergeTimes, count));
+			sb.append(percentiles("total", totalTimes, count));
+		}
+		sb.append(MessageFormat.format("local CTS: processed {0}, failed {1}\n", cts.getProcessedCount(), cts.getFailedCount()));
+		return sb.toString();
+	}
+
+	private static String percentiles(String name, long[] times, int count) {
+		if (count == 0) {
+			return name + ": no data\n";
+		}
+		long[] sorted = Arrays.copyOf(times, count);
+		Arrays.sort(sorted);
+		return String.format(Locale.US, "%-8s p50 %d ms, p90 %d ms, p99 %d ms, max %d ms\n", name,
+				percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[count - 1] / 1000000);
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1000000;
+	}
+
+	private String get(String name, String defaultValue) {
+		String value = params.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private String require(String name) {
+		String value = params.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Parameter " + name + " is required");
+		}
+		return value;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		for (String arg : args) {
+			String[] pair = arg.split("=", 2);
+			if (pair.length == 2) {
+				params.put(pair[0], pair[1]);
+			}
+		}
+		System.out.print(new CTSLoadHarness(params).run());
+	}
+}
@@ -0,0 +1,455 @@
+package ro.planet.documentum.stada.modules.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSessionManager;
+import com.documentum.fc.client.IDfSysObject;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfId;
+import com.documentum.services.dam.df.transform.ICTSService;
+import com.documentum.services.dam.df.transform.IParameterContent;
+import com.documentum.services.dam.df.transform.IParameterContentAttribute;
+import com.documentum.services.dam.df.transform.ITransformRequest;
+import com.lowagie.text.Document;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.pdf.PdfWriter;
+
+import framework.ru.documentum.services.DsHelper;
+
+/**
+ * Локальная замена сервиса CTS для проверки модулей без сервера
+ * преобразований. <br>
+ *
+ * Реализует только те методы ICTSService, ITransformRequest и параметров
+ * профиля, которые используются в ConvertPDFModule, MergePdfExtModule и
+ * CTSSubmissionQueue. Вместо преобразования формирует с помощью iText PDF с
+ * постоянным содержимым. Задержка, доля ошибок и число одновременно
+ * выполняемых запросов настраиваются. <br>
+ *
+ * Подключение: getService() возвращается из переопределенных методов
+ * getCTSService модулей и getService очереди (см. CTSLoadHarness).
+ */
+public class LocalCTSService extends DsHelper {
+
+	private static final AtomicLong idCounter = new AtomicLong();
+
+	private long latency = 200;
+	private long latencyJitter = 0;
+	private double failureRate = 0;
+	private int pageCount = 3;
+	private int maxConcurrent = 4;
+
+	private final Random random;
+	private final Slots slots = new Slots(maxConcurrent);
+	private final Set<String> processing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<String, byte[]> renditions = new ConcurrentHashMap<String, byte[]>();
+	private final ExecutorService executor;
+	private final ICTSService service;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public LocalCTSService() {
+		this(0);
+	}
+
+	/**
+	 * @param seed
+	 *            Начальное значение генератора случайных чисел, чтобы ошибки и
+	 *            задержки повторялись от запуска к запуску.
+	 */
+	public LocalCTSService(long seed) {
+		super((IDfSession) null);
+		random = new Random(seed);
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "local-cts-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		service = (ICTSService) Proxy.newProxyInstance(ICTSService.class.getClassLoader(),
+				new Class<?>[] { ICTSService.class }, new ServiceHandler());
+	}
+
+	/**
+	 * Возвращает объект, реализующий ICTSService.
+	 */
+	public ICTSService getService() {
+		return service;
+	}
+
+	/**
+	 * Возвращает результат преобразования, сохраненный в памяти.
+	 *
+	 * @param objectId
+	 *            Идентификатор исходного объекта.
+	 * @param format
+	 *            Формат.
+	 * @return Содержимое или null.
+	 */
+	public byte[] getRendition(String objectId, String format) {
+		return renditions.get(renditionKey(objectId, format));
+	}
+
+	public long getProcessedCount() {
+		return processed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Семафор, число разрешений которого можно уменьшить без ожидания.
+	 */
+	private static class Slots extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private Slots(int permits) {
+			super(permits, true);
+		}
+
+		private void resize(int delta) {
+			if (delta > 0) {
+				release(delta);
+			} else if (delta < 0) {
+				reducePermits(-delta);
+			}
+		}
+	}
+
+	/**
+	 * Выполняет запрос в текущем потоке.
+	 */
+	private void process(IDfSession session, ITransformRequest request, String requestId) throws Exception {
+		slots.acquireUninterruptibly();
+		try {
+			long delay;
+			boolean fail;
+			synchronized (random) {
+				delay = latency + (latencyJitter > 0 ? (long) (random.nextDouble() * latencyJitter) : 0);
+				fail = random.nextDouble() < failureRate;
+			}
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+			if (fail) {
+				failed.incrementAndGet();
+				throw new DfException("Local CTS: simulated failure of request " + requestId);
+			}
+			String sourceId = request.getSourceObjectId();
+			String format = request.getTargetFormat();
+			int pages = isMerge(request) ? pageCount * 2 : pageCount;
+			ByteArrayOutputStream content = createPdf(sourceId, request.getMediaProfileName(), pages);
+			renditions.put(renditionKey(sourceId, format), content.toByteArray());
+			if (session != null) {
+				store(session, request, content);
+			}
+			processed.incrementAndGet();
+			debug("Local CTS: request {0} for {1} processed in {2} ms", requestId, sourceId, delay);
+		} finally {
+			slots.release();
+		}
+	}
+
+	/**
+	 * Сохраняет результат в репозиторий так же, как это делает CTS: в
+	 * связанный объект, если он указан, иначе в рендишн исходного объекта.
+	 */
+	private void store(IDfSession session, ITransformRequest request, ByteArrayOutputStream content) throws Exception {
+		String relatedId = request.getRelatedObjectId();
+		if (relatedId != null && relatedId.length() > 0) {
+			IDfSysObject target = (IDfSysObject) session.getObject(new DfId(relatedId));
+			target.setContentType(request.getTargetFormat());
+			target.setContent(content);
+			target.save();
+			return;
+		}
+		File file = File.createTempFile("local-cts", ".pdf");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				content.writeTo(out);
+			} finally {
+				out.close();
+			}
+			IDfSysObject source = (IDfSysObject) session.getObject(new DfId(request.getSourceObjectId()));
+			source.addRendition(file.getAbsolutePath(), request.getTargetFormat());
+			source.save();
+		} finally {
+			file.delete();
+		}
+	}
+
+	private boolean isMerge(ITransformRequest request) throws DfException {
+		String name = request.getMediaProfileName();
+		return name != null && name.toLowerCase().contains("merge");
+	}
+
+	/**
+	 * Формирует PDF, содержимое которого зависит только от параметров.
+	 */
+	static ByteArrayOutputStream createPdf(String sourceId, String profileName, int pages) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Document document = new Document();
+		PdfWriter.getInstance(document, out);
+		document.open();
+		for (int i = 1; i <= pages; i++) {
+			if (i > 1) {
+				document.newPage();
+			}
+			document.add(new Paragraph("Source: " + sourceId));
+			document.add(new Paragraph("Profile: " + profileName));
+			document.add(new Paragraph("Page " + i + " of " + pages));
+		}
+		document.close();
+		return out;
+	}
+
+	private static String renditionKey(String objectId, String format) {
+		return objectId + "/" + format;
+	}
+
+	private static String nextId(String typeTag) {
+		return String.format("%s%014x", typeTag, idCounter.incrementAndGet());
+	}
+
+	/**
+	 * Реализация ICTSService.
+	 */
+	private class ServiceHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("submitRequest".equals(name)) {
+				submitRequest((IDfSession) args[0], (ITransformRequest) args[1], ((Boolean) args[3]).booleanValue());
+				return null;
+			}
+			if ("getNewTransformRequest".equals(name)) {
+				return Proxy.newProxyInstance(ITransformRequest.class.getClassLoader(),
+						new Class<?>[] { ITransformRequest.class },
+						new BeanHandler(nextId("08"), new HashMap<String, Object>()));
+			}
+			if ("isRequestProcessing".equals(name)) {
+				return Boolean.valueOf(processing.contains(args[0]));
+			}
+			if ("doesRenditionExists".equals(name)) {
+				return Boolean.valueOf(renditions.containsKey(renditionKey((String) args[1], (String) args[2])));
+			}
+			if ("getNewParameterContentAttribute".equals(name)) {
+				Map<String, Object> attrs = new HashMap<String, Object>();
+				attrs.put("AttributeName", args[0]);
+				attrs.put("AttributeLabel", args[1]);
+				attrs.put("AttributeValue", args[2]);
+				return Proxy.newProxyInstance(IParameterContentAttribute.class.getClassLoader(),
+						new Class<?>[] { IParameterContentAttribute.class }, new BeanHandler("attribute", attrs));
+			}
+			if ("getNewParameterContent".equals(name)) {
+				Map<String, Object> attrs = new HashMap<String, Object>();
+				attrs.put("Attributes", args[0]);
+				return Proxy.newProxyInstance(IParameterContent.class.getClassLoader(),
+						new Class<?>[] { IParameterContent.class }, new BeanHandler("content", attrs));
+			}
+			if ("getQueueItemPosition".equals(name)) {
+				return Integer.valueOf(processing.contains(args[0]) ? slots.getQueueLength() : -1);
+			}
+			if ("deleteRequest".equals(name) || "changeRequestPriority".equals(name)) {
+				return null;
+			}
+			if ("isCTSServiceAvailable".equals(name)) {
+				return Boolean.TRUE;
+			}
+			if ("isMTSServiceAvailable".equals(name)) {
+				return Boolean.FALSE;
+			}
+			return handleObjectMethod(proxy, method, args, "LocalCTSService");
+		}
+
+		private void submitRequest(final IDfSession session, final ITransformRequest request, boolean sync) throws Exception {
+			final String requestId = request.getObjectId().getId();
+			if (sync) {
+				try {
+					process(session, request, requestId);
+				} catch (DfException ex) {
+					throw ex;
+				} catch (Exception ex) {
+					throw new DfException("Local CTS: request " + requestId + " failed: " + ex.getMessage());
+				}
+				return;
+			}
+			// сессия вызывающего возвращается менеджеру сразу после постановки
+			// в очередь, поэтому результат сохраняется в собственной сессии
+			final IDfSessionManager manager = session != null ? session.getSessionManager() : null;
+			final String docbase = session != null ? session.getDocbaseName() : null;
+			processing.add(requestId);
+			executor.execute(new Runnable() {
+				public void run() {
+					IDfSession own = null;
+					try {
+						if (manager != null) {
+							own = manager.getSession(docbase);
+						}
+						process(own, request, requestId);
+					} catch (Exception ex) {
+						error("Local CTS: request {0} failed", ex, requestId);
+					} finally {
+						if (own != null) {
+							manager.release(own);
+						}
+						processing.remove(requestId);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Реализация объектов (запрос, профиль), хранящих атрибуты в Map. Методы
+	 * setXxx сохраняют значение, getXxx и isXxx его возвращают.
+	 */
+	private static class BeanHandler implements InvocationHandler {
+		private final String objectId;
+		private final Map<String, Object> attrs;
+
+		private BeanHandler(String objectId, Map<String, Object> attrs) {
+			this.objectId = objectId;
+			this.attrs = attrs;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("getObjectId".equals(name)) {
+				return new DfId(objectId);
+			}
+			if ("save".equals(name) || "createTransformRelation".equals(name)) {
+				return null;
+			}
+			if ("isValid".equals(name) || "validate".equals(name)) {
+				return Boolean.TRUE;
+			}
+			if (name.startsWith("set") && args != null && args.length == 1) {
+				synchronized (attrs) {
+					attrs.put(name.substring(3), args[0]);
+				}
+				return null;
+			}
+			if (name.startsWith("get") && (args == null || args.length == 0)) {
+				Object value;
+				synchronized (attrs) {
+					value = attrs.get(name.substring(3));
+				}
+				return value == null ? defaultValue(method.getReturnType()) : value;
+			}
+			return handleObjectMethod(proxy, method, args, objectId);
+		}
+	}
+
+	private static Object handleObjectMethod(Object proxy, Method method, Object[] args, String description) {
+		String name = method.getName();
+		if ("toString".equals(name)) {
+			return description;
+		}
+		if ("hashCode".equals(name)) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		if ("equals".equals(name)) {
+			return Boolean.valueOf(proxy == args[0]);
+		}
+		throw new UnsupportedOperationException("Local CTS: " + method.getName() + " is not supported");
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == Boolean.TYPE) {
+			return Boolean.FALSE;
+		}
+		if (type == Integer.TYPE) {
+			return Integer.valueOf(0);
+		}
+		if (type == Long.TYPE) {
+			return Long.valueOf(0);
+		}
+		if (type == Double.TYPE) {
+			return Double.valueOf(0);
+		}
+		return null;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Задержка обработки одного запроса, мс.
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getLatencyJitter() {
+		return latencyJitter;
+	}
+
+	/**
+	 * Максимальная случайная добавка к задержке, мс.
+	 */
+	public void setLatencyJitter(long latencyJitter) {
+		this.latencyJitter = latencyJitter;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * Доля запросов (от 0 до 1), завершающихся ошибкой.
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Число страниц в результате преобразования. Результат объединения
+	 * содержит вдвое больше страниц.
+	 */
+	public void setPageCount(int pageCount) {
+		this.pageCount = pageCount;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Число одновременно обрабатываемых запросов.
+	 */
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+		int delta = maxConcurrent - this.maxConcurrent;
+		this.maxConcurrent = maxConcurrent;
+		slots.resize(delta);
+	}
+}